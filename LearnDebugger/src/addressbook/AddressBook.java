@@ -7,23 +7,53 @@
 
 package addressbook;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
-import java.util.Observable;
+import java.util.concurrent.Callable;
 
 /** An object of this class maintains the collection of Person objects that
  *  constitute an address book
+ *
+ *  The collection is held as a series of immutable snapshots.  Reading
+ *  operations work on whichever snapshot is current when they start, so
+ *  they never wait for a change and never see one half done.  Changes are
+ *  made one at a time, each by building and publishing a new snapshot.
+ *  Because snapshots share structure, the book also keeps the recent ones
+ *  as a history of changes which can be undone and redone.
+ *
+ *  Each change is published on the book's BookEventBus, which tells the
+ *  listeners subscribed to the book about it later, on other threads, so a
+ *  change never waits for a listener.
  */
-public class AddressBook extends Observable implements Serializable
+public class AddressBook implements Serializable
 {
     /** Constructor - create a new, empty address book
      */
     public AddressBook()
     {
-        collection = new Vector<Person>();
+        current = new BookSnapshot(0, PersistentList.<Person>empty());
+        indexes = new BookIndexes();
+        history = new UndoHistory(DEFAULT_UNDO_DEPTH);
+        events = new BookEventBus(this);
+        feed = new ChangeFeed(FEED_ENTRIES, FEED_BYTES);
         file = null;
         changedSinceLastSave = false;
     }
@@ -34,12 +64,74 @@ public class AddressBook extends Observable implements Serializable
      */
     public String [] getNames()
     {
-        String [] result = new String [collection.size()];
-        for (int i = 0; i < collection.size(); i ++)
-            result[i] = collection.elementAt(i).getFullName();
+        BookSnapshot snapshot = current;
+        String [] result = new String [snapshot.size()];
+        int i = 0;
+        for (Person person : snapshot)
+            result[i ++] = person.getFullName();
         return result;
     }
     
+    /** Get the current snapshot of the collection.  The snapshot will not
+     *  change, however the book is changed afterwards
+     *
+     *  @return the current snapshot
+     */
+    public BookSnapshot snapshot()
+    {
+        return current;
+    }
+    
+    /** Get the number of persons in the collection
+     *
+     *  @return the number of persons in the collection
+     */
+    public int size()
+    {
+        return current.size();
+    }
+    
+    /** Get the person at a given position in the collection
+     *
+     *  @param index the position of the desired person
+     *  @return the person at that position
+     */
+    Person getPerson(int index)
+    {
+        return current.get(index);
+    }
+    
+    /** Get the person with a given name
+     *
+     *  @param name the desired name
+     *  @return the person with that name, or null if there is none
+     */
+    Person findPerson(String name)
+    {
+        return indexes.getByName(name);
+    }
+    
+    /** Get every person with a given name
+     *
+     *  @param name the desired name
+     *  @return the persons with that name - empty if there are none
+     */
+    List<Person> findPersons(String name)
+    {
+        return indexes.getAllByName(name);
+    }
+    
+    /** Find out whether a given person - not just one of the same name - is
+     *  in the book
+     *
+     *  @param person the person
+     *  @return true if it is
+     */
+    boolean containsPerson(Person person)
+    {
+        return indexes.containsPerson(person);
+    }
+    
     /** Add a new Person to the collection
      *
      *  @param firstName the person's first name
@@ -50,7 +142,7 @@ public class AddressBook extends Observable implements Serializable
      *  @param zip the person's zip
      *  @param phone the person's phone
      */
-    public void addPerson(String firstName,
+    public synchronized void addPerson(String firstName,
                           String lastName,
                           String address,
                           String city,
@@ -58,17 +150,103 @@ public class AddressBook extends Observable implements Serializable
                           String zip,
                           String phone)
     {
+        // Note the order of the constructor's last two parameters
         Person newPerson = new Person(firstName, 
                                          lastName, 
                                          address, 
                                          city, 
                                          state, 
-                                         zip, 
-                                         phone);
-        collection.addElement(newPerson);
-        changedSinceLastSave = true;
-        setChanged();
-        notifyObservers();
+                                         phone, 
+                                         zip);
+        publish(current.getPersons().add(newPerson), NONE, NOWHERE,
+                Collections.singletonList(newPerson), 
+                new int [] { current.size() });
+    }
+    
+    /** Find out whether a person of a given name is in the book
+     *
+     *  @param name the name
+     *  @return true if a person with that name is in the book
+     */
+    public boolean containsName(String name)
+    {
+        return findPerson(name) != null;
+    }
+    
+    /** Add a batch of persons to the end of the collection, as a single
+     *  change.  Persons whose names are already in the book (or earlier in
+     *  the batch) are left out
+     *
+     *  @param persons the persons to add, in order
+     *  @return the number of persons actually added
+     */
+    public synchronized int addPersons(Collection<Person> persons)
+    {
+        List<Person> added = new ArrayList<Person>();
+        Set<String> names = new HashSet<String>();
+        for (Person person : persons)
+        {
+            String name = person.getFullName();
+            if (findPerson(name) == null && names.add(name))
+                added.add(person);
+        }
+        if (! added.isEmpty())
+        {
+            int [] addedAt = new int[added.size()];
+            for (int i = 0; i < addedAt.length; i ++)
+                addedAt[i] = current.size() + i;
+            publish(current.getPersons().addAll(
+                        added.toArray(new Person[added.size()])), 
+                    NONE, NOWHERE, added, addedAt);
+        }
+        return added.size();
+    }
+    
+    /** Append persons read from a file to the end of the collection.  This
+     *  is used while a book is being built up from a file, so it does not
+     *  mark the book as changed or notify observers
+     *
+     *  @param persons the persons to append, in order
+     */
+    synchronized void appendPersons(Collection<Person> persons)
+    {
+        for (Person person : persons)
+            indexes.add(person);
+        current = new BookSnapshot(current.getVersion() + 1,
+            current.getPersons().addAll(persons.toArray(new Person[0])));
+    }
+    
+    /** Put off building the indexes on ZIP, state and city until they are
+     *  first used.  This is used while a book whose persons are read lazily
+     *  is being built up from a file, since indexing those fields would read
+     *  every person's information
+     */
+    synchronized void deferIndexes()
+    {
+        indexes.defer();
+    }
+    
+    /** Record what a book whose persons are read lazily reads them from,
+     *  so that it can be closed when the book is no longer wanted
+     *
+     *  @param source the source - such as the file's LazyBookFormat.Reader
+     */
+    void setSource(Closeable source)
+    {
+        this.source = source;
+    }
+    
+    /** Release the file a book whose persons are read lazily holds open.
+     *  The book can still be used: the file is opened again if information
+     *  not already in memory is needed.  Nothing happens for other books
+     *
+     *  @exception IOException if there is a problem closing the file
+     */
+    public void close() throws IOException
+    {
+        Closeable source = this.source;
+        if (source != null)
+            source.close();
     }
     
     /** Provide current information about a person in the address book.
@@ -79,10 +257,9 @@ public class AddressBook extends Observable implements Serializable
      */
     public String [] getPersonInformation(String name)
     {
-        int index = findIndex(name);
-        if (index >= 0)
+        Person person = findPerson(name);
+        if (person != null)
         {
-            Person person = collection.elementAt(index);
             String [] result = 
                 { person.getAddress(),
                   person.getCity(),
@@ -107,20 +284,22 @@ public class AddressBook extends Observable implements Serializable
      *
      *  @exception IllegalArgumentException if the specified person does not exist
      */
-    public void updatePerson(String name,
-                             String address,
-                             String city,
-                             String state,
-                             String zip,
-                             String phone) throws IllegalArgumentException
+    public synchronized void updatePerson(String name,
+                                          String address,
+                                          String city,
+                                          String state,
+                                          String zip,
+                                          String phone) 
+        throws IllegalArgumentException
     {
-        int index = findIndex(name);
+        int index = findIndex(current, name);
         if (index >= 0)
         {
-            collection.elementAt(index).update(address, city, state, zip, phone);
-            changedSinceLastSave = true;
-            setChanged();
-            notifyObservers();
+            Person person = current.get(index);
+            Person updated = person.update(address, city, state, zip, phone);
+            publish(current.getPersons().set(index, updated),
+                    Collections.singletonList(person), new int [] { index },
+                    Collections.singletonList(updated), new int [] { index });
         }
         else
             throw new IllegalArgumentException("No such person");
@@ -132,38 +311,260 @@ public class AddressBook extends Observable implements Serializable
      *
      *  @exception IllegalArgumentException if the specified person does not exist
      */
-    public void removePerson(String name) throws IllegalArgumentException
+    public synchronized void removePerson(String name) 
+        throws IllegalArgumentException
     {
-        int index = findIndex(name);
+        int index = findIndex(current, name);
         if (index >= 0)
         {
-            collection.removeElementAt(index);
-            changedSinceLastSave = true;
-            setChanged();
-            notifyObservers();
+            publish(current.getPersons().remove(index),
+                    Collections.singletonList(current.get(index)), 
+                    new int [] { index }, NONE, NOWHERE);
         }
         else
             throw new IllegalArgumentException("No such person");
     }
     
+    /** Change every person matching a query.  The persons are found
+     *  through the book's indexes where the query allows, and changed as
+     *  applyChanges() describes: it is a single change as far as undo, the
+     *  change feed and subscribers are concerned
+     *
+     *  @param query the persons to change
+     *  @param transformer says how to change each of them
+     *  @return the number of persons changed
+     *
+     *  @exception IllegalArgumentException if the transformer tries to change
+     *             a person's name.  The book is then left as it was
+     */
+    public synchronized int updateWhere(Query query, PersonTransformer transformer)
+        throws IllegalArgumentException
+    {
+        Map<Person, Person> changes = new IdentityHashMap<Person, Person>();
+        for (Person person : find(query))
+        {
+            Person updated = transformer.transform(person);
+            if (updated == null || updated == person)
+                continue;
+            if (! updated.getFullName().equals(person.getFullName()))
+                throw new IllegalArgumentException("Cannot change the name of " +
+                    person.getFullName() + " to " + updated.getFullName());
+            changes.put(person, updated);
+        }
+        if (changes.isEmpty())
+            return 0;
+
+        return applyChanges(changes, NONE);
+    }
+    
+    /** Change every person matching a query
+     *
+     *  @param query the text of the query - see Query for the language
+     *  @param transformer says how to change each person
+     *  @return the number of persons changed
+     *
+     *  @exception IllegalArgumentException if the query is not valid, or the
+     *             transformer tries to change a person's name
+     */
+    public int updateWhere(String query, PersonTransformer transformer)
+        throws IllegalArgumentException
+    {
+        return updateWhere(Query.parse(query), transformer);
+    }
+    
+    /** Remove every person matching a query.  The persons are found
+     *  through the book's indexes where the query allows, and removed as
+     *  applyChanges() describes: it is a single change as far as undo, the
+     *  change feed and subscribers are concerned
+     *
+     *  @param query the persons to remove
+     *  @return the number of persons removed
+     */
+    public synchronized int removeWhere(Query query)
+    {
+        Map<Person, Person> changes = new IdentityHashMap<Person, Person>();
+        for (Person person : find(query))
+            changes.put(person, null);
+        return applyChanges(changes, NONE);
+    }
+    
+    /** Remove every person matching a query
+     *
+     *  @param query the text of the query - see Query for the language
+     *  @return the number of persons removed
+     *
+     *  @exception IllegalArgumentException if the query is not valid
+     */
+    public int removeWhere(String query) throws IllegalArgumentException
+    {
+        return removeWhere(Query.parse(query));
+    }
+    
+    /** Make several changes to the book as a single change as far as undo,
+     *  the change feed and subscribers are concerned: persons replaced or
+     *  removed, and persons added at the end.  Each replacement or removal
+     *  is made in place in the book's list, so the new version shares all
+     *  but O(k log n) of its structure with the old; only if a large part of
+     *  the book changes is the list built afresh
+     *
+     *  @param changes for each person in the book to change, the person to
+     *         put in its place, or null to remove it.  Persons not in the
+     *         book are left out
+     *  @param additions the persons to add, in order.  Those whose names
+     *         are in the book and not being removed (or earlier in the list)
+     *         are left out
+     *  @return the number of persons replaced, removed and added
+     */
+    public synchronized int applyChanges(Map<Person, Person> changes,
+                                         Collection<Person> additions)
+    {
+        // Find where the persons to change are, in one pass over the book
+        int [] positions = new int[changes.size()];
+        Person [] targets = new Person[changes.size()];
+        int found = 0;
+        Set<String> freed = new HashSet<String>();
+        if (! changes.isEmpty())
+        {
+            int i = 0;
+            for (Iterator<Person> iterator = current.iterator();
+                 found < changes.size() && iterator.hasNext(); i ++)
+            {
+                Person person = iterator.next();
+                if (changes.containsKey(person))
+                {
+                    positions[found] = i;
+                    targets[found ++] = person;
+                    if (changes.get(person) == null)
+                        freed.add(person.getFullName());
+                }
+            }
+        }
+
+        // Each replacement ends up as many places earlier as there are
+        // persons removed before it
+        List<Person> removed = new ArrayList<Person>(found);
+        List<Person> added = new ArrayList<Person>(found + additions.size());
+        int [] addedAt = new int[found + additions.size()];
+        for (int j = 0; j < found; j ++)
+        {
+            removed.add(targets[j]);
+            if (changes.get(targets[j]) != null)
+            {
+                int removedBefore = removed.size() - 1 - added.size();
+                addedAt[added.size()] = positions[j] - removedBefore;
+                added.add(changes.get(targets[j]));
+            }
+        }
+        List<Person> appended = new ArrayList<Person>();
+        Set<String> names = new HashSet<String>();
+        for (Person person : additions)
+        {
+            String name = person.getFullName();
+            if ((findPerson(name) == null || freed.contains(name)) && 
+                names.add(name))
+                appended.add(person);
+        }
+        if (found == 0 && appended.isEmpty())
+            return 0;
+        int end = current.size() - found + added.size();
+        for (int k = 0; k < appended.size(); k ++)
+            addedAt[added.size() + k] = end + k;
+        added.addAll(appended);
+
+        PersistentList<Person> result;
+        if (rebuild(found))
+        {
+            List<Person> kept = new ArrayList<Person>(current.size());
+            int next = 0;
+            int i = 0;
+            for (Person person : current)
+            {
+                if (next < found && positions[next] == i)
+                {
+                    Person replacement = changes.get(targets[next ++]);
+                    if (replacement != null)
+                        kept.add(replacement);
+                }
+                else
+                    kept.add(person);
+                i ++;
+            }
+            result = PersistentList.of(kept.toArray(new Person[kept.size()]));
+        }
+        else
+        {
+            // Last first, so that each position is still right when reached
+            result = current.getPersons();
+            for (int j = found - 1; j >= 0; j --)
+            {
+                Person replacement = changes.get(targets[j]);
+                result = replacement == null ? result.remove(positions[j])
+                                             : result.set(positions[j], replacement);
+            }
+        }
+        result = result.addAll(appended.toArray(new Person[appended.size()]));
+        publish(result, removed, Arrays.copyOf(positions, found),
+                added, Arrays.copyOf(addedAt, added.size()));
+        return found + appended.size();
+    }
+    
     /** Sort the collection by name
      */
-    public void sortByName()
+    public synchronized void sortByName()
     {
-        Collections.sort(collection, new Person.CompareByName());
-        changedSinceLastSave = true;
-        setChanged();
-        notifyObservers();
+        sort(new Person.CompareByName(), "name");
     }
     
     /** Sort the collection by ZIP
      */
-    public void sortByZip()
+    public synchronized void sortByZip()
     {
-        Collections.sort(collection, new Person.CompareByZip());
-        changedSinceLastSave = true;
-        setChanged();
-        notifyObservers();
+        sort(new Person.CompareByZip(), "zip");
+    }
+    
+    /** Undo the most recent change that has not already been undone
+     *
+     *  @exception IllegalStateException if there is nothing to undo
+     */
+    public synchronized void undo() throws IllegalStateException
+    {
+        restore(history.undo(), false);
+    }
+    
+    /** Redo the most recently undone change
+     *
+     *  @exception IllegalStateException if there is nothing to redo
+     */
+    public synchronized void redo() throws IllegalStateException
+    {
+        restore(history.redo(), true);
+    }
+    
+    /** Find out whether there is a change that can be undone
+     *
+     *  @return true if undo() can be called
+     */
+    public synchronized boolean canUndo()
+    {
+        return history.canUndo();
+    }
+    
+    /** Find out whether there is an undone change that can be redone
+     *
+     *  @return true if redo() can be called
+     */
+    public synchronized boolean canRedo()
+    {
+        return history.canRedo();
+    }
+    
+    /** Change how many changes are remembered for undoing
+     *
+     *  @param depth the greatest number of changes to remember
+     */
+    public synchronized void setUndoDepth(int depth)
+    {
+        history.setDepth(depth);
     }
     
     /** Search the collection for a person matching given criteria
@@ -175,12 +576,303 @@ public class AddressBook extends Observable implements Serializable
      */
     public int search(String criterion, int startingIndex)
     {
-        for (int i = startingIndex; i < collection.size(); i ++)
-            if (collection.elementAt(i).contains(criterion))
+        return search(new SearchCriterion(criterion, SearchOptions.EXACT),
+                      startingIndex);
+    }
+    
+    /** Search the collection for a person a filter picks out - for example
+     *  a SearchCriterion, which can ignore case and accents, match whole
+     *  words, or look at only some fields, or a RegexCriterion
+     * 
+     *  @param filter the filter for the search
+     *  @param startingIndex the position to start the search from
+     *  @return the index of the first person at or after startingIndex which
+     *          the filter picks out, or -1 if there is no such person
+     */
+    public int search(PersonFilter filter, int startingIndex)
+    {
+        Iterator<Person> persons = current.iterator(startingIndex);
+        for (int i = Math.max(startingIndex, 0); persons.hasNext(); i ++)
+            if (filter.matches(persons.next()))
                 return i;
         return -1;
     }
     
+    /** Open a cursor over the persons a filter picks out.  Unlike a
+     *  position returned by search(), the cursor stays valid while the
+     *  book is changed - see SearchCursor for how it sees changes
+     *
+     *  @param filter the filter - for example a SearchCriterion
+     *  @param startingIndex the position to start from
+     *  @return the cursor
+     */
+    public SearchCursor openSearch(PersonFilter filter, int startingIndex)
+    {
+        return new SearchCursor(this, filter, startingIndex);
+    }
+    
+    /** Find every person matching a regular expression.  If the expression
+     *  gives a condition an index can answer (see
+     *  RegexCriterion.getIndexCondition()), only the persons the index picks
+     *  out are tested, and they are returned in the index's order.
+     *  Otherwise every person is tested - a large book in parallel, in
+     *  pieces - and they are returned in the order of the book
+     *
+     *  @param criterion the criterion
+     *  @return the matching persons
+     */
+    public List<Person> findMatching(final RegexCriterion criterion)
+    {
+        List<Person> candidates = indexCandidates(criterion);
+        if (candidates != null)
+        {
+            List<Person> result = new ArrayList<Person>();
+            for (Person person : candidates)
+                if (criterion.matches(person))
+                    result.add(person);
+            return result;
+        }
+
+        final BookSnapshot snapshot = current;
+        List<Callable<List<Person>>> tasks = new ArrayList<Callable<List<Person>>>();
+        for (int start = 0; start < snapshot.size(); start += SCAN_CHUNK)
+        {
+            final int from = start;
+            final int to = Math.min(start + SCAN_CHUNK, snapshot.size());
+            tasks.add(new Callable<List<Person>>() {
+                public List<Person> call()
+                {
+                    List<Person> found = new ArrayList<Person>();
+                    Iterator<Person> persons = snapshot.iterator(from);
+                    for (int i = from; i < to; i ++)
+                    {
+                        Person person = persons.next();
+                        if (criterion.matches(person))
+                            found.add(person);
+                    }
+                    return found;
+                }
+            });
+        }
+
+        List<List<Person>> parts;
+        try
+        {
+            // One piece is not worth handing to another thread
+            if (tasks.size() == 1)
+                parts = Collections.singletonList(tasks.get(0).call());
+            else
+                parts = BookExecutors.invokeAll(tasks);
+        }
+        catch(RuntimeException e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            throw new IllegalStateException(e);
+        }
+        List<Person> result = new ArrayList<Person>();
+        for (List<Person> part : parts)
+            result.addAll(part);
+        return result;
+    }
+    
+    /** Find the persons matching a structured query
+     *
+     *  @param query the text of the query - see Query for the language
+     *  @return a cursor over the matching persons
+     *
+     *  @exception IllegalArgumentException if the query is not valid
+     */
+    public QueryCursor query(String query)
+    {
+        return Query.parse(query).execute(this);
+    }
+    
+    /** Subscribe a listener to be told about changes to this book as soon
+     *  as possible
+     *
+     *  @param listener the listener
+     *  @return the subscription, which can be cancelled
+     */
+    public BookEventBus.Subscription subscribe(BookListener listener)
+    {
+        return events.subscribe(listener);
+    }
+    
+    /** Subscribe a listener to be told about changes to this book - see
+     *  BookEventBus.subscribe()
+     *
+     *  @param listener the listener
+     *  @param coalesceMillis how long to gather changes into one event
+     *  @param capacity the most persons to keep waiting for the listener
+     *  @param onEventThread true to tell the listener on the AWT event
+     *         dispatch thread
+     *  @return the subscription, which can be cancelled
+     */
+    public BookEventBus.Subscription subscribe(BookListener listener,
+                                               long coalesceMillis,
+                                               int capacity,
+                                               boolean onEventThread)
+    {
+        return events.subscribe(listener, coalesceMillis, capacity,
+                                onEventThread);
+    }
+    
+    /** Get the feed of changes made to this book, for keeping a copy of it
+     *  up to date
+     *
+     *  @return the change feed
+     */
+    public ChangeFeed getChangeFeed()
+    {
+        return feed;
+    }
+    
+    /** Get the indexes maintained for this address book, for use in
+     *  planning queries
+     *
+     *  @return the indexes - possibly none
+     */
+    List<FieldIndex> getIndexes()
+    {
+        return builtIndexes().getAll();
+    }
+    
+    /** Get the indexes maintained for this address book as they are,
+     *  without building any that are deferred - for measuring them
+     *
+     *  @return the indexes
+     */
+    BookIndexes getBookIndexes()
+    {
+        return indexes;
+    }
+    
+    /** Get the changes that can be undone and redone - for measuring them
+     *
+     *  @return the history.  The caller must hold the lock on this book
+     *          while using it
+     */
+    UndoHistory getHistory()
+    {
+        return history;
+    }
+    
+    /** Find the persons whose ZIP lies in a range
+     *
+     *  @param low the lowest ZIP wanted
+     *  @param high the highest ZIP wanted
+     *  @return the persons with ZIPs from low to high inclusive, in order
+     *          of ZIP
+     */
+    public List<Person> findByZipRange(String low, String high)
+    {
+        return builtIndexes().getZipIndex().getRange(low, true, high, true);
+    }
+    
+    /** Find the persons whose ZIP starts with a given prefix
+     *
+     *  @param prefix the prefix, e.g. "019"
+     *  @return the persons found, in order of ZIP
+     */
+    public List<Person> findByZipPrefix(String prefix)
+    {
+        return builtIndexes().getZipIndex().getPrefix(prefix);
+    }
+    
+    /** Find the persons in a given city
+     *
+     *  @param city the city
+     *  @return the persons in that city
+     */
+    public List<Person> findByCity(String city)
+    {
+        return builtIndexes().getCityIndex().get(city);
+    }
+    
+    /** Find the persons in a given state
+     *
+     *  @param state the state
+     *  @return the persons in that state
+     */
+    public List<Person> findByState(String state)
+    {
+        return builtIndexes().getStateIndex().get(state);
+    }
+    
+    /** Give the locations of ZIP codes, so that persons can be found by
+     *  distance with findWithinRadius() and findNearest().  The persons are
+     *  then indexed by location, and kept so as the book changes
+     *
+     *  @param centroids the locations of ZIPs, or null to stop indexing
+     */
+    public synchronized void setZipCentroids(ZipCentroids centroids)
+    {
+        indexes.setProximityIndex(
+            centroids == null ? null : new ProximityIndex(centroids), current);
+    }
+    
+    /** Find the persons within a given distance of a ZIP
+     *
+     *  @param zip the ZIP to measure from
+     *  @param miles the distance
+     *  @return the persons whose ZIPs' centres are within that distance of
+     *          the centre of zip, nearest first
+     *
+     *  @exception IllegalStateException if no ZIP locations have been given
+     *  @exception IllegalArgumentException if the location of zip is not known
+     */
+    public List<Person> findWithinRadius(String zip, double miles)
+    {
+        return proximityIndex().withinRadius(zip, miles);
+    }
+    
+    /** Find the persons nearest a ZIP
+     *
+     *  @param zip the ZIP to measure from
+     *  @param count the number of persons wanted
+     *  @return the persons whose ZIPs' centres are nearest the centre of zip,
+     *          nearest first
+     *
+     *  @exception IllegalStateException if no ZIP locations have been given
+     *  @exception IllegalArgumentException if the location of zip is not known
+     */
+    public List<Person> findNearest(String zip, int count)
+    {
+        return proximityIndex().nearest(zip, count);
+    }
+    
+    /** Find a person with a given phone number, however it is written -
+     *  e.g. "(978) 927-2300" finds a person entered as "978-927-2300".  This
+     *  takes constant time and creates no objects
+     *
+     *  @param phone the phone number
+     *  @return a person with that number, or null if there is none
+     */
+    public Person findByPhone(CharSequence phone)
+    {
+        return builtIndexes().getPhoneIndex().getFirst(
+            PhoneIndex.normalize(phone));
+    }
+    
+    /** Find every person with a given phone number, however it is written
+     *
+     *  @param phone the phone number
+     *  @return the persons with that number
+     */
+    public List<Person> findAllByPhone(CharSequence phone)
+    {
+        PhoneIndex index = builtIndexes().getPhoneIndex();
+        long number = PhoneIndex.normalize(phone);
+        Person [] result = new Person[4];
+        int count;
+        while ((count = index.get(number, result)) > result.length)
+            result = new Person[count];
+        return Arrays.asList(result).subList(0, count);
+    }
+    
     /** Get the File this address book was most recently read from or saved to
      *
      *  @return the most recent File - if any - null if none
@@ -217,15 +909,23 @@ public class AddressBook extends Observable implements Serializable
      */
     public void printMailingLabels(PrintWriter writer)
     {
-        for (int i = 0; i < collection.size(); i ++)
-        {
-            Person person = collection.elementAt(i);
-            writer.println(person.getFullName());
-            writer.println(person.getAddress());
-            writer.println(person.getCity() + " " + person.getState() + " " +
-                               person.getZip());
-            writer.println();
-        }
+        for (Person person : current)
+            printMailingLabel(writer, person);
+    }
+    
+    /** Print the mailing label for one person - the way both
+     *  printMailingLabels and LabelJob print them
+     *
+     *  @param writer the writer to print to
+     *  @param person the person
+     */
+    static void printMailingLabel(PrintWriter writer, Person person)
+    {
+        writer.println(person.getFullName());
+        writer.println(person.getAddress());
+        writer.println(person.getCity() + " " + person.getState() + " " +
+                           person.getZip());
+        writer.println();
     }
     
     /** Find out whether this address book has been changed since last open / save
@@ -246,33 +946,303 @@ public class AddressBook extends Observable implements Serializable
         changedSinceLastSave = false;
     }
     
+    /** Auxiliary to various methods - publish a new snapshot of the
+     *  collection, bring the indexes up to date, and record the change for
+     *  undoing.  Must be called while holding the lock on this book
+     *
+     *  @param persons the persons in the new snapshot
+     *  @param removed the persons the change took out of the book
+     *  @param removedAt where each of them was, in the old snapshot
+     *  @param added the persons the change put into the book
+     *  @param addedAt where each of them is, in the new snapshot
+     */
+    private void publish(PersistentList<Person> persons,
+                         List<Person> removed,
+                         int [] removedAt,
+                         List<Person> added,
+                         int [] addedAt)
+    {
+        UndoHistory.Step step = new UndoHistory.Step(current.getPersons(), 
+            persons, removed, removedAt, added, addedAt, null);
+        history.record(step);
+        restore(step, true);
+    }
+    
+    /** Auxiliary to sortByName and sortByZip - put the persons in order,
+     *  recording the change for undoing.  Must be called while holding the
+     *  lock on this book
+     *
+     *  @param comparator the order to put them in
+     *  @param order the name of the field sorted on, for the change feed
+     */
+    private void sort(Comparator<Person> comparator, String order)
+    {
+        Person [] persons = current.toArray();
+        Arrays.sort(persons, comparator);
+        UndoHistory.Step step = new UndoHistory.Step(current.getPersons(), 
+            PersistentList.of(persons), NONE, NOWHERE, NONE, NOWHERE, order);
+        history.record(step);
+        restore(step, true);
+    }
+    
+    /** Auxiliary to publish, sort, undo and redo - make a change, or take it
+     *  back: make the list of persons from one side of the change current,
+     *  bring the indexes up to date, mark the book as changed, record the
+     *  change in the feed and tell the subscribers.  Must be called while
+     *  holding the lock on this book
+     *
+     *  @param step the change
+     *  @param forward true to make the change, false to take it back
+     */
+    private void restore(UndoHistory.Step step, boolean forward)
+    {
+        List<Person> removed = forward ? step.removed : step.added;
+        int [] removedAt = forward ? step.removedAt : step.addedAt;
+        List<Person> added = forward ? step.added : step.removed;
+        int [] addedAt = forward ? step.addedAt : step.removedAt;
+
+        // Sorting again gives the order after a sort; the order before it is
+        // given by where each person was
+        int [] previousPositions = null;
+        if (step.order != null && ! forward)
+            previousPositions = positionsIn(step.after, step.before);
+
+        current = new BookSnapshot(current.getVersion() + 1, 
+                                   forward ? step.after : step.before);
+        for (Person person : removed)
+            indexes.remove(person);
+        for (Person person : added)
+            indexes.add(person);
+        changedSinceLastSave = true;
+        feed.record(current.getVersion(), removed, removedAt, added, addedAt,
+                    forward ? step.order : null, previousPositions);
+        events.publish(current.getVersion(), removed, added);
+    }
+    
+    /** Auxiliary to restore - find where each person of a reordered list
+     *  was in the list before
+     *
+     *  @param before the list before
+     *  @param after the same persons in another order
+     *  @return for each position in after, the position in before of the
+     *          person there
+     */
+    private static int [] positionsIn(PersistentList<Person> before,
+                                      PersistentList<Person> after)
+    {
+        Map<Person, Integer> positions = 
+            new IdentityHashMap<Person, Integer>(before.size());
+        int i = 0;
+        for (Person person : before)
+            positions.put(person, i ++);
+        int [] result = new int[after.size()];
+        i = 0;
+        for (Person person : after)
+            result[i ++] = positions.get(person);
+        return result;
+    }
+    
+    /** Auxiliary to findMatching - get the persons an index picks out for
+     *  a regular expression
+     *
+     *  @param criterion the criterion
+     *  @return the candidates, or null if no index can pick them out
+     */
+    private List<Person> indexCandidates(RegexCriterion criterion)
+    {
+        Query.Condition condition = criterion.getIndexCondition();
+        if (condition == null)
+            return null;
+        for (FieldIndex index : getIndexes())
+        {
+            if (index.getField() != condition.getField() ||
+                index.estimate(condition) < 0)
+                continue;
+            // Under the lock, so that the index does not change while it
+            // is read
+            synchronized(this)
+            {
+                List<Person> result = new ArrayList<Person>();
+                Iterator<Person> persons = index.lookup(condition);
+                while (persons.hasNext())
+                    result.add(persons.next());
+                return result;
+            }
+        }
+        return null;
+    }
+    
+    /** Auxiliary to updateWhere and removeWhere - find the persons matching
+     *  a query.  Must be called while holding the lock on this book, so that
+     *  the indexes agree with the current snapshot
+     *
+     *  @param query the query
+     *  @return the persons, each once
+     */
+    private List<Person> find(Query query)
+    {
+        QueryCursor cursor = query.execute(this);
+        List<Person> result = new ArrayList<Person>();
+        while (cursor.hasNext())
+            result.add(cursor.next());
+        return result;
+    }
+    
+    /** Auxiliary to the methods that use the field indexes - build them if
+     *  they have been deferred.  They are built under the lock on this book,
+     *  so that no change is missed while they are being built
+     *
+     *  @return the indexes, with the field indexes built
+     */
+    private BookIndexes builtIndexes()
+    {
+        if (indexes.isDeferred())
+        {
+            synchronized(this)
+            {
+                if (indexes.isDeferred())
+                    indexes.build(current);
+            }
+        }
+        return indexes;
+    }
+    
+    /** Auxiliary to findWithinRadius and findNearest - get the index of
+     *  persons by location
+     *
+     *  @exception IllegalStateException if there is none
+     */
+    private ProximityIndex proximityIndex()
+    {
+        ProximityIndex result = builtIndexes().getProximityIndex();
+        if (result == null)
+            throw new IllegalStateException("ZIP locations have not been given");
+        return result;
+    }
+    
+    /** Auxiliary to applyChanges - decide whether to build
+     *  the changed list afresh rather than change the current one in place
+     *
+     *  @param changes the number of persons changed or removed
+     *  @return true if so many change that building a list in O(n) is
+     *          cheaper than O(log n) for each
+     */
+    private boolean rebuild(int changes)
+    {
+        return changes > current.size() / REBUILD_FRACTION;
+    }
+    
     /** Auxiliary to various methods - get the Person object from the collection
      *  that corresponds to a given name
      *
+     *  @param snapshot the snapshot of the collection to look in
      *  @param name the desired name
      *  @return the index where the corresponding person occurs, or -1 if the
      *          person does not occur
      */
-    private int findIndex(String name)
+    private static int findIndex(BookSnapshot snapshot, String name)
     {
-        for (int i = 0; i < collection.size(); i ++)
+        int i = 0;
+        for (Person person : snapshot)
         {
-            Person person = collection.elementAt(i);
             if (person.getFullName().equals(name))
                 return i;
+            i ++;
         }
         
         return -1;
     }
     
-    // The collection of persons is stored in a vector
+    /** Save an address book to a file.  The current snapshot is written in
+     *  the form used before snapshots were introduced - as a vector named
+     *  collection - so that files are the same as they always were
+     */
+    private void writeObject(ObjectOutputStream stream) throws IOException
+    {
+        ObjectOutputStream.PutField fields = stream.putFields();
+        fields.put("collection", new Vector<Person>(current.asList()));
+        fields.put("file", file);
+        fields.put("changedSinceLastSave", changedSinceLastSave);
+        stream.writeFields();
+    }
     
-    private Vector<Person> collection;
+    /** Restore an address book read from a file - the indexes are not
+     *  stored, so they must be built again from the collection
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream stream) throws IOException,
+                                                           ClassNotFoundException
+    {
+        ObjectInputStream.GetField fields = stream.readFields();
+        Vector<Person> collection = 
+            (Vector<Person>) fields.get("collection", null);
+        file = (File) fields.get("file", null);
+        changedSinceLastSave = fields.get("changedSinceLastSave", false);
+        current = new BookSnapshot(0, 
+            PersistentList.of(collection.toArray(new Person[0])));
+        indexes = new BookIndexes();
+        indexes.rebuild(current);
+        history = new UndoHistory(DEFAULT_UNDO_DEPTH);
+        events = new BookEventBus(this);
+        feed = new ChangeFeed(FEED_ENTRIES, FEED_BYTES);
+    }
+    
+    // Files written before this class declared a serialVersionUID use
+    // the one computed for it then
+    
+    private static final long serialVersionUID = -5301954187867637062L;
+    
+    // The fields written to a file - see writeObject
+    
+    private static final ObjectStreamField [] serialPersistentFields =
+        { new ObjectStreamField("collection", Vector.class),
+          new ObjectStreamField("file", File.class),
+          new ObjectStreamField("changedSinceLastSave", Boolean.TYPE) };
+    
+    // The collection of persons is stored as a series of snapshots, of
+    // which this is the latest
+    
+    private transient volatile BookSnapshot current;
+    
+    // Secondary indexes on the collection - rebuilt when a book is read
+    
+    private transient BookIndexes indexes;
+    
+    // The changes that can be undone and redone
+    
+    private transient UndoHistory history;
+    private static final int DEFAULT_UNDO_DEPTH = 100;
+    private static final List<Person> NONE = Collections.emptyList();
+    private static final int [] NOWHERE = new int[0];
+    
+    // The listeners to tell about changes
+    
+    private transient BookEventBus events;
+    
+    // The recent changes, for programs that keep copies of the book
+    
+    private transient ChangeFeed feed;
+    private static final int FEED_ENTRIES = 10000;
+    private static final long FEED_BYTES = 16L << 20;
+    
+    // How many persons findMatching tests in each piece of a scan
+    
+    private static final int SCAN_CHUNK = 65536;
+    
+    // Bulk changes to more than this fraction of the book build a new list
+    // rather than changing the current one in place
+    
+    private static final int REBUILD_FRACTION = 8;
     
     // Other information that must be maintained
     
-    private File file;
-    private boolean changedSinceLastSave;
+    private volatile File file;
+    private volatile boolean changedSinceLastSave;
+    
+    // What the persons of a lazily read book are read from - null for
+    // other books
+    
+    private transient volatile Closeable source;
     
     // Method to facilitate testing
     
@@ -20,16 +20,47 @@ public class AddressBookApplication
         new AddressBookApplication();
     }
     
-    /** Constructor - create the objects which do all the work.
+    /** Constructor - create the objects which do all the work.  The window
+     *  is shown first, and the book last used is then read in the background
      */    
     private AddressBookApplication()
     {
         fileSystem = new FileSystem();
         controller = new AddressBookController(fileSystem);                
+        mark("window shown");
+        controller.doOpenLast();
+    }
+    
+    /** Report the time since the program started at some point in starting
+     *  up, if the property addressbook.timing is true
+     *
+     *  @param event what has just happened
+     */
+    static void mark(String event)
+    {
+        if (TIMING)
+            System.err.printf("%s: %.1f ms%n", event, 
+                              (System.nanoTime() - START) / 1e6);
+    }
+    
+    /** Note that starting up is complete.  If the property
+     *  addressbook.exitAfterStartup is true, the program then exits - this
+     *  is used to record the classes loaded at startup for the class data
+     *  sharing archive (see the cds-archive target in build.xml)
+     */
+    static void startupDone()
+    {
+        if (Boolean.getBoolean("addressbook.exitAfterStartup"))
+            System.exit(0);
     }
     
     private FileSystem fileSystem;
     private AddressBookController controller;
+    
+    // For measuring how long starting up takes
+    
+    private static final long START = System.nanoTime();
+    private static final boolean TIMING = Boolean.getBoolean("addressbook.timing");
 }
 
     
@@ -11,8 +11,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.FileWriter;
 import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.prefs.Preferences;
 import javax.swing.JOptionPane;
 import javax.swing.JFileChooser;
+import javax.swing.SwingWorker;
 
 /** An object of this class performs operations on the address book in
  *  response to user gestures on the GUI
@@ -28,6 +32,7 @@ public class AddressBookController
     public AddressBookController(FileSystem fileSystem)
     {
         this.fileSystem = fileSystem;
+        this.workspace = new Workspace(fileSystem, WORKSPACE_BUDGET);
         this.gui = new AddressBookGUI(this);
         gui.setAddressBook(new AddressBook());
         gui.setVisible(true);
@@ -145,18 +150,35 @@ public class AddressBookController
         gui.getAddressBook().sortByZip(); 
     }
     
+    /** Do the Undo Use Case
+     */
+    public void doUndo()
+    {
+        if (gui.getAddressBook().canUndo())
+            gui.getAddressBook().undo();
+    }
+    
+    /** Do the Redo Use Case
+     */
+    public void doRedo()
+    {
+        if (gui.getAddressBook().canRedo())
+            gui.getAddressBook().redo();
+    }
+    
     /** Do the Find Use Case
      *
      *  @param startingIndex the first position in the address book to consider
      */
     public void doFind(int startingIndex)
     {
-        lastSearchCriterion = JOptionPane.showInputDialog(gui, "Search for?");
-        if (lastSearchCriterion != null)
+        SearchCriterion criterion = gui.askSearchCriterion(lastSearchCriterion);
+        if (criterion != null)
         {
-            lastSearchResult = gui.getAddressBook().search(lastSearchCriterion, 
-                                                           startingIndex);
-            gui.searchFound(lastSearchResult);
+            lastSearchCriterion = criterion;
+            lastSearch = gui.getAddressBook().openSearch(criterion, 
+                                                         startingIndex);
+            showNextFound();
         }
     }
     
@@ -164,15 +186,26 @@ public class AddressBookController
      */
     public void doFindAgain()
     {
-        if (lastSearchResult < 0)
+        if (lastSearch == null || 
+            lastSearch.getAddressBook() != gui.getAddressBook())
             doFind(-1);
+        else
+            showNextFound();
+    }   
+    
+    /** Auxiliary to doFind and doFindAgain - show the next person the last
+     *  search finds, or that there is none
+     */
+    private void showNextFound()
+    {
+        if (lastSearch.hasNext())
+            gui.searchFound(lastSearch.next().getFullName());
         else
         {
-            lastSearchResult = gui.getAddressBook().search(lastSearchCriterion,
-                                                           lastSearchResult + 1);
-            gui.searchFound(lastSearchResult);
+            lastSearch = null;
+            gui.searchFound(null);
         }
-    }   
+    }
     
     /** Do the Create New Address Book Use Case
      */
@@ -202,10 +235,157 @@ public class AddressBookController
 		if (chooser.showOpenDialog(gui) == JFileChooser.APPROVE_OPTION)
 		{
 			File toOpen = chooser.getSelectedFile();
-			gui.setAddressBook(fileSystem.readFile(toOpen));
+			gui.setAddressBook(workspace.open(toOpen));
+			rememberLastBook(toOpen);
 		}
      }
 
+    /** Do the Reopen Last Address Book Use Case, which is done when the
+     *  program starts.  The book that was last opened or saved is read in
+     *  the background, with the window already showing; the first names
+     *  read are shown as soon as they are available, and the whole book
+     *  when it has been read.  Nothing happens if there is no such book,
+     *  and the book is not shown if the user has begun work on the empty
+     *  one meanwhile
+     */
+    public void doOpenLast()
+    {
+        String path = preferences.get(LAST_BOOK_KEY, null);
+        if (path == null || ! new File(path).isFile())
+        {
+            AddressBookApplication.startupDone();
+            return;
+        }
+        final File toOpen = new File(path);
+        final AddressBook placeholder = gui.getAddressBook();
+        
+        new SwingWorker<AddressBook, String>() {
+            protected AddressBook doInBackground() throws Exception
+            {
+                return workspace.open(toOpen, new FileSystem.ReadListener() {
+                    public void personsRead(List<Person> persons)
+                    {
+                        // Only the first screenful is shown early; showing
+                        // more would only slow the reading down
+                        for (Person person : persons)
+                        {
+                            if (published >= FIRST_SCREENFUL)
+                                return;
+                            publish(person.getFullName());
+                            published ++;
+                        }
+                    }
+                });
+            }
+            
+            protected void process(List<String> names)
+            {
+                if (gui.getAddressBook() == placeholder && 
+                    ! placeholder.getChangedSinceSaved())
+                {
+                    gui.showNamesRead(names);
+                    if (! shown)
+                        AddressBookApplication.mark("first names shown");
+                    shown = true;
+                }
+            }
+            
+            protected void done()
+            {
+                try
+                {
+                    AddressBook addressBook = get();
+                    if (gui.getAddressBook() == placeholder && 
+                        ! placeholder.getChangedSinceSaved())
+                        gui.setAddressBook(addressBook);
+                    AddressBookApplication.mark("book loaded");
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                catch(ExecutionException e)
+                {
+                    preferences.remove(LAST_BOOK_KEY);
+                    gui.reportError("Problem reading the file: " + 
+                                    e.getCause());
+                }
+                AddressBookApplication.startupDone();
+            }
+            
+            private int published;
+            private boolean shown;
+        }.execute();
+    }
+
+    /** Do the Open Recent Address Book Use Case - switch to a book that was
+     *  opened earlier.  If its file has not changed since, the book is
+     *  still in memory and is not read again
+     *
+     *  @param toOpen the file of the book to switch to
+     */
+    public void doOpenRecent(File toOpen) throws IOException, 
+                                                 ClassNotFoundException
+    {
+        if (gui.getAddressBook().getChangedSinceSaved())
+        {
+            if (doOfferSaveChanges() != PROCEED)
+                return;
+        }
+        gui.setAddressBook(workspace.open(toOpen));
+        rememberLastBook(toOpen);
+    }
+
+    /** Get the files of the books that have been opened recently and are
+     *  still in memory
+     *
+     *  @return the files, most recently used first
+     */
+    public List<File> getRecentFiles()
+    {
+        return workspace.getOpenFiles();
+    }
+
+    /** Do the Import Persons Use Case - add the persons in a CSV or vCard
+     *  file to the current address book
+     *
+     *  @exception IOException if there is a problem reading the file
+     */
+    public void doImport() throws IOException
+    {
+        JFileChooser chooser = 
+            new JFileChooser(fileSystem.getDefaultDirectory());
+        if (chooser.showDialog(gui, "Import") == JFileChooser.APPROVE_OPTION)
+        {
+            File toImport = chooser.getSelectedFile();
+            BookImporter.Result result = 
+                new BookImporter(gui.getAddressBook()).importFile(
+                    toImport, BookImporter.formatOf(toImport));
+            JOptionPane.showMessageDialog(gui,
+                result.getAdded() + " added, " + 
+                result.getDuplicates() + " already in the list, " +
+                result.getRejected() + " not understood",
+                "Import complete", JOptionPane.INFORMATION_MESSAGE);
+        }
+    }
+
+    /** Do the Export Persons Use Case - write the persons in the current
+     *  address book to a CSV or JSON Lines file
+     *
+     *  @exception IOException if there is a problem writing the file
+     */
+    public void doExport() throws IOException
+    {
+        JFileChooser chooser = 
+            new JFileChooser(fileSystem.getDefaultDirectory());
+        if (chooser.showDialog(gui, "Export") == JFileChooser.APPROVE_OPTION)
+        {
+            File toExport = chooser.getSelectedFile();
+            BookExporter.export(gui.getAddressBook(), toExport,
+                                BookExporter.formatOf(toExport));
+        }
+    }
+
     /** Do the Save Address Book Use Case
      *
      *  @return true if the save operation completed successfully
@@ -217,7 +397,8 @@ public class AddressBookController
             return doSaveAs();
         else
         {
-            fileSystem.saveFile(gui.getAddressBook(), file);
+            workspace.save(gui.getAddressBook(), file);
+            rememberLastBook(file);
             return true;
         }
     }
@@ -232,13 +413,23 @@ public class AddressBookController
         if (chooser.showSaveDialog(gui) == JFileChooser.APPROVE_OPTION)
         {
             File saveTo = chooser.getSelectedFile();
-            fileSystem.saveFile(gui.getAddressBook(), saveTo);
+            workspace.save(gui.getAddressBook(), saveTo);
+            rememberLastBook(saveTo);
             return true;
         }
         else
             return false;
     }
     
+    /** Do the Choose File Format Use Case
+     *
+     *  @param format the format books should be saved in from now on
+     */
+    public void doSetFormat(FileSystem.Format format)
+    {
+        fileSystem.setFormat(format);
+    }
+    
     /** Do the Print Mailing Labels Use Case
      *
      *  @exception IOException if there was any problem writing the address book
@@ -258,6 +449,65 @@ public class AddressBookController
         }
     }
     
+    /** Do the Print Mailing Labels by Region Use Case - print a file of
+     *  labels for each sectional center, and show the manifest
+     *
+     *  @exception IOException if there was any problem writing the files
+     */
+    public void doPrintMailingLabelsByRegion() throws IOException
+    {
+        String directory = fileSystem.getDefaultDirectory();
+        JFileChooser chooser =  new JFileChooser(directory);
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (chooser.showDialog(gui, "Print") == JFileChooser.APPROVE_OPTION)
+        {
+            LabelJob.Manifest manifest = 
+                new LabelJob(gui.getAddressBook()).run(chooser.getSelectedFile());
+            gui.showReport("Mailing Labels by Region", manifest.toString());
+        }
+    }
+    
+    /** Do the Save as Shards Use Case - split the book by the first three
+     *  digits of the ZIP into a directory of shard files, which a
+     *  ShardedAddressBook can then read a shard at a time
+     *
+     *  @exception IOException if there was any problem writing the files
+     *  @exception ClassNotFoundException if the directory already holds a
+     *             sharded book that is corrupt
+     */
+    public void doSaveAsShards() throws IOException, ClassNotFoundException
+    {
+        String directory = fileSystem.getDefaultDirectory();
+        JFileChooser chooser =  new JFileChooser(directory);
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (chooser.showDialog(gui, "Save") == JFileChooser.APPROVE_OPTION)
+        {
+            ShardedAddressBook shards = ShardedAddressBook.split(
+                gui.getAddressBook(), fileSystem, chooser.getSelectedFile(),
+                ShardedAddressBook.DEFAULT_IDLE_MILLIS);
+            gui.showReport("Save as Shards", shards.size() + 
+                " persons in " + shards.getShardCount() + " shards\n");
+        }
+    }
+    
+    /** Do the Memory Report Use Case - show the memory taken by the book,
+     *  component by component.  The first report also makes the account
+     *  available through JMX, as BookFootprint.register() describes
+     */
+    public void doMemoryReport()
+    {
+        // Registering with JMX takes a few hundred milliseconds, so it is
+        // left until the first report rather than slowing down startup
+        if (! footprintRegistered)
+        {
+            BookFootprint.register(gui);
+            footprintRegistered = true;
+        }
+        gui.showReport("Memory Report",
+            BookFootprint.measure(gui.getAddressBook(), 
+                                  gui.getNameListModel()).toString());
+    }
+    
     /** Do the Quit Program Use Case.  This one needs to be public, since,
      *  on the Mac platform, a Quit can be chosen in the Application menu
      *
@@ -272,6 +522,16 @@ public class AddressBookController
         System.exit(0);
     }
 
+    /** Auxiliary to the open and save use cases - record the file of the
+     *  book in use, so that it can be opened when the program next starts
+     *
+     *  @param file the file
+     */
+    private void rememberLastBook(File file)
+    {
+        preferences.put(LAST_BOOK_KEY, file.getAbsolutePath());
+    }
+
     /** Do Offer to Save Changes extension.  This method is called if the user
      *  initiates a new, open, or quit operation with unsaved changes to the
      *  address book.  The user is offered an opportunity to save those changes
@@ -297,6 +557,8 @@ public class AddressBookController
         {
             case JOptionPane.NO_OPTION:
             
+                // The changes are thrown away, so the book is not kept
+                workspace.discard(gui.getAddressBook());
                 return PROCEED;
                 
             case JOptionPane.YES_OPTION:
@@ -331,14 +593,35 @@ public class AddressBookController
     
     private FileSystem fileSystem;
     
+    // Where the file of the book last opened or saved is recorded
+    
+    private Preferences preferences = 
+        Preferences.userNodeForPackage(AddressBookController.class);
+    private static final String LAST_BOOK_KEY = "lastBook";
+    
+    // How many names are shown before a book has been read completely
+    
+    private static final int FIRST_SCREENFUL = 100;
+    
+    // The books opened recently, kept in memory while they fit in the budget
+    
+    private Workspace workspace;
+    private static final long WORKSPACE_BUDGET = 
+        Long.getLong("addressbook.workspaceBudget", 64L << 20);
+    
+    // Whether the memory account has been made available through JMX
+    
+    private boolean footprintRegistered;
+    
     // The GUI
     
     private AddressBookGUI gui;
     
-    // The criterion and location of the last successful search, if any
-    // null and -1 respectively initially or if the last search was not
-    // successful
+    // The criterion of the last search, if any, and where it has reached -
+    // null initially or if the last search found no more persons.  The
+    // cursor remembers the persons it has found, not their positions, so
+    // Find Again still continues correctly after the book is changed
     
-    private String lastSearchCriterion;
-    private int lastSearchResult;
+    private SearchCriterion lastSearchCriterion;
+    private SearchCursor lastSearch;
 }
@@ -10,13 +10,14 @@ package addressbook;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
-import java.util.Observer;
-import java.util.Observable;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
+import java.io.File;
 
 /** An object of this class allows interaction between the program and the 
  *  human user.
  */
-public class AddressBookGUI extends JFrame implements Observer
+public class AddressBookGUI extends JFrame implements BookListener
 {
     /** Constructor
      *
@@ -62,6 +63,12 @@ public class AddressBookGUI extends JFrame implements Observer
         openItem = new JMenuItem("Open...");
         openItem.setAccelerator(keystroke(KeyEvent.VK_O, 0));
         fileMenu.add(openItem);
+        recentMenu = new JMenu("Open Recent");
+        fileMenu.add(recentMenu);
+        importItem = new JMenuItem("Import...");
+        fileMenu.add(importItem);
+        exportItem = new JMenuItem("Export...");
+        fileMenu.add(exportItem);
         fileMenu.addSeparator();
         saveItem = new JMenuItem("Save");
         saveItem.setAccelerator(keystroke(KeyEvent.VK_S, 0));
@@ -69,15 +76,44 @@ public class AddressBookGUI extends JFrame implements Observer
         saveAsItem = new JMenuItem("Save As...");
         saveAsItem.setAccelerator(keystroke(KeyEvent.VK_S, InputEvent.SHIFT_MASK));
         fileMenu.add(saveAsItem);
+        JMenu formatMenu = new JMenu("Save Format");
+        ButtonGroup formatGroup = new ButtonGroup();
+        standardItem = new JRadioButtonMenuItem("Standard", true);
+        compressedItem = new JRadioButtonMenuItem("Compressed");
+        lazyItem = new JRadioButtonMenuItem("Lazy Loading");
+        formatGroup.add(standardItem);
+        formatGroup.add(compressedItem);
+        formatGroup.add(lazyItem);
+        formatMenu.add(standardItem);
+        formatMenu.add(compressedItem);
+        formatMenu.add(lazyItem);
+        fileMenu.add(formatMenu);
         fileMenu.addSeparator();
         printMailingLabelsItem = new JMenuItem("Print Mailing Labels");
         printMailingLabelsItem.setAccelerator(keystroke(KeyEvent.VK_P, 0));
         fileMenu.add(printMailingLabelsItem);
+        printLabelsByRegionItem = new JMenuItem("Print Mailing Labels by Region...");
+        fileMenu.add(printLabelsByRegionItem);
+        saveAsShardsItem = new JMenuItem("Save as Shards...");
+        fileMenu.add(saveAsShardsItem);
+        memoryReportItem = new JMenuItem("Memory Report");
+        fileMenu.add(memoryReportItem);
         fileMenu.addSeparator();
         quitItem = new JMenuItem("Quit");
         quitItem.setAccelerator(keystroke(KeyEvent.VK_Q, 0));
         fileMenu.add(quitItem);
         
+        // Create and add edit menu
+        
+        JMenu editMenu = new JMenu("Edit");
+        menuBar.add(editMenu);
+        undoItem = new JMenuItem("Undo");
+        undoItem.setAccelerator(keystroke(KeyEvent.VK_Z, 0));
+        editMenu.add(undoItem);
+        redoItem = new JMenuItem("Redo");
+        redoItem.setAccelerator(keystroke(KeyEvent.VK_Z, InputEvent.SHIFT_DOWN_MASK));
+        editMenu.add(redoItem);
+        
         // Create and add sort menu
         
         JMenu sortMenu = new JMenu("Sort");
@@ -143,6 +179,71 @@ public class AddressBookGUI extends JFrame implements Observer
             }
         });
             
+        recentMenu.addMenuListener(new MenuListener() {
+            public void menuSelected(MenuEvent e)
+            {
+                recentMenu.removeAll();
+                for (final File file : controller.getRecentFiles())
+                {
+                    JMenuItem item = new JMenuItem(file.getName());
+                    item.setToolTipText(file.getPath());
+                    item.addActionListener(new ActionListener() {
+                        public void actionPerformed(ActionEvent e)
+                        {
+                            try
+                            {
+                                controller.doOpenRecent(file);
+                            }
+                            catch(Exception exception)
+                            {
+                                reportError("Problem reading the file: " +
+                                             exception);
+                            } 
+                        }
+                    });
+                    recentMenu.add(item);
+                }
+            }
+            
+            public void menuDeselected(MenuEvent e)
+            {
+            }
+            
+            public void menuCanceled(MenuEvent e)
+            {
+            }
+        });
+            
+        importItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            {
+                try
+                {
+                    controller.doImport();
+                }
+                catch(Exception exception)
+                {
+                    reportError("Problem reading the file: " +
+                                 exception);
+                } 
+            }
+        });
+            
+        exportItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            {
+                try
+                {
+                    controller.doExport();
+                }
+                catch(Exception exception)
+                {
+                    reportError("Problem writing the file: " +
+                                 exception);
+                } 
+            }
+        });
+            
         saveItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             { 
@@ -185,6 +286,27 @@ public class AddressBookGUI extends JFrame implements Observer
             }
         });
             
+        standardItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            { 
+                controller.doSetFormat(FileSystem.Format.STANDARD);
+            }
+        });
+            
+        compressedItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            { 
+                controller.doSetFormat(FileSystem.Format.COMPRESSED);
+            }
+        });
+            
+        lazyItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            { 
+                controller.doSetFormat(FileSystem.Format.LAZY);
+            }
+        });
+            
         printMailingLabelsItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             { 
@@ -200,6 +322,43 @@ public class AddressBookGUI extends JFrame implements Observer
             }
         });
             
+        printLabelsByRegionItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            { 
+                try
+                {
+                    controller.doPrintMailingLabelsByRegion();
+                }
+                catch(Exception exception)
+                {
+                    reportError("Problem writing the files: " +
+                                 exception);
+                } 
+            }
+        });
+            
+        saveAsShardsItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            { 
+                try
+                {
+                    controller.doSaveAsShards();
+                }
+                catch(Exception exception)
+                {
+                    reportError("Problem writing the files: " +
+                                 exception);
+                } 
+            }
+        });
+            
+        memoryReportItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            { 
+                controller.doMemoryReport();
+            }
+        });
+            
         quitItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             { 
@@ -207,6 +366,20 @@ public class AddressBookGUI extends JFrame implements Observer
             }
         });
             
+        undoItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            { 
+                controller.doUndo();
+            }
+        });
+              
+        redoItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            { 
+                controller.doRedo();
+            }
+        });
+              
         sortByNameItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e)
             { 
@@ -279,9 +452,48 @@ public class AddressBookGUI extends JFrame implements Observer
      */
     public void setAddressBook(AddressBook addressBook)
     {
+        if (subscription != null)
+            subscription.cancel();
         this.addressBook = addressBook;
-        addressBook.addObserver(this);
-        update(addressBook, null);
+        subscription = addressBook.subscribe(this, COALESCE_MILLIS, 
+                                             EVENT_CAPACITY, true);
+        findAgainItem.setEnabled(false);
+        refresh();
+    }
+    
+    /** Show some of the names in a book that is still being read, after any
+     *  already shown.  They are replaced by the whole list when the book is
+     *  given to setAddressBook()
+     *
+     *  @param names the names to add to the list
+     */
+    public void showNamesRead(java.util.List<String> names)
+    {
+        for (String name : names)
+            nameListContents.addElement(name);
+    }
+    
+    /** Get the model of the list of names - for measuring its memory
+     *
+     *  @return the model
+     */
+    ListModel<?> getNameListModel()
+    {
+        return nameListContents;
+    }
+    
+    /** Show a report to the user
+     *
+     *  @param title the title of the report
+     *  @param report the report - lines of text, aligned in columns
+     */
+    public void showReport(String title, String report)
+    {
+        JTextArea text = new JTextArea(report);
+        text.setEditable(false);
+        text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        JOptionPane.showMessageDialog(this, new JScrollPane(text), title,
+                                      JOptionPane.INFORMATION_MESSAGE);
     }
     
     /** Report an error to the user
@@ -294,17 +506,68 @@ public class AddressBookGUI extends JFrame implements Observer
                                       JOptionPane.ERROR_MESSAGE);
     }
     
-    /** Report the results of a search
+    /** Ask the user what to search for, and how
+     *
+     *  @param previous the criterion used last, whose text and options are
+     *         shown to start with - null if there was none
+     *  @return the criterion, or null if the user cancelled
+     */
+    public SearchCriterion askSearchCriterion(SearchCriterion previous)
+    {
+        SearchOptions options = previous != null 
+            ? previous.getOptions() : SearchOptions.EXACT;
+        JTextField text = new JTextField(
+            previous != null ? previous.getText() : "", 20);
+        JCheckBox ignoreCase = 
+            new JCheckBox("Ignore case", options.isIgnoreCase());
+        JCheckBox ignoreAccents = 
+            new JCheckBox("Ignore accents", options.isIgnoreAccents());
+        JCheckBox wholeWords = 
+            new JCheckBox("Whole words only", options.isWholeWords());
+        
+        // Any field, or just one
+        Object [] choices = new Object[PersonField.values().length + 1];
+        choices[0] = "Any field";
+        for (PersonField field : PersonField.values())
+            choices[field.ordinal() + 1] = field.getName();
+        JComboBox<Object> fieldChoice = new JComboBox<Object>(choices);
+        if (options.getFields().size() == 1)
+            fieldChoice.setSelectedIndex(
+                options.getFields().iterator().next().ordinal() + 1);
+        
+        JPanel panel = new JPanel(new GridLayout(0, 1));
+        panel.add(new JLabel("Search for?"));
+        panel.add(text);
+        panel.add(fieldChoice);
+        panel.add(ignoreCase);
+        panel.add(ignoreAccents);
+        panel.add(wholeWords);
+        if (JOptionPane.showConfirmDialog(this, panel, "Find",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE)
+            != JOptionPane.OK_OPTION)
+            return null;
+        
+        int choice = fieldChoice.getSelectedIndex();
+        java.util.Set<PersonField> fields = choice == 0
+            ? java.util.EnumSet.allOf(PersonField.class)
+            : java.util.EnumSet.of(PersonField.values()[choice - 1]);
+        return new SearchCriterion(text.getText(),
+            new SearchOptions(ignoreCase.isSelected(), 
+                              ignoreAccents.isSelected(),
+                              wholeWords.isSelected(), fields));
+    }
+    
+    /** Report the results of a search.  The person is selected by name,
+     *  wherever the name is now in the list
      * 
-     *  @param index the index of the person found, or -1 if no one
+     *  @param name the name of the person found, or null if no one
      *         was found
      */
-    public void searchFound(int index)
+    public void searchFound(String name)
     {
-        if (index >= 0)
+        if (name != null)
         {
-            nameList.setSelectedIndex(index);
-            nameList.ensureIndexIsVisible(index);
+            nameList.setSelectedValue(name, true);
             findAgainItem.setEnabled(true);
         }
         else
@@ -330,31 +593,40 @@ public class AddressBookGUI extends JFrame implements Observer
                     modifiers);
     }                                      
         
-    /** Method required by the Observer interface - update the display
-     *  in response to any change in the address book
+    /** Method required by the BookListener interface - update the display
+     *  in response to changes in the address book.  Changes are gathered for
+     *  a short time and reported together, on the event dispatch thread
+     *
+     *  @param event the changes
      */
-    public void update(Observable o, Object arg)
+    public void bookChanged(BookEvent event)
     {
-        if (o == addressBook)
-        {
-            int currentIndex = nameList.getSelectedIndex();
-            
-            nameListContents.removeAllElements();
-            String [] names = addressBook.getNames();
-            for (int i = 0; i < names.length; i ++)
-                nameListContents.addElement(names[i]);
-            
-            if (currentIndex >= 0)
-                nameList.ensureIndexIsVisible(currentIndex);
-            else
-                nameList.ensureIndexIsVisible(nameListContents.getSize() - 1);
-                
-            nameList.repaint();
+        if (event.getSource() == addressBook)
+            refresh();
+    }
+    
+    /** Update the display to show the current state of the address book
+     */
+    private void refresh()
+    {
+        int currentIndex = nameList.getSelectedIndex();
+        
+        nameListContents.removeAllElements();
+        String [] names = addressBook.getNames();
+        for (int i = 0; i < names.length; i ++)
+            nameListContents.addElement(names[i]);
+        
+        if (currentIndex >= 0)
+            nameList.ensureIndexIsVisible(currentIndex);
+        else
+            nameList.ensureIndexIsVisible(nameListContents.getSize() - 1);
             
-            setTitle(addressBook.getTitle());
-            saveItem.setEnabled(addressBook.getChangedSinceSaved());
-            findAgainItem.setEnabled(false);
-        }
+        nameList.repaint();
+        
+        setTitle(addressBook.getTitle());
+        saveItem.setEnabled(addressBook.getChangedSinceSaved());
+        undoItem.setEnabled(addressBook.canUndo());
+        redoItem.setEnabled(addressBook.canRedo());
     }
     
     // GUI components and menu items
@@ -362,7 +634,13 @@ public class AddressBookGUI extends JFrame implements Observer
     private DefaultListModel nameListContents;
     private JList nameList;
     private JButton addButton, editButton, deleteButton;
-    private JMenuItem newItem, openItem, saveItem, saveAsItem, printMailingLabelsItem, quitItem;
+    private JMenuItem newItem, openItem, saveItem, saveAsItem, printMailingLabelsItem,
+        printLabelsByRegionItem, quitItem;
+    private JMenuItem saveAsShardsItem, memoryReportItem;
+    private JMenu recentMenu;
+    private JMenuItem importItem, exportItem;
+    private JRadioButtonMenuItem standardItem, compressedItem, lazyItem;
+    private JMenuItem undoItem, redoItem;
     private JMenuItem sortByNameItem, sortByZipItem;
     private JMenuItem findItem, findAgainItem;
     
@@ -372,5 +650,12 @@ public class AddressBookGUI extends JFrame implements Observer
     
     // The address book this GUI displays / operates on
     
-    private AddressBook addressBook;    
+    private AddressBook addressBook;
+    
+    // The subscription to changes to the address book.  Changes made within
+    // a short time of each other are shown together
+    
+    private BookEventBus.Subscription subscription;
+    private static final long COALESCE_MILLIS = 50;
+    private static final int EVENT_CAPACITY = 1000;    
 }
@@ -0,0 +1,110 @@
+/**
+ *  BookEvent.java
+ *
+ */
+
+package addressbook;
+
+import java.util.Collections;
+import java.util.List;
+
+/** An object of this class describes one or more changes made to an address
+ *  book, as delivered to a BookListener.  Changes made in quick succession
+ *  are merged into one event, which gives their net effect: the persons
+ *  taken out of the book and those put into it.  (Persons are immutable, so
+ *  an updated person appears as the old person removed and the new one
+ *  added.)  A change that only reorders the book - such as a sort - removes
+ *  and adds nobody.
+ *
+ *  If a listener falls too far behind, the changes waiting for it are
+ *  dropped and it is sent an overflow event instead, which says only that
+ *  the book has changed; the listener should then look at the whole book.
+ */
+public class BookEvent
+{
+    /** Constructor
+     *
+     *  @param source the book that changed
+     *  @param version the version of the book after the last change
+     *  @param changes the number of changes described
+     *  @param removed the persons taken out of the book
+     *  @param added the persons put into the book
+     *  @param overflow true if the changes were dropped
+     */
+    BookEvent(AddressBook source,
+              long version,
+              int changes,
+              List<Person> removed,
+              List<Person> added,
+              boolean overflow)
+    {
+        this.source = source;
+        this.version = version;
+        this.changes = changes;
+        this.removed = Collections.unmodifiableList(removed);
+        this.added = Collections.unmodifiableList(added);
+        this.overflow = overflow;
+    }
+
+    /** Get the book that changed
+     *
+     *  @return the book
+     */
+    public AddressBook getSource()
+    {
+        return source;
+    }
+
+    /** Get the version of the book after the last of the changes - that of
+     *  the snapshot taken just after it
+     *
+     *  @return the version
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    /** Get the number of changes this event stands for
+     *
+     *  @return the number of changes
+     */
+    public int getChangeCount()
+    {
+        return changes;
+    }
+
+    /** Get the persons the changes took out of the book
+     *
+     *  @return the persons removed - empty for an overflow event
+     */
+    public List<Person> getRemoved()
+    {
+        return removed;
+    }
+
+    /** Get the persons the changes put into the book
+     *
+     *  @return the persons added - empty for an overflow event
+     */
+    public List<Person> getAdded()
+    {
+        return added;
+    }
+
+    /** Find out whether the changes were dropped because the listener fell
+     *  behind
+     *
+     *  @return true if the listener should look at the whole book again
+     */
+    public boolean isOverflow()
+    {
+        return overflow;
+    }
+
+    private final AddressBook source;
+    private final long version;
+    private final int changes;
+    private final List<Person> removed, added;
+    private final boolean overflow;
+}
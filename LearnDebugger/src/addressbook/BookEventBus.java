@@ -0,0 +1,296 @@
+/**
+ *  BookEventBus.java
+ *
+ */
+
+package addressbook;
+
+import java.awt.Component;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.swing.SwingUtilities;
+
+/** An object of this class delivers the changes made to one address book to
+ *  the listeners subscribed to it.  A change is published by the thread
+ *  that makes it, which only puts it in each subscriber's queue and never
+ *  waits for a listener; the listeners are told later, on other threads.
+ *
+ *  Each subscriber has:
+ *
+ *      - a coalescing window: after a change arrives, the subscriber is told
+ *        about it only when the window has passed, together with every other
+ *        change that arrived meanwhile, as one event
+ *      - a capacity: if a change could bring the persons waiting to be
+ *        reported to more than this, the waiting changes are dropped - with
+ *        the change, unmerged - and the subscriber gets one
+ *        overflow event instead, so a slow subscriber costs a bounded amount
+ *        of memory and never holds up the writer
+ *      - a thread to be told on: listeners that are AWT/Swing components, or
+ *        that ask for it, are always told on the event dispatch thread;
+ *        others on a pool thread.
+ *
+ *  A subscriber is told about one event at a time, in order.
+ */
+public class BookEventBus
+{
+    /** A subscription of a listener to a bus
+     */
+    public class Subscription
+    {
+        Subscription(BookListener listener,
+                     long coalesceMillis,
+                     int capacity,
+                     boolean onEventThread)
+        {
+            this.listener = listener;
+            this.coalesceMillis = coalesceMillis;
+            this.capacity = capacity;
+            this.onEventThread = onEventThread;
+        }
+
+        /** Stop telling the listener about changes.  An event already being
+         *  delivered may still arrive
+         */
+        public void cancel()
+        {
+            subscriptions.remove(this);
+            synchronized(this)
+            {
+                cancelled = true;
+                clearPending();
+            }
+        }
+
+        /** Auxiliary to BookEventBus.publish - queue a change, and arrange for
+         *  it to be delivered if nothing is arranged yet
+         */
+        synchronized void enqueue(long version,
+                                  List<Person> removed,
+                                  List<Person> added)
+        {
+            if (cancelled)
+                return;
+            changes ++;
+            lastVersion = version;
+            if (! overflow)
+            {
+                // Merging can only shrink the total, so a change that might
+                // not fit goes straight to overflow without being merged -
+                // a bulk change to the whole book costs nothing to queue
+                if (pendingRemoved.size() + pendingAdded.size() +
+                    removed.size() + added.size() > capacity)
+                {
+                    overflow = true;
+                    pendingRemoved = new LinkedHashSet<Person>();
+                    pendingAdded = new LinkedHashSet<Person>();
+                }
+                else
+                {
+                    for (Person person : removed)
+                        if (! pendingAdded.remove(person))
+                            pendingRemoved.add(person);
+                    for (Person person : added)
+                        if (! pendingRemoved.remove(person))
+                            pendingAdded.add(person);
+                }
+            }
+            if (! scheduled)
+            {
+                scheduled = true;
+                schedule();
+            }
+        }
+
+        /** Arrange for the waiting changes to be delivered when the
+         *  coalescing window has passed
+         */
+        private void schedule()
+        {
+            Runnable delivery = new Runnable() {
+                public void run()
+                {
+                    if (onEventThread)
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run()
+                            {
+                                deliver();
+                            }
+                        });
+                    else
+                        deliverers.execute(new Runnable() {
+                            public void run()
+                            {
+                                deliver();
+                            }
+                        });
+                }
+            };
+            if (coalesceMillis > 0)
+                timer.schedule(delivery, coalesceMillis, TimeUnit.MILLISECONDS);
+            else
+                delivery.run();
+        }
+
+        /** Deliver the waiting changes as one event, then arrange for any
+         *  that arrived meanwhile to be delivered
+         */
+        private void deliver()
+        {
+            BookEvent event;
+            synchronized(this)
+            {
+                if (cancelled || changes == 0)
+                {
+                    scheduled = false;
+                    return;
+                }
+                event = new BookEvent(source, lastVersion, changes,
+                                      new ArrayList<Person>(pendingRemoved),
+                                      new ArrayList<Person>(pendingAdded),
+                                      overflow);
+                clearPending();
+            }
+
+            try
+            {
+                listener.bookChanged(event);
+            }
+            catch(RuntimeException e)
+            {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+
+            synchronized(this)
+            {
+                if (changes > 0 && ! cancelled)
+                    schedule();
+                else
+                    scheduled = false;
+            }
+        }
+
+        private void clearPending()
+        {
+            changes = 0;
+            overflow = false;
+            pendingRemoved = new LinkedHashSet<Person>();
+            pendingAdded = new LinkedHashSet<Person>();
+        }
+
+        private final BookListener listener;
+        private final long coalesceMillis;
+        private final int capacity;
+        private final boolean onEventThread;
+
+        // The changes waiting to be delivered.  scheduled is true from when
+        // a delivery is arranged until the listener has been told
+
+        private Set<Person> pendingRemoved = new LinkedHashSet<Person>();
+        private Set<Person> pendingAdded = new LinkedHashSet<Person>();
+        private int changes;
+        private long lastVersion;
+        private boolean overflow;
+        private boolean scheduled;
+        private boolean cancelled;
+    }
+
+    /** Constructor
+     *
+     *  @param source the book whose changes are published on this bus
+     */
+    public BookEventBus(AddressBook source)
+    {
+        this.source = source;
+        subscriptions = new CopyOnWriteArrayList<Subscription>();
+    }
+
+    /** Subscribe a listener to be told about each change as soon as
+     *  possible, with the default capacity
+     *
+     *  @param listener the listener
+     *  @return the subscription, which can be cancelled
+     */
+    public Subscription subscribe(BookListener listener)
+    {
+        return subscribe(listener, 0, DEFAULT_CAPACITY, false);
+    }
+
+    /** Subscribe a listener
+     *
+     *  @param listener the listener
+     *  @param coalesceMillis how long to gather changes before telling the
+     *         listener about them - 0 to tell it as soon as possible
+     *  @param capacity the most persons to keep waiting for the listener
+     *         before dropping them and sending an overflow event
+     *  @param onEventThread true to tell the listener on the AWT event
+     *         dispatch thread.  This is always done if the listener is an
+     *         AWT or Swing component
+     *  @return the subscription, which can be cancelled
+     */
+    public Subscription subscribe(BookListener listener,
+                                  long coalesceMillis,
+                                  int capacity,
+                                  boolean onEventThread)
+    {
+        if (coalesceMillis < 0 || capacity < 0)
+            throw new IllegalArgumentException("Negative window or capacity");
+        Subscription result = new Subscription(listener, coalesceMillis,
+            capacity, onEventThread || listener instanceof Component);
+        subscriptions.add(result);
+        return result;
+    }
+
+    /** Publish a change to every subscriber.  This does not wait for any
+     *  listener
+     *
+     *  @param version the version of the book after the change
+     *  @param removed the persons the change took out of the book
+     *  @param added the persons the change put into the book
+     */
+    public void publish(long version, List<Person> removed, List<Person> added)
+    {
+        for (Subscription subscription : subscriptions)
+            subscription.enqueue(version, removed, added);
+    }
+
+    /** Get the number of subscribers
+     *
+     *  @return the number of subscriptions not cancelled
+     */
+    public int getSubscriberCount()
+    {
+        return subscriptions.size();
+    }
+
+    // The book and its subscribers
+
+    private final AddressBook source;
+    private final List<Subscription> subscriptions;
+
+    // The threads that wait out coalescing windows and tell listeners that
+    // are not told on the event dispatch thread - shared by every bus
+
+    private static final ThreadFactory DAEMONS = new ThreadFactory() {
+        public Thread newThread(Runnable task)
+        {
+            Thread result = new Thread(task, "book-events");
+            result.setDaemon(true);
+            return result;
+        }
+    };
+    private static final ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(DAEMONS);
+    private static final ExecutorService deliverers =
+        Executors.newCachedThreadPool(DAEMONS);
+
+    private static final int DEFAULT_CAPACITY = 10000;
+}
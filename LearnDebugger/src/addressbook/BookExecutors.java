@@ -0,0 +1,102 @@
+/**
+ *  BookExecutors.java
+ *
+ */
+
+package addressbook;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/** This class provides the pool of worker threads shared by the parts of the
+ *  program that fan work out over several cores, together with a helper for
+ *  running a group of tasks and collecting their results in order.
+ */
+public class BookExecutors
+{
+    /** Get the shared pool of worker threads, creating it on first use.  The
+     *  threads are daemons, so they never keep the program alive on their own.
+     *
+     *  @return the shared worker pool
+     */
+    public static synchronized ExecutorService workers()
+    {
+        if (workers == null)
+        {
+            workers = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable task)
+                    {
+                        Thread thread = new WorkerThread(task,
+                            "addressbook-worker-" + (++ threadCount));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return workers;
+    }
+
+    /** Run a group of tasks on the shared pool and wait for all of them
+     *
+     *  @param tasks the tasks to run
+     *  @return the results of the tasks, in the same order as the tasks
+     *
+     *  @exception Exception the exception thrown by the first task (in
+     *             task order) that failed, if any
+     */
+    public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks)
+        throws Exception
+    {
+        List<Future<T>> futures = workers().invokeAll(tasks);
+        List<T> results = new ArrayList<T>(futures.size());
+        for (Future<T> future : futures)
+        {
+            try
+            {
+                results.add(future.get());
+            }
+            catch(ExecutionException e)
+            {
+                if (e.getCause() instanceof Exception)
+                    throw (Exception) e.getCause();
+                else
+                    throw e;
+            }
+        }
+        return results;
+    }
+
+    /** Find out whether the current thread is one of the shared workers.
+     *  A task running on a worker must not wait for other tasks on the pool,
+     *  since every worker could end up waiting, with none left to run them
+     *
+     *  @return true if the current thread is a worker
+     */
+    public static boolean isWorker()
+    {
+        return Thread.currentThread() instanceof WorkerThread;
+    }
+
+    /** The class of the worker threads, so that they can be recognised
+     */
+    private static class WorkerThread extends Thread
+    {
+        WorkerThread(Runnable task, String name)
+        {
+            super(task, name);
+        }
+    }
+
+    // The shared pool - created on first use
+
+    private static ExecutorService workers;
+    private static int threadCount;
+}
@@ -0,0 +1,287 @@
+/**
+ *  BookExporter.java
+ *
+ */
+
+package addressbook;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/** This class exports the persons in an address book to a CSV or JSON Lines
+ *  file.  The book is walked through a snapshot, and each field is encoded
+ *  as UTF-8 straight into a byte buffer, which is written to the file
+ *  through a FileChannel whenever it fills.  No String is built per field or
+ *  per person, and the buffers are kept in a pool and reused, so an export
+ *  uses the same small amount of memory however large the book is.
+ *
+ *  Fields are written in the order first name, last name, address, city,
+ *  state, ZIP, phone - the order BookImporter reads them in.
+ */
+public class BookExporter
+{
+    /** The kinds of file that can be written
+     */
+    public enum Format { CSV, JSON_LINES }
+
+    /** Choose the format for a file from its name - .json and .jsonl files
+     *  are JSON Lines; anything else is CSV
+     *
+     *  @param file the file
+     *  @return the format to write the file in
+     */
+    public static Format formatOf(File file)
+    {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".json") || name.endsWith(".jsonl"))
+            return Format.JSON_LINES;
+        else
+            return Format.CSV;
+    }
+
+    /** Export the persons in an address book
+     *
+     *  @param addressBook the book to export
+     *  @param file the file to create
+     *  @param format the format to write
+     *  @return the number of persons written
+     *
+     *  @exception IOException if there is a problem writing the file
+     */
+    public static int export(AddressBook addressBook, File file, Format format)
+        throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer buffer = acquire();
+        int count = 0;
+        try
+        {
+            if (format == Format.CSV)
+            {
+                for (int i = 0; i < FIELD_TITLES.length; i ++)
+                {
+                    if (i > 0)
+                        put(channel, buffer, ',');
+                    putText(channel, buffer, FIELD_TITLES[i]);
+                }
+                put(channel, buffer, '\n');
+            }
+
+            for (Person person : addressBook.snapshot())
+            {
+                if (format == Format.CSV)
+                    writeCsv(channel, buffer, person);
+                else
+                    writeJson(channel, buffer, person);
+                count ++;
+            }
+            drain(channel, buffer);
+        }
+        finally
+        {
+            release(buffer);
+            channel.close();
+        }
+        return count;
+    }
+
+    /** Auxiliary to export - write one person as a CSV record
+     */
+    private static void writeCsv(FileChannel channel,
+                                 ByteBuffer buffer,
+                                 Person person) throws IOException
+    {
+        PersonField [] fields = PersonField.values();
+        for (int i = 0; i < fields.length; i ++)
+        {
+            if (i > 0)
+                put(channel, buffer, ',');
+            String value = fields[i].valueOf(person);
+            if (needsQuotes(value))
+            {
+                put(channel, buffer, '"');
+                for (int j = 0; j < value.length(); j ++)
+                {
+                    char c = value.charAt(j);
+                    if (c == '"')
+                        put(channel, buffer, '"');
+                    putChar(channel, buffer, value, j);
+                    if (Character.isHighSurrogate(c))
+                        j ++;
+                }
+                put(channel, buffer, '"');
+            }
+            else
+                putText(channel, buffer, value);
+        }
+        put(channel, buffer, '\n');
+    }
+
+    /** Auxiliary to export - write one person as a JSON object on a line
+     */
+    private static void writeJson(FileChannel channel,
+                                  ByteBuffer buffer,
+                                  Person person) throws IOException
+    {
+        PersonField [] fields = PersonField.values();
+        put(channel, buffer, '{');
+        for (int i = 0; i < fields.length; i ++)
+        {
+            if (i > 0)
+                put(channel, buffer, ',');
+            put(channel, buffer, '"');
+            putText(channel, buffer, fields[i].getName());
+            put(channel, buffer, '"');
+            put(channel, buffer, ':');
+            put(channel, buffer, '"');
+            String value = fields[i].valueOf(person);
+            for (int j = 0; j < value.length(); j ++)
+            {
+                char c = value.charAt(j);
+                if (c == '"' || c == '\\')
+                {
+                    put(channel, buffer, '\\');
+                    put(channel, buffer, c);
+                }
+                else if (c < 0x20)
+                {
+                    putText(channel, buffer, "\\u00");
+                    put(channel, buffer, HEX[c >> 4]);
+                    put(channel, buffer, HEX[c & 0xF]);
+                }
+                else
+                {
+                    putChar(channel, buffer, value, j);
+                    if (Character.isHighSurrogate(c))
+                        j ++;
+                }
+            }
+            put(channel, buffer, '"');
+        }
+        put(channel, buffer, '}');
+        put(channel, buffer, '\n');
+    }
+
+    /** Auxiliary to writeCsv - check whether a field must be quoted
+     */
+    private static boolean needsQuotes(String value)
+    {
+        for (int i = 0; i < value.length(); i ++)
+        {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r')
+                return true;
+        }
+        return false;
+    }
+
+    /** Encode a whole string, which needs no escaping
+     */
+    private static void putText(FileChannel channel,
+                                ByteBuffer buffer,
+                                String text) throws IOException
+    {
+        for (int i = 0; i < text.length(); i ++)
+        {
+            putChar(channel, buffer, text, i);
+            if (Character.isHighSurrogate(text.charAt(i)))
+                i ++;
+        }
+    }
+
+    /** Encode the character (or surrogate pair) at a position in a string
+     *  as UTF-8
+     */
+    private static void putChar(FileChannel channel,
+                                ByteBuffer buffer,
+                                String text,
+                                int index) throws IOException
+    {
+        int c = text.codePointAt(index);
+        if (buffer.remaining() < 4)
+            drain(channel, buffer);
+        if (c < 0x80)
+            buffer.put((byte) c);
+        else if (c < 0x800)
+        {
+            buffer.put((byte) (0xC0 | (c >> 6)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+        else if (c < 0x10000)
+        {
+            buffer.put((byte) (0xE0 | (c >> 12)));
+            buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+        else
+        {
+            buffer.put((byte) (0xF0 | (c >> 18)));
+            buffer.put((byte) (0x80 | ((c >> 12) & 0x3F)));
+            buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+    }
+
+    /** Encode a single ASCII character
+     */
+    private static void put(FileChannel channel,
+                            ByteBuffer buffer,
+                            char c) throws IOException
+    {
+        if (! buffer.hasRemaining())
+            drain(channel, buffer);
+        buffer.put((byte) c);
+    }
+
+    /** Write out everything in a buffer, leaving it empty
+     */
+    private static void drain(FileChannel channel, ByteBuffer buffer)
+        throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /** Get a buffer from the pool, making one if the pool is empty
+     */
+    private static ByteBuffer acquire()
+    {
+        synchronized(pool)
+        {
+            if (! pool.isEmpty())
+                return pool.pop();
+        }
+        return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /** Return a buffer to the pool
+     */
+    private static void release(ByteBuffer buffer)
+    {
+        buffer.clear();
+        synchronized(pool)
+        {
+            if (pool.size() < MAX_POOLED)
+                pool.push(buffer);
+        }
+    }
+
+    // The pool of buffers
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_POOLED = 4;
+    private static final Deque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+
+    private static final String [] FIELD_TITLES =
+        { "First Name", "Last Name", "Address", "City", "State", "ZIP", "Phone" };
+    private static final char [] HEX = "0123456789abcdef".toCharArray();
+}
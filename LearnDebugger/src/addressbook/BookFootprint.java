@@ -0,0 +1,790 @@
+/**
+ *  BookFootprint.java
+ *
+ */
+
+package addressbook;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.io.File;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.swing.DefaultListModel;
+import javax.swing.ListModel;
+import javax.swing.SwingUtilities;
+
+/** An object of this class is an account of the memory an address book
+ *  takes, broken down by what the memory holds: the Person objects, the
+ *  strings of each field, the list of persons, the undo history, the change
+ *  feed, each index, the cache of a lazily read book, and the GUI's copy of
+ *  the names.
+ *
+ *  Each object is counted once, in the first of these components that
+ *  refers to it - so a string shared by a person and an index is counted
+ *  with the person, and the history is charged only for the persons and
+ *  list nodes that the current book no longer has.  For the strings of each
+ *  field it also reports the bytes taken by strings equal to one already
+ *  counted, which sharing (see StringPool) would save.
+ *
+ *  The sizes of objects are estimated from the layout the JVM uses (header,
+ *  reference and alignment sizes).  If the program is started with this
+ *  class as a Java agent (-javaagent:LearnDebugger.jar, whose manifest
+ *  names it) the sizes of persons and strings are measured exactly through
+ *  java.lang.instrument, and the layout is measured rather than guessed.
+ *  Measuring a large book takes time and some memory of its own,
+ *  proportional to the number of objects.  The book is measured from a
+ *  snapshot, and is locked only while its history and indexes are read, so
+ *  changes to it are held up only briefly.
+ *
+ *  Run as a program, it prints the account of each book file named:
+ *
+ *      BookFootprint file ...
+ */
+public class BookFootprint
+{
+    /** The memory taken by one component of a book
+     */
+    public static class Component
+    {
+        Component(String name)
+        {
+            this.name = name;
+        }
+
+        /** Get the name of the component
+         *
+         *  @return the name - for example "persons" or "index.zip"
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /** Get the number of objects counted in the component
+         *
+         *  @return the number of objects
+         */
+        public long getObjects()
+        {
+            return objects;
+        }
+
+        /** Get the memory taken by the component
+         *
+         *  @return the (estimated) number of bytes
+         */
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        /** Get the memory taken by strings in the component equal to strings
+         *  already counted
+         *
+         *  @return the number of bytes that sharing equal strings would save
+         */
+        public long getDuplicateBytes()
+        {
+            return duplicateBytes;
+        }
+
+        public String toString()
+        {
+            return String.format("%-18s %,12d %,15d %,13d", name, objects,
+                                 bytes, duplicateBytes);
+        }
+
+        private final String name;
+        private long objects, bytes, duplicateBytes;
+    }
+
+    /** Entry point when the program is started with this class as a Java
+     *  agent - keep the instrumentation for measuring objects
+     *
+     *  @param arguments the agent's arguments - not used
+     *  @param instrumentation the instrumentation
+     */
+    public static void premain(String arguments, Instrumentation instrumentation)
+    {
+        BookFootprint.instrumentation = instrumentation;
+        layout = new Layout();
+    }
+
+    /** Entry point when this class is loaded as a Java agent into a program
+     *  already running - as for premain
+     *
+     *  @param arguments the agent's arguments - not used
+     *  @param instrumentation the instrumentation
+     */
+    public static void agentmain(String arguments, Instrumentation instrumentation)
+    {
+        premain(arguments, instrumentation);
+    }
+
+    /** Find out whether objects are measured exactly
+     *
+     *  @return true if the instrumentation of a Java agent is available;
+     *          false if sizes are only estimated
+     */
+    public static boolean isInstrumented()
+    {
+        return instrumentation != null;
+    }
+
+    /** Account for the memory taken by an address book
+     *
+     *  @param book the book
+     *  @return the account
+     */
+    public static BookFootprint measure(AddressBook book)
+    {
+        return measure(book, null);
+    }
+
+    /** Account for the memory taken by an address book and by a GUI's list
+     *  of its names
+     *
+     *  @param book the book
+     *  @param names the model of the list showing the names - null if
+     *         there is none.  It is read on the event dispatch thread, as
+     *         Swing requires, whatever thread this is called on
+     *  @return the account
+     */
+    public static BookFootprint measure(AddressBook book, ListModel<?> names)
+    {
+        BookFootprint result = new BookFootprint(book.getTitle());
+        result.measureBook(book);
+        if (names != null)
+        {
+            Object [] copy = copyNames(names);
+            if (copy != null)
+                result.measureNames(copy);
+        }
+        result.measurePool();
+        result.seen = null;
+        result.canonical = null;
+        return result;
+    }
+
+    /** Get the components, in the order they were counted
+     *
+     *  @return the components
+     */
+    public List<Component> getComponents()
+    {
+        return Collections.unmodifiableList(
+            new ArrayList<Component>(components.values()));
+    }
+
+    /** Get one component
+     *
+     *  @param name the name of the component
+     *  @return the component, or null if the book has no such component
+     */
+    public Component getComponent(String name)
+    {
+        return components.get(name);
+    }
+
+    /** Get the number of persons in the book
+     *
+     *  @return the number of persons
+     */
+    public int getPersonCount()
+    {
+        return personCount;
+    }
+
+    /** Get the memory taken by the whole book
+     *
+     *  @return the sum of the bytes of every component
+     */
+    public long getTotalBytes()
+    {
+        long result = 0;
+        for (Component component : components.values())
+            result += component.bytes;
+        return result;
+    }
+
+    /** Get the memory taken by strings equal to strings already counted
+     *
+     *  @return the number of bytes that sharing equal strings would save
+     */
+    public long getDuplicateBytes()
+    {
+        long result = 0;
+        for (Component component : components.values())
+            result += component.duplicateBytes;
+        return result;
+    }
+
+    /** Get the account as a report, one line per component
+     *
+     *  @return the report
+     */
+    public String toString()
+    {
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("Memory taken by %s - %,d persons (%s)%n%n",
+            title, personCount, isInstrumented() ? "measured" : "estimated"));
+        result.append(String.format("%-18s %12s %15s %13s%n", "component",
+                                    "objects", "bytes", "duplicates"));
+        for (Component component : components.values())
+            result.append(component).append(String.format("%n"));
+        result.append(String.format("%-18s %12s %,15d %,13d%n", "total", "",
+                                    getTotalBytes(), getDuplicateBytes()));
+        if (personCount > 0)
+            result.append(String.format("%-18s %12s %,15d%n", "per person", "",
+                                        getTotalBytes() / personCount));
+        return result.toString();
+    }
+
+    /** Print the account of each book file named
+     *
+     *  @param args the names of the files
+     *
+     *  @exception Exception if a file cannot be read
+     */
+    public static void main(String [] args) throws Exception
+    {
+        if (args.length == 0)
+        {
+            System.err.println("Usage: BookFootprint file ...");
+            System.exit(1);
+        }
+        FileSystem fileSystem = new FileSystem();
+        for (String name : args)
+            System.out.println(measure(fileSystem.readFile(new File(name))));
+    }
+
+    /** Make the account of the book shown in a GUI available through JMX,
+     *  as the MXBean addressbook:type=BookFootprint
+     *
+     *  @param gui the GUI
+     */
+    static void register(final AddressBookGUI gui)
+    {
+        BookFootprintMXBean bean = new BookFootprintMXBean() {
+            public synchronized void refresh()
+            {
+                current = measure(gui.getAddressBook(), gui.getNameListModel());
+            }
+
+            public long getTotalBytes()
+            {
+                return current().getTotalBytes();
+            }
+
+            public long getBytesPerPerson()
+            {
+                BookFootprint footprint = current();
+                return footprint.getTotalBytes() /
+                       Math.max(footprint.getPersonCount(), 1);
+            }
+
+            public long getDuplicateBytes()
+            {
+                return current().getDuplicateBytes();
+            }
+
+            public Map<String, Long> getComponentBytes()
+            {
+                Map<String, Long> result = new LinkedHashMap<String, Long>();
+                for (Component component : current().getComponents())
+                    result.put(component.getName(), component.getBytes());
+                return result;
+            }
+
+            public String getReport()
+            {
+                return current().toString();
+            }
+
+            public boolean isInstrumented()
+            {
+                return BookFootprint.isInstrumented();
+            }
+
+            private synchronized BookFootprint current()
+            {
+                if (current == null)
+                    refresh();
+                return current;
+            }
+
+            private BookFootprint current;
+        };
+
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(bean, name);
+        }
+        catch(JMException e)
+        {
+            throw new IllegalStateException("Cannot register " + MBEAN_NAME, e);
+        }
+    }
+
+    /** Constructor - start an empty account
+     *
+     *  @param title the title of the book
+     */
+    private BookFootprint(String title)
+    {
+        this.title = title;
+        components = new LinkedHashMap<String, Component>();
+        seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        canonical = new HashMap<String, String>();
+    }
+
+    /** Auxiliary to measure - count everything the book refers to
+     */
+    private void measureBook(AddressBook book)
+    {
+        BookSnapshot snapshot = book.snapshot();
+        personCount = snapshot.size();
+
+        begin("persons");
+        for (Person person : snapshot)
+            count(person, personBytes(person));
+
+        // Persons read lazily have only their names in memory; the rest is
+        // in the reader's cache
+        LazyBookFormat.Reader reader = null;
+        for (PersonField field : PersonField.values())
+        {
+            begin("strings." + field.getName());
+            for (Person person : snapshot)
+            {
+                if (person instanceof LazyBookFormat.LazyPerson)
+                {
+                    reader = ((LazyBookFormat.LazyPerson) person).getReader();
+                    if (field != PersonField.FIRST && field != PersonField.LAST)
+                        continue;
+                }
+                count(field.valueOf(person));
+                count(person.getFolded(field));
+            }
+        }
+        begin("strings.fullName");
+        for (Person person : snapshot)
+            count(person.getFullName());
+
+        begin("list");
+        count(snapshot, layout.object(2, 8));
+        int nodes = snapshot.getPersons().collect(seen, new ArrayList<Person>());
+        add(nodes, nodes * layout.node);
+
+        begin("history");
+        List<UndoHistory.Step> steps;
+        synchronized(book)
+        {
+            steps = book.getHistory().getSteps();
+        }
+        for (UndoHistory.Step step : steps)
+        {
+            count(step, layout.object(7, 0));
+            count(step.removedAt, layout.array(4, step.removedAt.length));
+            count(step.addedAt, layout.array(4, step.addedAt.length));
+            List<Person> persons = new ArrayList<Person>(step.removed);
+            persons.addAll(step.added);
+            add(0, 2 * layout.list(persons.size()));
+            nodes = step.before.collect(seen, persons) +
+                    step.after.collect(seen, persons);
+            add(nodes, nodes * layout.node);
+            for (Person person : persons)
+                countPerson(person);
+        }
+
+        begin("feed");
+        ChangeFeed feed = book.getChangeFeed();
+        List<ChangeFeed.Entry> entries = feed.read(feed.getFirstSequence(),
+                                                   Integer.MAX_VALUE);
+        add(1, layout.array(layout.reference,
+                            Math.max(Integer.highestOneBit(entries.size()) * 2,
+                                     FEED_CAPACITY)));
+        for (ChangeFeed.Entry entry : entries)
+        {
+            count(entry, layout.object(5, 3 * 8 + 2 * 4));
+            int [] previousPositions = entry.getPreviousPositions();
+            if (previousPositions != null)
+                count(previousPositions,
+                      layout.array(4, previousPositions.length));
+            if (entry.getBefore() != null)
+                countPerson(entry.getBefore());
+            if (entry.getAfter() != null)
+                countPerson(entry.getAfter());
+        }
+
+        synchronized(book)
+        {
+            measureIndexes(book.getBookIndexes());
+        }
+
+        if (reader != null)
+        {
+            begin("cache");
+            for (String [] details : reader.getCachedDetails())
+            {
+                count(details, layout.array(layout.reference, details.length));
+                add(2, layout.linkedEntry + layout.object(0, 8));
+                for (String value : details)
+                    count(value);
+            }
+        }
+    }
+
+    /** Auxiliary to measureBook - count the indexes
+     */
+    private void measureIndexes(BookIndexes indexes)
+    {
+        begin("index.names");
+        int names = indexes.getNameCount();
+        add(names + 1, layout.map + layout.table(names) + names * layout.entry);
+
+        measureIndex("index.zip", indexes.getZipIndex(), layout.treeEntry);
+        measureIndex("index.state", indexes.getStateIndex(), layout.entry);
+        measureIndex("index.city", indexes.getCityIndex(), layout.entry);
+
+        begin("index.phone");
+        int capacity = indexes.getPhoneIndex().getCapacity();
+        add(3, layout.object(2, 8) + layout.array(8, capacity) +
+               layout.array(layout.reference, capacity));
+
+        ProximityIndex proximity = indexes.getProximityIndex();
+        if (proximity != null)
+        {
+            begin("index.proximity");
+            int size = proximity.getCentroids().size();
+            add(3, layout.object(3, 0) + layout.array(layout.reference, size) +
+                   layout.array(4, size));
+            for (int listSize : proximity.getListSizes())
+                add(2, layout.list(listSize));
+        }
+    }
+
+    /** Auxiliary to measureIndexes - count an index on one field
+     *
+     *  @param name the name of the component
+     *  @param index the index
+     *  @param entryBytes the size of an entry in the index's map
+     */
+    private void measureIndex(String name, HashFieldIndex index, long entryBytes)
+    {
+        begin(name);
+        synchronized(index)
+        {
+            int values = index.entries.size();
+            add(1, layout.map + (entryBytes == layout.entry
+                                    ? layout.table(values) : 0));
+            for (Map.Entry<String, Set<Person>> entry : index.entries.entrySet())
+            {
+                // Each value has a LinkedHashSet, which is a HashSet holding
+                // a LinkedHashMap
+                int persons = entry.getValue().size();
+                add(3 + persons, entryBytes + layout.object(1, 0) + layout.map +
+                                 layout.table(persons) +
+                                 persons * layout.linkedEntry);
+                count(entry.getKey());
+            }
+        }
+    }
+
+    /** Auxiliary to measure - copy the GUI's list of names on the event
+     *  dispatch thread, since the GUI changes it there
+     *
+     *  @param names the model of the list
+     *  @return the names, followed by one more element: the capacity of the
+     *          model's array, as an Integer.  null if this thread is
+     *          interrupted while waiting for the copy
+     */
+    private static Object [] copyNames(final ListModel<?> names)
+    {
+        final Object [][] result = new Object[1][];
+        Runnable copy = new Runnable() {
+            public void run()
+            {
+                int size = names.getSize();
+                Object [] copied = new Object[size + 1];
+                for (int i = 0; i < size; i ++)
+                    copied[i] = names.getElementAt(i);
+                copied[size] = names instanceof DefaultListModel
+                    ? ((DefaultListModel<?>) names).capacity() : size;
+                result[0] = copied;
+            }
+        };
+        if (SwingUtilities.isEventDispatchThread())
+            copy.run();
+        else
+        {
+            try
+            {
+                SwingUtilities.invokeAndWait(copy);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            catch(InvocationTargetException e)
+            {
+                throw new IllegalStateException("Cannot copy the names",
+                                                e.getCause());
+            }
+        }
+        return result[0];
+    }
+
+    /** Auxiliary to measure - count the GUI's list of names
+     *
+     *  @param names the copy made by copyNames()
+     */
+    private void measureNames(Object [] names)
+    {
+        begin("gui");
+        int capacity = (Integer) names[names.length - 1];
+        add(3, layout.object(1, 0) + layout.object(1, 12) +
+               layout.array(layout.reference, capacity));
+        for (int i = 0; i < names.length - 1; i ++)
+            if (names[i] instanceof String)
+                count((String) names[i]);
+    }
+
+    /** Auxiliary to measure - count the string pool's share of the memory.
+     *  The pool is shared by every book, and the strings in it have been
+     *  counted with the persons that use them, so only its tables are
+     *  counted: a weak entry and a weak reference to the value for each
+     *  value
+     */
+    private void measurePool()
+    {
+        begin("string pool");
+        int size = StringPool.size();
+        int stripes = StringPool.getStripeCount();
+        add(2L * size + stripes,
+            stripes * (layout.map + layout.table(size / stripes)) +
+            size * (layout.object(6, 4) + layout.object(4, 0)));
+    }
+
+    /** Start counting a component
+     */
+    private void begin(String name)
+    {
+        current = new Component(name);
+        components.put(name, current);
+    }
+
+    /** Count objects and bytes in the current component
+     */
+    private void add(long objects, long bytes)
+    {
+        current.objects += objects;
+        current.bytes += bytes;
+    }
+
+    /** Count an object in the current component, unless it has already been
+     *  counted
+     *
+     *  @param object the object
+     *  @param estimate the estimated size of the object itself
+     *  @return true if the object had not been counted before
+     */
+    private boolean count(Object object, long estimate)
+    {
+        if (! seen.add(object))
+            return false;
+        add(1, estimate);
+        return true;
+    }
+
+    /** Count a string, and its array of characters, in the current
+     *  component unless it has already been counted
+     */
+    private void count(String string)
+    {
+        if (string == null || ! seen.add(string))
+            return;
+        long bytes = layout.string(string);
+        add(2, bytes);
+        String first = canonical.get(string);
+        if (first == null)
+            canonical.put(string, string);
+        else
+            current.duplicateBytes += bytes;
+    }
+
+    /** Count a person and its strings in the current component, unless it
+     *  has already been counted
+     */
+    private void countPerson(Person person)
+    {
+        if (! count(person, personBytes(person)))
+            return;
+        count(person.getFullName());
+        if (person instanceof LazyBookFormat.LazyPerson)
+        {
+            count(person.getFirstName());
+            count(person.getLastName());
+        }
+        else
+            for (PersonField field : PersonField.values())
+                count(field.valueOf(person));
+    }
+
+    /** Get the size of a Person object itself
+     */
+    private static long personBytes(Person person)
+    {
+        if (instrumentation != null)
+            return instrumentation.getObjectSize(person);
+        else if (person instanceof LazyBookFormat.LazyPerson)
+            return layout.object(9, 16);
+        else
+            return layout.object(8, 8);
+    }
+
+    /** The sizes of the JVM's objects.  Sizes of JDK collections' internal
+     *  objects are always estimates, as they cannot be got hold of
+     */
+    private static class Layout
+    {
+        Layout()
+        {
+            boolean compressedReferences = true, compressedClasses = true;
+            if (instrumentation != null)
+            {
+                arrayHeader = (int) instrumentation.getObjectSize(new int[0]);
+                reference = (int) (instrumentation.getObjectSize(new Object[4]) -
+                                   arrayHeader) / 4;
+                header = arrayHeader - 4;
+            }
+            else
+            {
+                try
+                {
+                    HotSpotDiagnosticMXBean hotSpot = ManagementFactory
+                        .getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+                    compressedReferences = Boolean.parseBoolean(hotSpot
+                        .getVMOption("UseCompressedOops").getValue());
+                    compressedClasses = Boolean.parseBoolean(hotSpot
+                        .getVMOption("UseCompressedClassPointers").getValue());
+                }
+                catch(RuntimeException e)
+                {
+                    // Not HotSpot - assume the usual 64-bit layout
+                }
+                catch(LinkageError e)
+                {
+                    // Likewise
+                }
+                reference = compressedReferences ? 4 : 8;
+                header = compressedClasses ? 12 : 16;
+                arrayHeader = (int) align(header + 4);
+            }
+            compactStrings = ! System.getProperty("java.specification.version")
+                                     .startsWith("1.");
+            node = object(3, 8);
+            entry = object(3, 4);
+            linkedEntry = object(5, 4);
+            treeEntry = object(5, 1);
+            map = object(6, 17);
+        }
+
+        /** The size of an object with some references and some bytes of
+         *  other fields
+         */
+        long object(int references, int bytes)
+        {
+            return align(header + references * reference + bytes);
+        }
+
+        /** The size of an array
+         */
+        long array(int elementBytes, long length)
+        {
+            return align(arrayHeader + elementBytes * length);
+        }
+
+        /** The size of the table of a hash map holding a number of entries
+         */
+        long table(int entries)
+        {
+            int length = 16;
+            while (length * 3 / 4 < entries)
+                length *= 2;
+            return array(reference, length);
+        }
+
+        /** The size of an ArrayList holding a number of elements
+         */
+        long list(int elements)
+        {
+            return object(1, 8) + array(reference, elements);
+        }
+
+        /** The size of a string and its array of characters
+         */
+        long string(String string)
+        {
+            boolean latin1 = compactStrings;
+            for (int i = 0; latin1 && i < string.length(); i ++)
+                latin1 = string.charAt(i) < 256;
+            long self = instrumentation != null
+                ? instrumentation.getObjectSize(string)
+                : object(1, compactStrings ? 6 : 4);
+            return self + array(latin1 ? 1 : 2, string.length());
+        }
+
+        private static long align(long bytes)
+        {
+            return (bytes + 7) & ~7L;
+        }
+
+        final int header, arrayHeader, reference;
+        final boolean compactStrings;
+
+        // The sizes of PersistentList nodes, HashMap entries, LinkedHashMap
+        // entries, TreeMap entries and a map itself
+
+        final long node, entry, linkedEntry, treeEntry, map;
+    }
+
+    private final String title;
+    private int personCount;
+
+    // The components, and the one being counted
+
+    private final Map<String, Component> components;
+    private Component current;
+
+    // While counting, the objects already counted, and the first string
+    // counted with each value
+
+    private Set<Object> seen;
+    private Map<String, String> canonical;
+
+    // How objects are measured
+
+    private static volatile Instrumentation instrumentation;
+    private static volatile Layout layout = new Layout();
+
+    private static final int FEED_CAPACITY = 64;
+    private static final String MBEAN_NAME = "addressbook:type=BookFootprint";
+}
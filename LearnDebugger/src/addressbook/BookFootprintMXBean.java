@@ -0,0 +1,56 @@
+/**
+ *  BookFootprintMXBean.java
+ *
+ */
+
+package addressbook;
+
+import java.util.Map;
+
+/** The management interface through which the memory taken by the book
+ *  shown in the GUI can be watched, for example from JConsole.  The values
+ *  come from the last BookFootprint made, which is made on first use and
+ *  again each time refresh() is called.
+ */
+public interface BookFootprintMXBean
+{
+    /** Measure the book again
+     */
+    void refresh();
+
+    /** Get the memory taken by the book
+     *
+     *  @return the number of bytes
+     */
+    long getTotalBytes();
+
+    /** Get the memory taken by the book for each person in it
+     *
+     *  @return the number of bytes
+     */
+    long getBytesPerPerson();
+
+    /** Get the memory taken by strings equal to other strings
+     *
+     *  @return the number of bytes that sharing equal strings would save
+     */
+    long getDuplicateBytes();
+
+    /** Get the memory taken by each component of the book
+     *
+     *  @return the number of bytes, by name of component
+     */
+    Map<String, Long> getComponentBytes();
+
+    /** Get the whole account, as text
+     *
+     *  @return the report
+     */
+    String getReport();
+
+    /** Find out whether objects are measured exactly
+     *
+     *  @return true if they are measured; false if they are estimated
+     */
+    boolean isInstrumented();
+}
@@ -0,0 +1,457 @@
+/**
+ *  BookGenerator.java
+ *
+ */
+
+package addressbook;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/** An object of this class makes up address books of any size, for trying
+ *  the program out on books as large as real ones.  The same seed and
+ *  settings always produce the same book.
+ *
+ *  The persons are made to look like a real population:
+ *
+ *      - last names are made up from syllables and chosen with a Zipf
+ *        distribution, so a few are very common and most are rare.  First
+ *        names are handed out in turn for each last name, with middle
+ *        initials added once they run out, so every full name is different
+ *        unless duplicates are asked for
+ *      - cities are made up too, each in one state and with a few ZIPs of
+ *        its own; they are also chosen with a Zipf distribution, so a few
+ *        cities hold much of the book
+ *      - a given fraction of persons share a household (address, city,
+ *        state, ZIP and phone) and last name with someone made shortly
+ *        before them, like the Cats and Buffalos in the test book
+ *      - a given fraction of persons, by default none, have the same full
+ *        name as someone made shortly before them but a household of their
+ *        own, like the same person entered twice after moving, or two
+ *        people with a common name.
+ *
+ *  A skew of 0 makes a choice uniform; larger skews make it more uneven.
+ *  The skews of real name and city populations are around 1.
+ *
+ *  Run as a program, it writes a book to a file:
+ *
+ *      BookGenerator [-seed n] [-format standard|compressed|lazy]
+ *                    [-households fraction] [-duplicates fraction]
+ *                    [-lastNames n] [-cities n] [-zips n]
+ *                    [-nameSkew s] [-citySkew s] size file
+ */
+public class BookGenerator
+{
+    /** Constructor
+     *
+     *  @param seed the seed for the random choices
+     */
+    public BookGenerator(long seed)
+    {
+        this.seed = seed;
+    }
+
+    /** Set the fraction of persons who share a household with someone
+     *  made before them
+     *
+     *  @param fraction the fraction, from 0 to 1
+     */
+    public void setHouseholdRate(double fraction)
+    {
+        if (! (fraction >= 0 && fraction <= 1))
+            throw new IllegalArgumentException("Household rate " + fraction +
+                                               " is not between 0 and 1");
+        householdRate = fraction;
+    }
+
+    /** Set the fraction of persons who have the same full name as someone
+     *  made before them, though not the same household
+     *
+     *  @param fraction the fraction, from 0 to 1
+     */
+    public void setDuplicateRate(double fraction)
+    {
+        if (! (fraction >= 0 && fraction <= 1))
+            throw new IllegalArgumentException("Duplicate rate " + fraction +
+                                               " is not between 0 and 1");
+        duplicateRate = fraction;
+    }
+
+    /** Set the number of different last names, and how unevenly they are
+     *  chosen
+     *
+     *  @param count the number of last names
+     *  @param skew the Zipf exponent - 0 for uniform
+     */
+    public void setLastNames(int count, double skew)
+    {
+        if (count < 1 || ! (skew >= 0))
+            throw new IllegalArgumentException("Bad last name distribution");
+        lastNameCount = count;
+        lastNameSkew = skew;
+    }
+
+    /** Set the number of different cities, how many ZIPs each has, and how
+     *  unevenly they are chosen
+     *
+     *  @param count the number of cities
+     *  @param zipsPerCity the most ZIPs a city has - each has from 1 to this
+     *  @param skew the Zipf exponent - 0 for uniform
+     */
+    public void setCities(int count, int zipsPerCity, double skew)
+    {
+        if (count < 1 || zipsPerCity < 1 || ! (skew >= 0))
+            throw new IllegalArgumentException("Bad city distribution");
+        if ((long) count * zipsPerCity > MAX_ZIPS)
+            throw new IllegalArgumentException("More than " + MAX_ZIPS +
+                                               " ZIPs wanted");
+        cityCount = count;
+        this.zipsPerCity = zipsPerCity;
+        citySkew = skew;
+    }
+
+    /** Make up a number of persons
+     *
+     *  @param size the number of persons
+     *  @return the persons, in the order made
+     */
+    public List<Person> generate(int size)
+    {
+        if (size < 0)
+            throw new IllegalArgumentException("Negative size " + size);
+        Random random = new Random(seed);
+        String [] lastNames = makeNames(random, lastNameCount, 2);
+        String [] firstNames = makeNames(random, FIRST_NAMES, 2);
+        City [] cities = makeCities(random);
+        Zipf lastNameChoice = new Zipf(lastNameCount, lastNameSkew);
+        Zipf cityChoice = new Zipf(cityCount, citySkew);
+
+        // How many persons have each last name so far, which picks the
+        // first name of the next one
+        Map<String, Integer> used = new HashMap<String, Integer>();
+        Person [] recent = new Person[HOUSEHOLD_WINDOW];
+
+        List<Person> result = new ArrayList<Person>(size);
+        for (int i = 0; i < size; i ++)
+        {
+            Person household = null;
+            if (i > 0 && random.nextDouble() < householdRate)
+                household = recent[random.nextInt(
+                    Math.min(i, HOUSEHOLD_WINDOW))];
+
+            // Chosen only when asked for, so that books made without
+            // duplicates stay the same as before there were any
+            Person duplicate = null;
+            if (household == null && i > 0 && duplicateRate > 0 &&
+                random.nextDouble() < duplicateRate)
+                duplicate = recent[random.nextInt(
+                    Math.min(i, HOUSEHOLD_WINDOW))];
+
+            String lastName, firstName;
+            if (duplicate != null)
+            {
+                lastName = duplicate.getLastName();
+                firstName = duplicate.getFirstName();
+            }
+            else
+            {
+                lastName = household != null
+                    ? household.getLastName()
+                    : lastNames[lastNameChoice.next(random)];
+                Integer count = used.get(lastName);
+                int n = count == null ? 0 : count;
+                used.put(lastName, n + 1);
+                firstName = firstName(firstNames, lastName, n);
+            }
+
+            Person person;
+            // Note the order of the constructor's last two parameters
+            if (household != null)
+                person = new Person(firstName, lastName,
+                                    household.getAddress(), household.getCity(),
+                                    household.getState(), household.getPhone(),
+                                    household.getZip());
+            else
+            {
+                City city = cities[cityChoice.next(random)];
+                person = new Person(firstName, lastName,
+                                    address(random, lastNames), city.name,
+                                    city.state,
+                                    phone(random, city),
+                                    city.zips[random.nextInt(city.zips.length)]);
+            }
+            result.add(person);
+            recent[i % HOUSEHOLD_WINDOW] = person;
+        }
+        return result;
+    }
+
+    /** Make up an address book
+     *
+     *  @param size the number of persons
+     *  @return a new book holding them, not marked as changed
+     */
+    public AddressBook generateBook(int size)
+    {
+        AddressBook result = new AddressBook();
+        List<Person> persons = generate(size);
+        for (int from = 0; from < size; from += BATCH_SIZE)
+            result.appendPersons(persons.subList(from,
+                Math.min(from + BATCH_SIZE, size)));
+        return result;
+    }
+
+    /** Make up a book and write it to a file
+     *
+     *  @param args the command line - see the class description
+     *
+     *  @exception Exception if the book cannot be written
+     */
+    public static void main(String [] args) throws Exception
+    {
+        BookGenerator generator = new BookGenerator(DEFAULT_SEED);
+        FileSystem fileSystem = new FileSystem();
+        int lastNames = DEFAULT_LAST_NAMES;
+        int cities = DEFAULT_CITIES, zips = DEFAULT_ZIPS_PER_CITY;
+        double nameSkew = DEFAULT_SKEW, citySkew = DEFAULT_SKEW;
+        int i = 0;
+        try
+        {
+            for (; i + 2 < args.length; i += 2)
+            {
+                String value = args[i + 1];
+                if (args[i].equals("-seed"))
+                    generator.seed = Long.parseLong(value);
+                else if (args[i].equals("-format"))
+                    fileSystem.setFormat(FileSystem.Format.valueOf(
+                        value.toUpperCase()));
+                else if (args[i].equals("-households"))
+                    generator.setHouseholdRate(Double.parseDouble(value));
+                else if (args[i].equals("-duplicates"))
+                    generator.setDuplicateRate(Double.parseDouble(value));
+                else if (args[i].equals("-lastNames"))
+                    lastNames = Integer.parseInt(value);
+                else if (args[i].equals("-cities"))
+                    cities = Integer.parseInt(value);
+                else if (args[i].equals("-zips"))
+                    zips = Integer.parseInt(value);
+                else if (args[i].equals("-nameSkew"))
+                    nameSkew = Double.parseDouble(value);
+                else if (args[i].equals("-citySkew"))
+                    citySkew = Double.parseDouble(value);
+                else
+                    throw new IllegalArgumentException("Unknown option " +
+                                                       args[i]);
+            }
+            if (args.length - i != 2)
+                throw new IllegalArgumentException("Size and file wanted");
+            generator.setLastNames(lastNames, nameSkew);
+            generator.setCities(cities, zips, citySkew);
+        }
+        catch(IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: BookGenerator [-seed n] " +
+                "[-format standard|compressed|lazy] [-households fraction] " +
+                "[-duplicates fraction] [-lastNames n] [-cities n] [-zips n] " +
+                "[-nameSkew s] [-citySkew s] size file");
+            System.exit(1);
+        }
+
+        AddressBook book = generator.generateBook(Integer.parseInt(args[i]));
+        File file = new File(args[i + 1]);
+        fileSystem.saveFile(book, file);
+        System.out.println(book.size() + " persons written to " + file);
+    }
+
+    /** Auxiliary to generate - the first name of the n-th person with a last
+     *  name.  The names are handed out starting from a different place for
+     *  each last name; once all are used, middle initials are added
+     */
+    private static String firstName(String [] firstNames, String lastName, int n)
+    {
+        int start = (lastName.hashCode() & Integer.MAX_VALUE) % firstNames.length;
+        String result = firstNames[(start + n) % firstNames.length];
+        int round = n / firstNames.length;
+        if (round == 0)
+            return result;
+        StringBuilder initials = new StringBuilder();
+        for (; round > 0; round = (round - 1) / 26)
+            initials.insert(0, (char) ('A' + (round - 1) % 26));
+        return result + " " + initials + ".";
+    }
+
+    /** Auxiliary to generate - make up a street address
+     */
+    private static String address(Random random, String [] names)
+    {
+        return (1 + random.nextInt(9999)) + " " +
+               names[random.nextInt(names.length)] + " " +
+               STREET_KINDS[random.nextInt(STREET_KINDS.length)];
+    }
+
+    /** Auxiliary to generate - make up a phone number in a city's area code
+     */
+    private static String phone(Random random, City city)
+    {
+        return String.format("%03d-%03d-%04d", city.areaCode,
+                             200 + random.nextInt(800), random.nextInt(10000));
+    }
+
+    /** Auxiliary to generate - make up different names from syllables.
+     *  Longer names are made once the short ones start to run out
+     *
+     *  @param random the source of choices
+     *  @param count the number of names wanted
+     *  @param syllables the number of syllables in the shortest names
+     *  @return the names, capitalized
+     */
+    private static String [] makeNames(Random random, int count, int syllables)
+    {
+        String [] result = new String[count];
+        Set<String> made = new HashSet<String>(2 * count);
+        int attempts = 0;
+        for (int i = 0; i < count; )
+        {
+            StringBuilder name = new StringBuilder();
+            for (int j = 0; j < syllables; j ++)
+                name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+            if (made.add(name.toString()))
+                result[i ++] = name.toString();
+            else if (++ attempts > count)
+            {
+                // Running out of names this long
+                syllables ++;
+                attempts = 0;
+            }
+        }
+        return result;
+    }
+
+    /** Auxiliary to generate - make up the cities, each with its own ZIPs
+     */
+    private City [] makeCities(Random random)
+    {
+        String [] names = makeNames(random, cityCount, 2);
+        int [] zips = new int[MAX_ZIPS];
+        for (int i = 0; i < zips.length; i ++)
+            zips[i] = i;
+        City [] result = new City[cityCount];
+        int used = 0;
+        for (int i = 0; i < cityCount; i ++)
+        {
+            City city = new City();
+            city.name = names[i] + CITY_ENDINGS[random.nextInt(CITY_ENDINGS.length)];
+            int state = random.nextInt(STATES.length);
+            city.state = STATES[state];
+            city.areaCode = 201 + (state * 16 + random.nextInt(16)) % 780;
+            city.zips = new String[1 + random.nextInt(zipsPerCity)];
+            for (int j = 0; j < city.zips.length; j ++)
+            {
+                // Shuffle in the next unused ZIP
+                int k = used + random.nextInt(MAX_ZIPS - used);
+                int zip = zips[k];
+                zips[k] = zips[used];
+                zips[used ++] = zip;
+                city.zips[j] = String.format("%05d", zip);
+            }
+            Arrays.sort(city.zips);
+            result[i] = city;
+        }
+        return result;
+    }
+
+    /** A made-up city
+     */
+    private static class City
+    {
+        String name;
+        String state;
+        int areaCode;
+        String [] zips;
+    }
+
+    /** Choices of a number from 0 to n-1, with the chance of choosing k
+     *  proportional to 1 / (k + 1)^skew
+     */
+    private static class Zipf
+    {
+        Zipf(int n, double skew)
+        {
+            cumulative = new double[n];
+            double total = 0;
+            for (int k = 0; k < n; k ++)
+            {
+                total += 1 / Math.pow(k + 1, skew);
+                cumulative[k] = total;
+            }
+            for (int k = 0; k < n; k ++)
+                cumulative[k] /= total;
+        }
+
+        int next(Random random)
+        {
+            int result = Arrays.binarySearch(cumulative, random.nextDouble());
+            result = result < 0 ? -(result + 1) : result;
+            return Math.min(result, cumulative.length - 1);
+        }
+
+        private final double [] cumulative;
+    }
+
+    private long seed;
+
+    // The shape of the books made
+
+    private double householdRate = DEFAULT_HOUSEHOLD_RATE;
+    private double duplicateRate = 0;
+    private int lastNameCount = DEFAULT_LAST_NAMES;
+    private double lastNameSkew = DEFAULT_SKEW;
+    private int cityCount = DEFAULT_CITIES;
+    private int zipsPerCity = DEFAULT_ZIPS_PER_CITY;
+    private double citySkew = DEFAULT_SKEW;
+
+    private static final long DEFAULT_SEED = 1;
+    private static final double DEFAULT_HOUSEHOLD_RATE = 0.2;
+    private static final int DEFAULT_LAST_NAMES = 50000;
+    private static final int DEFAULT_CITIES = 5000;
+    private static final int DEFAULT_ZIPS_PER_CITY = 8;
+    private static final double DEFAULT_SKEW = 1.0;
+    private static final int FIRST_NAMES = 2000;
+    private static final int MAX_ZIPS = 100000;
+
+    // How far back a person can be to share a household with a new one, and
+    // how many persons are put in the book at a time
+
+    private static final int HOUSEHOLD_WINDOW = 64;
+    private static final int BATCH_SIZE = 65536;
+
+    private static final String [] SYLLABLES = {
+        "al", "an", "ar", "bel", "ben", "bor", "ca", "cor", "da", "del",
+        "dor", "el", "en", "fa", "fer", "gar", "gil", "ha", "hel", "in",
+        "is", "ja", "ka", "kel", "la", "lin", "lo", "ma", "mar", "mel",
+        "mo", "na", "nel", "no", "or", "pa", "per", "ra", "ren", "ri",
+        "ro", "sa", "sel", "son", "ta", "ter", "to", "va", "vin", "wen"
+    };
+    private static final String [] STREET_KINDS = {
+        "St", "Ave", "Rd", "Ln", "Dr", "Ct", "Way", "Pl"
+    };
+    private static final String [] CITY_ENDINGS = {
+        "", "", "", "ton", "ville", "burg", " Falls", " Springs"
+    };
+    private static final String [] STATES = {
+        "AL", "AK", "AZ", "AR", "CA", "CO", "CT", "DE", "FL", "GA",
+        "HI", "ID", "IL", "IN", "IA", "KS", "KY", "LA", "ME", "MD",
+        "MA", "MI", "MN", "MS", "MO", "MT", "NE", "NV", "NH", "NJ",
+        "NM", "NY", "NC", "ND", "OH", "OK", "OR", "PA", "RI", "SC",
+        "SD", "TN", "TX", "UT", "VT", "VA", "WA", "WV", "WI", "WY"
+    };
+}
@@ -0,0 +1,551 @@
+/**
+ *  BookImporter.java
+ *
+ */
+
+package addressbook;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/** An object of this class imports persons into an address book from a CSV
+ *  or vCard file.  The work is done as a pipeline:
+ *
+ *      - the calling thread reads the file, cutting it into chunks of
+ *        CHUNK_SIZE records without parsing them
+ *      - each chunk is parsed into persons by a worker thread
+ *      - the calling thread hands the parsed chunks to the address book in
+ *        file order, each as one batch
+ *
+ *  At most a fixed number of chunks are in the pipeline at once, so the
+ *  memory used does not depend on the size of the file.  Persons whose names
+ *  are already in the book are skipped, as are records that cannot be parsed.
+ *
+ *  A CSV file has one person per record, with the fields first name, last
+ *  name, address, city, state, ZIP and phone, in that order.  Fields may be
+ *  quoted in the usual way.  A first record of column titles is skipped.
+ *
+ *  A record that never ends - a CSV line with an unbalanced quote, or a
+ *  vCard with no END:VCARD - is cut off at MAX_RECORD_LINES lines or
+ *  MAX_RECORD_CHARS characters and rejected, and reading goes on from the
+ *  line after the one it started on (CSV) or the next BEGIN:VCARD (vCard).
+ *  A byte order mark at the start of the file is ignored.
+ */
+public class BookImporter
+{
+    /** The kinds of file that can be imported
+     */
+    public enum Format { CSV, VCARD }
+
+    /** The outcome of an import
+     */
+    public static class Result
+    {
+        /** Get the number of persons added to the book
+         *
+         *  @return the number added
+         */
+        public int getAdded()
+        {
+            return added;
+        }
+
+        /** Get the number of persons left out because a person of the
+         *  same name was already in the book
+         *
+         *  @return the number of duplicates
+         */
+        public int getDuplicates()
+        {
+            return duplicates;
+        }
+
+        /** Get the number of records that could not be understood
+         *
+         *  @return the number of bad records
+         */
+        public int getRejected()
+        {
+            return rejected;
+        }
+
+        private int added, duplicates, rejected;
+    }
+
+    /** Constructor
+     *
+     *  @param addressBook the book to import into
+     */
+    public BookImporter(AddressBook addressBook)
+    {
+        this.addressBook = addressBook;
+    }
+
+    /** Choose the format for a file from its name - .vcf and .vcard files
+     *  are vCards; anything else is taken to be CSV
+     *
+     *  @param file the file
+     *  @return the format the file is in
+     */
+    public static Format formatOf(File file)
+    {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".vcf") || name.endsWith(".vcard"))
+            return Format.VCARD;
+        else
+            return Format.CSV;
+    }
+
+    /** Import the persons in a file
+     *
+     *  @param file the file to read
+     *  @param format the format the file is in
+     *  @return the outcome of the import
+     *
+     *  @exception IOException if there is a problem reading the file
+     */
+    public Result importFile(File file, final Format format) throws IOException
+    {
+        Result result = new Result();
+        Deque<Future<Chunk>> pipeline = new ArrayDeque<Future<Chunk>>();
+        int maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+
+        RecordReader reader = new RecordReader(new BufferedReader(
+            new InputStreamReader(new FileInputStream(file), UTF8), 1 << 16),
+            format, result);
+        try
+        {
+            boolean first = true;
+            List<String> records;
+            while (! (records = reader.readChunk()).isEmpty())
+            {
+                final List<String> chunk = records;
+                final boolean skipTitles = first && format == Format.CSV;
+                first = false;
+                pipeline.addLast(BookExecutors.workers().submit(
+                    new Callable<Chunk>() {
+                        public Chunk call()
+                        {
+                            return parse(chunk, format, skipTitles);
+                        }
+                    }));
+                if (pipeline.size() >= maxInFlight)
+                    handOff(pipeline.removeFirst(), result);
+            }
+            while (! pipeline.isEmpty())
+                handOff(pipeline.removeFirst(), result);
+        }
+        finally
+        {
+            for (Future<Chunk> pending : pipeline)
+                pending.cancel(true);
+            reader.close();
+        }
+        return result;
+    }
+
+    /** Auxiliary to importFile - wait for a chunk to be parsed and add its
+     *  persons to the book
+     */
+    private void handOff(Future<Chunk> future, Result result) throws IOException
+    {
+        Chunk chunk;
+        try
+        {
+            chunk = future.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Import interrupted");
+        }
+        catch(ExecutionException e)
+        {
+            throw new IOException("Problem parsing the file", e.getCause());
+        }
+        int added = addressBook.addPersons(chunk.persons);
+        result.added += added;
+        result.duplicates += chunk.persons.size() - added;
+        result.rejected += chunk.rejected;
+    }
+
+    /** An object of this class cuts the text of an import file into records,
+     *  for importFile.  For CSV a record is a line, except that a quoted
+     *  field may run over several lines; for vCard it is everything from
+     *  BEGIN:VCARD to END:VCARD
+     */
+    private static class RecordReader
+    {
+        /** Constructor
+         *
+         *  @param reader the text of the file
+         *  @param format the format the file is in
+         *  @param result where to count records rejected because they never
+         *         end
+         */
+        RecordReader(BufferedReader reader, Format format, Result result)
+        {
+            this.reader = reader;
+            this.format = format;
+            this.result = result;
+        }
+
+        /** Read the raw text of up to CHUNK_SIZE records
+         *
+         *  @return the records read - empty at the end of the file
+         *
+         *  @exception IOException if there is a problem reading the file
+         */
+        List<String> readChunk() throws IOException
+        {
+            List<String> chunk = new ArrayList<String>(CHUNK_SIZE);
+            List<String> lines = new ArrayList<String>();
+            int length = 0;
+            String line;
+            while (chunk.size() < CHUNK_SIZE && (line = readLine()) != null)
+            {
+                if (format == Format.VCARD && ! lines.isEmpty() &&
+                    line.trim().equalsIgnoreCase("BEGIN:VCARD"))
+                {
+                    // The card before had no END:VCARD
+                    result.rejected ++;
+                    lines.clear();
+                    length = 0;
+                }
+                lines.add(line);
+                length += line.length() + 1;
+
+                String record = null;
+                if (format == Format.CSV)
+                {
+                    if (quotesBalanced(lines))
+                        record = join(lines);
+                }
+                else if (line.trim().equalsIgnoreCase("END:VCARD"))
+                    record = join(lines) + "\n";
+
+                if (record != null)
+                {
+                    if (record.length() > 0)
+                        chunk.add(record);
+                    lines.clear();
+                    length = 0;
+                }
+                else if (lines.size() > MAX_RECORD_LINES ||
+                         length > MAX_RECORD_CHARS)
+                {
+                    reject(lines);
+                    length = 0;
+                }
+            }
+            if (! lines.isEmpty())
+            {
+                // At the end of the file
+                if (format == Format.CSV && ! quotesBalanced(lines))
+                    reject(lines);
+                else
+                    chunk.add(join(lines) + 
+                              (format == Format.VCARD ? "\n" : ""));
+            }
+            return chunk;
+        }
+
+        /** Auxiliary to readChunk - give up on a record that never ends.
+         *  For CSV, only its first line is rejected and the rest are read
+         *  again; for vCard, the card is rejected and reading goes on at the
+         *  next BEGIN:VCARD
+         *
+         *  @param lines the lines of the record - emptied
+         */
+        private void reject(List<String> lines)
+        {
+            result.rejected ++;
+            if (format == Format.CSV)
+                for (int i = lines.size() - 1; i > 0; i --)
+                    pending.addFirst(lines.get(i));
+            else
+                skipToNextCard = true;
+            lines.clear();
+        }
+
+        /** Auxiliary to readChunk - get the next line, leaving out a byte
+         *  order mark at the start of the file, and the rest of a rejected
+         *  vCard
+         */
+        private String readLine() throws IOException
+        {
+            if (! pending.isEmpty())
+                return pending.removeFirst();
+            String line = reader.readLine();
+            if (firstLine && line != null && line.startsWith(BYTE_ORDER_MARK))
+                line = line.substring(BYTE_ORDER_MARK.length());
+            firstLine = false;
+            while (skipToNextCard && line != null &&
+                   ! line.trim().equalsIgnoreCase("BEGIN:VCARD"))
+                line = reader.readLine();
+            skipToNextCard = false;
+            return line;
+        }
+
+        void close() throws IOException
+        {
+            reader.close();
+        }
+
+        private final BufferedReader reader;
+        private final Format format;
+        private final Result result;
+
+        // Lines to read again, after a CSV record is rejected
+
+        private final Deque<String> pending = new ArrayDeque<String>();
+        private boolean firstLine = true;
+        private boolean skipToNextCard;
+    }
+
+    /** Auxiliary to RecordReader - join the lines of a record
+     */
+    private static String join(List<String> lines)
+    {
+        if (lines.size() == 1)
+            return lines.get(0);
+        StringBuilder result = new StringBuilder();
+        for (String line : lines)
+        {
+            if (result.length() > 0)
+                result.append('\n');
+            result.append(line);
+        }
+        return result.toString();
+    }
+
+    /** Auxiliary to RecordReader - check whether a CSV record is complete,
+     *  i.e. it has an even number of quote characters
+     */
+    private static boolean quotesBalanced(List<String> lines)
+    {
+        boolean inQuotes = false;
+        for (String line : lines)
+            for (int i = 0; i < line.length(); i ++)
+                if (line.charAt(i) == '"')
+                    inQuotes = ! inQuotes;
+        return ! inQuotes;
+    }
+
+    /** The persons parsed from one chunk, and how many records were bad
+     */
+    private static class Chunk
+    {
+        List<Person> persons = new ArrayList<Person>();
+        int rejected;
+    }
+
+    /** Auxiliary to importFile - parse one chunk.  Runs on a worker thread
+     */
+    private static Chunk parse(List<String> records,
+                               Format format,
+                               boolean skipTitles)
+    {
+        Chunk result = new Chunk();
+        for (int i = 0; i < records.size(); i ++)
+        {
+            Person person = format == Format.CSV ?
+                parseCsv(records.get(i)) : parseVCard(records.get(i));
+            if (i == 0 && skipTitles && person != null &&
+                person.getFirstName().trim().toLowerCase().startsWith("first"))
+                continue;
+            if (person == null)
+                result.rejected ++;
+            else
+                result.persons.add(person);
+        }
+        return result;
+    }
+
+    /** Auxiliary to parse - parse a CSV record
+     *
+     *  @return the person, or null if the record is not valid
+     */
+    private static Person parseCsv(String record)
+    {
+        List<String> fields = new ArrayList<String>(FIELD_COUNT);
+        StringBuilder field = new StringBuilder();
+        boolean inQuotes = false;
+        for (int i = 0; i < record.length(); i ++)
+        {
+            char c = record.charAt(i);
+            if (inQuotes)
+            {
+                if (c != '"')
+                    field.append(c);
+                else if (i + 1 < record.length() && record.charAt(i + 1) == '"')
+                {
+                    field.append('"');
+                    i ++;
+                }
+                else
+                    inQuotes = false;
+            }
+            else if (c == '"')
+                inQuotes = true;
+            else if (c == ',')
+            {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            }
+            else
+                field.append(c);
+        }
+        fields.add(field.toString().trim());
+
+        if (fields.size() != FIELD_COUNT ||
+            fields.get(0).isEmpty() && fields.get(1).isEmpty())
+            return null;
+        return makePerson(fields.get(0), fields.get(1), fields.get(2),
+                          fields.get(3), fields.get(4), fields.get(5),
+                          fields.get(6));
+    }
+
+    /** Auxiliary to parse - parse a vCard.  The name is taken from N (or FN
+     *  if there is no N), the address from the first ADR, and the phone from
+     *  the first TEL
+     *
+     *  @return the person, or null if the card has no name
+     */
+    private static Person parseVCard(String card)
+    {
+        String first = "", last = "", address = "", city = "", state = "",
+               zip = "", phone = "", fullName = null;
+        boolean haveName = false, haveAddress = false, havePhone = false;
+
+        // Continuation lines start with a space or tab
+        String unfolded = card.replace("\r", "").replace("\n ", "")
+                              .replace("\n\t", "");
+        for (String line : unfolded.split("\n"))
+        {
+            int colon = line.indexOf(':');
+            if (colon < 0)
+                continue;
+            String property = line.substring(0, colon).toUpperCase();
+            int semicolon = property.indexOf(';');
+            if (semicolon >= 0)
+                property = property.substring(0, semicolon);
+            String value = line.substring(colon + 1);
+
+            if (property.equals("N") && ! haveName)
+            {
+                String [] parts = split(value);
+                last = part(parts, 0);
+                first = part(parts, 1);
+                haveName = true;
+            }
+            else if (property.equals("FN"))
+                fullName = unescape(value);
+            else if (property.equals("ADR") && ! haveAddress)
+            {
+                // PO box; extended address; street; city; region; code; country
+                String [] parts = split(value);
+                address = part(parts, 2);
+                city = part(parts, 3);
+                state = part(parts, 4);
+                zip = part(parts, 5);
+                haveAddress = true;
+            }
+            else if (property.equals("TEL") && ! havePhone)
+            {
+                phone = unescape(value);
+                havePhone = true;
+            }
+        }
+
+        if (! haveName && fullName != null)
+        {
+            int space = fullName.lastIndexOf(' ');
+            first = space < 0 ? "" : fullName.substring(0, space);
+            last = fullName.substring(space + 1);
+            haveName = true;
+        }
+        if (! haveName || first.isEmpty() && last.isEmpty())
+            return null;
+        return makePerson(first, last, address, city, state, zip, phone);
+    }
+
+    private static String part(String [] parts, int index)
+    {
+        return index < parts.length ? unescape(parts[index]) : "";
+    }
+
+    /** Auxiliary to parseVCard - split a structured value at the semicolons
+     *  that are not escaped, leaving the parts escaped
+     */
+    private static String [] split(String value)
+    {
+        List<String> result = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i < value.length(); i ++)
+        {
+            char c = value.charAt(i);
+            if (c == '\\')
+                i ++;
+            else if (c == ';')
+            {
+                result.add(value.substring(start, i));
+                start = i + 1;
+            }
+        }
+        result.add(value.substring(start));
+        return result.toArray(new String[result.size()]);
+    }
+
+    /** Auxiliary to parseVCard - undo the escapes in a value: \n (a line
+     *  break) becomes a space, and a backslash before anything else stands
+     *  for that character
+     */
+    private static String unescape(String value)
+    {
+        if (value.indexOf('\\') < 0)
+            return value.trim();
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i ++)
+        {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length())
+            {
+                c = value.charAt(++ i);
+                result.append(c == 'n' || c == 'N' ? ' ' : c);
+            }
+            else
+                result.append(c);
+        }
+        return result.toString().trim();
+    }
+
+    /** Auxiliary to the parsers - make a person from its fields, given in
+     *  the order they appear in an import file
+     */
+    private static Person makePerson(String first, String last, String address,
+                                     String city, String state, String zip,
+                                     String phone)
+    {
+        // Note the order of the constructor's last two parameters
+        return new Person(first, last, address, city, state, phone, zip);
+    }
+
+    // The address book to import into
+
+    private AddressBook addressBook;
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final int MAX_RECORD_LINES = 1000;
+    private static final int MAX_RECORD_CHARS = 1 << 20;
+    private static final String BYTE_ORDER_MARK = "\uFEFF";
+    private static final int FIELD_COUNT = 7;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+}
@@ -0,0 +1,337 @@
+/**
+ *  BookIndexes.java
+ *
+ */
+
+package addressbook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/** An object of this class maintains the secondary indexes of an address
+ *  book: a sorted index on ZIP, so that ranges of ZIPs can be found, hash
+ *  indexes on state and city, an index on phone number for reverse lookups,
+ *  and a table of persons by full name.  If the locations of ZIPs have been
+ *  given, there is also an index of persons by location.
+ *
+ *  Several persons may share a name - in a book read from a file, imported,
+ *  or synchronized with another.  The table then gives the first of them
+ *  still in the book, and keeps the rest aside, so that removing one leaves
+ *  the others to be found.
+ *
+ *  Building the field indexes means looking at every person's ZIP, state,
+ *  city and phone.  For a book whose persons are read lazily that would read
+ *  the whole file, so the field indexes can be deferred: only the names are
+ *  kept up to date until build() is called.
+ */
+public class BookIndexes
+{
+    /** Constructor - create empty indexes
+     */
+    public BookIndexes()
+    {
+        zip = new SortedFieldIndex(PersonField.ZIP);
+        state = new HashFieldIndex(PersonField.STATE);
+        city = new HashFieldIndex(PersonField.CITY);
+        phone = new PhoneIndex();
+        names = new HashMap<String, Person>();
+        sharedNames = new HashMap<String, List<Person>>();
+
+        List<FieldIndex> all = new ArrayList<FieldIndex>();
+        all.add(zip);
+        all.add(state);
+        all.add(city);
+        all.add(phone);
+        this.all = Collections.unmodifiableList(all);
+    }
+
+    /** Record a person in every index
+     *
+     *  @param person the person to add
+     */
+    public void add(Person person)
+    {
+        if (! deferred)
+        {
+            zip.add(person);
+            state.add(person);
+            city.add(person);
+            phone.add(person);
+            if (proximity != null)
+                proximity.add(person);
+        }
+        synchronized(names)
+        {
+            String name = person.getFullName();
+            if (! names.containsKey(name))
+                names.put(name, person);
+            else
+            {
+                List<Person> others = sharedNames.get(name);
+                if (others == null)
+                {
+                    others = new ArrayList<Person>(1);
+                    sharedNames.put(name, others);
+                }
+                others.add(person);
+            }
+        }
+    }
+
+    /** Remove a person from every index
+     *
+     *  @param person the person to remove
+     */
+    public void remove(Person person)
+    {
+        if (! deferred)
+        {
+            zip.remove(person);
+            state.remove(person);
+            city.remove(person);
+            phone.remove(person);
+            if (proximity != null)
+                proximity.remove(person);
+        }
+        synchronized(names)
+        {
+            String name = person.getFullName();
+            List<Person> others = sharedNames.get(name);
+            if (names.get(name) == person)
+            {
+                // Another person of the same name takes its place
+                if (others == null)
+                    names.remove(name);
+                else
+                    names.put(name, others.remove(0));
+            }
+            else if (others != null)
+                removeSame(others, person);
+            if (others != null && others.isEmpty())
+                sharedNames.remove(name);
+        }
+    }
+
+    /** Discard the current contents and index a whole collection of persons
+     *
+     *  @param persons the persons to index
+     */
+    public void rebuild(Iterable<Person> persons)
+    {
+        zip.clear();
+        state.clear();
+        city.clear();
+        phone.clear();
+        if (proximity != null)
+            proximity.clear();
+        synchronized(names)
+        {
+            names.clear();
+            sharedNames.clear();
+        }
+        for (Person person : persons)
+            add(person);
+    }
+
+    /** Stop maintaining the field indexes, discarding their contents, until
+     *  build() is called.  The names are still maintained
+     */
+    public void defer()
+    {
+        deferred = true;
+        zip.clear();
+        state.clear();
+        city.clear();
+        phone.clear();
+        if (proximity != null)
+            proximity.clear();
+    }
+
+    /** Find out whether the field indexes are deferred
+     *
+     *  @return true if the field indexes must be built before they are used
+     */
+    public boolean isDeferred()
+    {
+        return deferred;
+    }
+
+    /** Build the field indexes, which have been deferred, from the persons
+     *  now in the book.  The caller must see that the book does not change
+     *  meanwhile
+     *
+     *  @param persons the persons now in the book
+     */
+    public void build(Iterable<Person> persons)
+    {
+        for (Person person : persons)
+        {
+            zip.add(person);
+            state.add(person);
+            city.add(person);
+            phone.add(person);
+            if (proximity != null)
+                proximity.add(person);
+        }
+        deferred = false;
+    }
+
+    /** Find the person with a given full name
+     *
+     *  @param name the name, as produced by Person.getFullName()
+     *  @return the person with that name, or null if there is none
+     */
+    public Person getByName(String name)
+    {
+        synchronized(names)
+        {
+            return names.get(name);
+        }
+    }
+
+    /** Find every person with a given full name
+     *
+     *  @param name the name, as produced by Person.getFullName()
+     *  @return the persons with that name - empty if there are none
+     */
+    public List<Person> getAllByName(String name)
+    {
+        synchronized(names)
+        {
+            Person first = names.get(name);
+            if (first == null)
+                return Collections.emptyList();
+            List<Person> result = new ArrayList<Person>();
+            result.add(first);
+            List<Person> others = sharedNames.get(name);
+            if (others != null)
+                result.addAll(others);
+            return result;
+        }
+    }
+
+    /** Find out whether a given person - not just one of the same name - is
+     *  in the table of persons by name
+     *
+     *  @param person the person
+     *  @return true if it is
+     */
+    public boolean containsPerson(Person person)
+    {
+        for (Person named : getAllByName(person.getFullName()))
+            if (named == person)
+                return true;
+        return false;
+    }
+
+    /** Get the number of persons in the table of persons by name
+     *
+     *  @return the number of names
+     */
+    public int getNameCount()
+    {
+        synchronized(names)
+        {
+            return names.size();
+        }
+    }
+
+    /** Accessor for the ZIP index
+     *
+     *  @return the sorted index on ZIP
+     */
+    public SortedFieldIndex getZipIndex()
+    {
+        return zip;
+    }
+
+    /** Accessor for the state index
+     *
+     *  @return the hash index on state
+     */
+    public HashFieldIndex getStateIndex()
+    {
+        return state;
+    }
+
+    /** Accessor for the city index
+     *
+     *  @return the hash index on city
+     */
+    public HashFieldIndex getCityIndex()
+    {
+        return city;
+    }
+
+    /** Accessor for the phone number index
+     *
+     *  @return the index on phone number
+     */
+    public PhoneIndex getPhoneIndex()
+    {
+        return phone;
+    }
+
+    /** Accessor for the location index
+     *
+     *  @return the index of persons by the location of their ZIP, or null
+     *          if there is none
+     */
+    public ProximityIndex getProximityIndex()
+    {
+        return proximity;
+    }
+
+    /** Start or stop indexing persons by location.  A new index is filled
+     *  with the persons now in the book, unless the field indexes are
+     *  deferred, in which case it is filled when they are built
+     *
+     *  @param proximity the new (empty) index, or null to stop
+     *  @param persons the persons now in the book
+     */
+    public void setProximityIndex(ProximityIndex proximity,
+                                  Iterable<Person> persons)
+    {
+        if (proximity != null && ! deferred)
+            for (Person person : persons)
+                proximity.add(person);
+        this.proximity = proximity;
+    }
+
+    /** Get all of the indexes, for the query planner
+     *
+     *  @return every index
+     */
+    public List<FieldIndex> getAll()
+    {
+        return all;
+    }
+
+    /** Auxiliary to remove - take a person, not just one of the same name,
+     *  out of a list
+     */
+    private static void removeSame(List<Person> persons, Person person)
+    {
+        for (int i = 0; i < persons.size(); i ++)
+            if (persons.get(i) == person)
+            {
+                persons.remove(i);
+                return;
+            }
+    }
+
+    private SortedFieldIndex zip;
+    private HashFieldIndex state;
+    private HashFieldIndex city;
+    private PhoneIndex phone;
+    private ProximityIndex proximity;
+    private HashMap<String, Person> names;
+    private HashMap<String, List<Person>> sharedNames;     // all but the first
+    private List<FieldIndex> all;
+
+    // Whether the field indexes are waiting to be built
+
+    private volatile boolean deferred;
+}
@@ -0,0 +1,19 @@
+/**
+ *  BookListener.java
+ *
+ */
+
+package addressbook;
+
+/** An object implementing this interface is told about changes to an
+ *  address book it has subscribed to.  See BookEventBus for when and on
+ *  what thread it is told.
+ */
+public interface BookListener
+{
+    /** Called after one or more changes have been made to a book
+     *
+     *  @param event a description of the changes
+     */
+    void bookChanged(BookEvent event);
+}
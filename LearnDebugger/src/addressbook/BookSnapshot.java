@@ -0,0 +1,128 @@
+/**
+ *  BookSnapshot.java
+ *
+ */
+
+package addressbook;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+
+/** An object of this class is an immutable view of the persons in an
+ *  address book as they stood at one moment.  Each change to a book
+ *  publishes a new snapshot with a higher version number; a snapshot that
+ *  has been handed out never changes, so it can be read for as long as
+ *  needed, by any number of threads, without locking and without seeing a
+ *  change that is only partly done.
+ *
+ *  The persons are held in a PersistentList, so successive snapshots share
+ *  most of their structure, and making a new one for a single change takes
+ *  O(log n) time and memory.
+ */
+public final class BookSnapshot implements Iterable<Person>
+{
+    /** Constructor
+     *
+     *  @param version the version number of this snapshot
+     *  @param persons the persons, in order
+     */
+    BookSnapshot(long version, PersistentList<Person> persons)
+    {
+        this.version = version;
+        this.persons = persons;
+    }
+
+    /** Get the version number of this snapshot.  A later snapshot of the
+     *  same book has a higher number
+     *
+     *  @return the version number
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    /** Get the number of persons in this snapshot
+     *
+     *  @return the number of persons
+     */
+    public int size()
+    {
+        return persons.size();
+    }
+
+    /** Get the person at a given position
+     *
+     *  @param index the position of the desired person
+     *  @return the person at that position
+     */
+    public Person get(int index)
+    {
+        return persons.get(index);
+    }
+
+    /** Get an iterator over the persons, in order
+     *
+     *  @return an iterator over the persons
+     */
+    public Iterator<Person> iterator()
+    {
+        return persons.iterator();
+    }
+
+    /** Get an iterator over the persons, starting at a given position
+     *
+     *  @param start the position of the first person to produce
+     *  @return an iterator over the persons from start on
+     */
+    public Iterator<Person> iterator(int start)
+    {
+        return persons.iterator(start);
+    }
+
+    /** Get a read only list view of the persons, in order
+     *
+     *  @return the persons, as a list
+     */
+    public List<Person> asList()
+    {
+        return new AbstractList<Person>() {
+            public Person get(int index)
+            {
+                return persons.get(index);
+            }
+
+            public int size()
+            {
+                return persons.size();
+            }
+
+            public Iterator<Person> iterator()
+            {
+                return persons.iterator();
+            }
+        };
+    }
+
+    /** Get a copy of the persons, in order, which the caller may change
+     *
+     *  @return a new array holding the persons
+     */
+    Person [] toArray()
+    {
+        return persons.toArray(new Person[persons.size()]);
+    }
+
+    /** Get the list of persons
+     *
+     *  @return the persons, in order
+     */
+    PersistentList<Person> getPersons()
+    {
+        return persons;
+    }
+
+    private final long version;
+    private final PersistentList<Person> persons;
+}
@@ -0,0 +1,431 @@
+/**
+ *  BookSync.java
+ *
+ */
+
+package addressbook;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** This class reconciles two copies of an address book.  It finds the
+ *  changes that turn one book into the other - persons to add, to update and
+ *  to remove, matched by full name - and can apply them to the book as a
+ *  single change, which one undo takes back.
+ *
+ *  To avoid comparing every person with every other, each book is summed up
+ *  by a hash tree.  Persons are put into buckets by a hash of their name; the
+ *  hash of a bucket combines the hashes of its persons' records, and each
+ *  node above combines the hashes of its two children.  Two books are then
+ *  compared from the root down, going only into subtrees whose hashes
+ *  differ, so when the books differ in a few persons only a few buckets are
+ *  looked at.
+ */
+public class BookSync
+{
+    /** One change to a book
+     */
+    public static class Change
+    {
+        /** The kinds of change
+         */
+        public enum Kind { ADD, UPDATE, REMOVE }
+
+        Change(Kind kind, Person person, Person previous)
+        {
+            this.kind = kind;
+            this.person = person;
+            this.previous = previous;
+        }
+
+        /** Get the kind of change
+         *
+         *  @return the kind
+         */
+        public Kind getKind()
+        {
+            return kind;
+        }
+
+        /** Get the person the change concerns - for ADD and UPDATE the
+         *  person as it should become; for REMOVE the person to remove
+         *
+         *  @return the person
+         */
+        public Person getPerson()
+        {
+            return person;
+        }
+
+        /** Get the person in the book to be changed that an UPDATE or REMOVE
+         *  applies to - several persons may share a name
+         *
+         *  @return the person - null for ADD
+         */
+        public Person getPrevious()
+        {
+            return previous;
+        }
+
+        public String toString()
+        {
+            return kind + " " + person.getFullName();
+        }
+
+        private final Kind kind;
+        private final Person person, previous;
+    }
+
+    /** A hash tree summing up the persons in one snapshot of a book
+     */
+    public static class Tree
+    {
+        /** Constructor - build the tree for a snapshot
+         *
+         *  @param snapshot the persons to sum up
+         *  @param depth the number of levels below the root - the tree has
+         *         2 to the power depth buckets.  Only trees of the same
+         *         depth can be compared
+         */
+        public Tree(BookSnapshot snapshot, int depth)
+        {
+            if (depth < 0 || depth > MAX_DEPTH)
+                throw new IllegalArgumentException("Bad tree depth " + depth);
+            this.depth = depth;
+            int buckets = 1 << depth;
+            hashes = new long[2 * buckets];
+            starts = new int[buckets + 1];
+            persons = new Person[snapshot.size()];
+
+            // Put the persons in order of bucket, counting first so that
+            // each bucket's persons are contiguous
+            Person [] all = snapshot.toArray();
+            int [] bucketOf = new int[all.length];
+            for (int i = 0; i < all.length; i ++)
+            {
+                bucketOf[i] = bucket(all[i].getFullName());
+                starts[bucketOf[i] + 1] ++;
+            }
+            for (int b = 0; b < buckets; b ++)
+                starts[b + 1] += starts[b];
+            int [] next = starts.clone();
+            for (int i = 0; i < all.length; i ++)
+            {
+                persons[next[bucketOf[i]] ++] = all[i];
+                // The sum does not depend on the order persons are added in
+                hashes[buckets + bucketOf[i]] += mix(recordHash(all[i]));
+            }
+            for (int node = buckets - 1; node >= 1; node --)
+                hashes[node] = mix(hashes[2 * node] * 31 + hashes[2 * node + 1]);
+        }
+
+        /** Get the number of levels below the root
+         *
+         *  @return the depth
+         */
+        public int getDepth()
+        {
+            return depth;
+        }
+
+        /** Get the hash of the whole book
+         *
+         *  @return the hash at the root
+         */
+        public long getRootHash()
+        {
+            return hashes[1];
+        }
+
+        /** Auxiliary to the constructor - the bucket for a name
+         */
+        private int bucket(String fullName)
+        {
+            return depth == 0 ? 0 : (int) (fnv(fullName, FNV_OFFSET) >>> (64 - depth));
+        }
+
+        private final int depth;
+        private final long [] hashes;       // node n has children 2n, 2n + 1
+        private final int [] starts;        // where each bucket starts in persons
+        private final Person [] persons;
+    }
+
+    /** Choose a tree depth suitable for comparing books of given sizes - one
+     *  that puts a few persons in each bucket
+     *
+     *  @param size1 the number of persons in one book
+     *  @param size2 the number of persons in the other
+     *  @return the depth to build both trees with
+     */
+    public static int depthFor(int size1, int size2)
+    {
+        int buckets = Math.max(size1, size2) / PERSONS_PER_BUCKET;
+        int depth = 0;
+        while (depth < MAX_DEPTH && (1 << depth) < buckets)
+            depth ++;
+        return depth;
+    }
+
+    /** Find the changes that turn one book into another
+     *
+     *  @param from the book to be changed
+     *  @param to the book it should become
+     *  @return the changes, each person being taken from to for ADD and
+     *          UPDATE, and from from for REMOVE
+     */
+    public static List<Change> diff(AddressBook from, AddressBook to)
+    {
+        BookSnapshot fromSnapshot = from.snapshot();
+        BookSnapshot toSnapshot = to.snapshot();
+        int depth = depthFor(fromSnapshot.size(), toSnapshot.size());
+        return diff(new Tree(fromSnapshot, depth), new Tree(toSnapshot, depth));
+    }
+
+    /** Find the changes that turn the book summed up by one tree into the
+     *  book summed up by another
+     *
+     *  @param from the tree for the book to be changed
+     *  @param to the tree for the book it should become
+     *  @return the changes
+     *
+     *  @exception IllegalArgumentException if the trees are of different
+     *             depths
+     */
+    public static List<Change> diff(Tree from, Tree to)
+    {
+        if (from.depth != to.depth)
+            throw new IllegalArgumentException("Trees of different depths");
+        List<Change> result = new ArrayList<Change>();
+        compare(from, to, 1, result);
+        return result;
+    }
+
+    /** Apply changes to a book, all together as a single change - see
+     *  AddressBook.applyChanges().  Changes that no longer make sense -
+     *  adding a name the book already has, or updating or removing a person
+     *  no longer in it - are skipped
+     *
+     *  @param book the book to change - the book "from" of the diff() that
+     *         found the changes
+     *  @param changes the changes, from diff()
+     *  @return the number of changes made
+     */
+    public static int apply(AddressBook book, List<Change> changes)
+    {
+        Map<Person, Person> replacements = new IdentityHashMap<Person, Person>();
+        List<Person> added = new ArrayList<Person>();
+        for (Change change : changes)
+        {
+            switch(change.getKind())
+            {
+                case ADD:
+                    added.add(change.getPerson());
+                    break;
+
+                case UPDATE:
+                    replacements.put(change.getPrevious(), change.getPerson());
+                    break;
+
+                case REMOVE:
+                    replacements.put(change.getPrevious(), null);
+                    break;
+            }
+        }
+        return book.applyChanges(replacements, added);
+    }
+
+    /** Merge one book into another: persons only in the other book are
+     *  added, and persons in both whose information differs take the
+     *  other book's information.  Nothing is removed
+     *
+     *  @param into the book to change
+     *  @param from the book to take persons from
+     *  @return the number of changes made
+     */
+    public static int merge(AddressBook into, AddressBook from)
+    {
+        List<Change> changes = new ArrayList<Change>();
+        for (Change change : diff(into, from))
+            if (change.getKind() != Change.Kind.REMOVE)
+                changes.add(change);
+        return apply(into, changes);
+    }
+
+    /** Compare two book files from the command line, printing the changes
+     *  that turn the first into the second.  With -apply, the changes are
+     *  also made to the first file; with -merge, the second is merged into
+     *  the first.  Either way the first file is saved in the format it had
+     *
+     *  @param args [-apply | -merge] file1 file2
+     */
+    public static void main(String [] args) throws Exception
+    {
+        boolean apply = args.length == 3 && args[0].equals("-apply");
+        boolean merge = args.length == 3 && args[0].equals("-merge");
+        if (args.length != 2 && ! apply && ! merge)
+        {
+            System.err.println("Usage: BookSync [-apply | -merge] file1 file2");
+            System.exit(1);
+        }
+        FileSystem fileSystem = new FileSystem();
+        File file1 = new File(args[args.length - 2]);
+        AddressBook book1 = fileSystem.readFile(file1);
+        AddressBook book2 = fileSystem.readFile(new File(args[args.length - 1]));
+
+        List<Change> changes = diff(book1, book2);
+        for (Change change : changes)
+            System.out.println(change);
+        if (apply || merge)
+        {
+            int made = merge ? merge(book1, book2) : apply(book1, changes);
+            // Saved in the format it was read in
+            if (CompressedBookFormat.isCompressed(file1))
+                fileSystem.setFormat(FileSystem.Format.COMPRESSED);
+            else if (LazyBookFormat.isLazy(file1))
+                fileSystem.setFormat(FileSystem.Format.LAZY);
+            fileSystem.saveFile(book1, file1);
+            System.out.println(made + " changes made to " + file1);
+        }
+    }
+
+    /** Auxiliary to diff - compare the subtrees at a node of two trees
+     */
+    private static void compare(Tree from, Tree to, int node, List<Change> result)
+    {
+        if (from.hashes[node] == to.hashes[node])
+            return;
+        int buckets = 1 << from.depth;
+        if (node < buckets)
+        {
+            compare(from, to, 2 * node, result);
+            compare(from, to, 2 * node + 1, result);
+        }
+        else
+            compareBucket(from, to, node - buckets, result);
+    }
+
+    /** Auxiliary to compare - compare the persons in a bucket of two trees.
+     *  Where several persons share a name, those whose information is the
+     *  same in both books are matched first, and the rest in order
+     */
+    private static void compareBucket(Tree from,
+                                      Tree to,
+                                      int bucket,
+                                      List<Change> result)
+    {
+        Map<String, List<Person>> fromPersons = new HashMap<String, List<Person>>();
+        for (int i = from.starts[bucket]; i < from.starts[bucket + 1]; i ++)
+        {
+            Person person = from.persons[i];
+            List<Person> named = fromPersons.get(person.getFullName());
+            if (named == null)
+            {
+                named = new ArrayList<Person>(1);
+                fromPersons.put(person.getFullName(), named);
+            }
+            named.add(person);
+        }
+
+        List<Person> unmatched = new ArrayList<Person>();
+        for (int i = to.starts[bucket]; i < to.starts[bucket + 1]; i ++)
+        {
+            Person person = to.persons[i];
+            List<Person> named = fromPersons.get(person.getFullName());
+            if (named == null || ! removeSame(named, person))
+                unmatched.add(person);
+        }
+        for (Person person : unmatched)
+        {
+            List<Person> named = fromPersons.get(person.getFullName());
+            if (named == null || named.isEmpty())
+                result.add(new Change(Change.Kind.ADD, person, null));
+            else
+                result.add(new Change(Change.Kind.UPDATE, person, named.remove(0)));
+        }
+        List<Person> removed = new ArrayList<Person>();
+        for (List<Person> named : fromPersons.values())
+            removed.addAll(named);
+        Collections.sort(removed, new Person.CompareByName());
+        for (Person person : removed)
+            result.add(new Change(Change.Kind.REMOVE, person, person));
+    }
+
+    /** Auxiliary to compareBucket - take a person with the same information
+     *  as a given one out of a list
+     *
+     *  @return true if there was one
+     */
+    private static boolean removeSame(List<Person> persons, Person person)
+    {
+        long hash = recordHash(person);
+        for (int i = 0; i < persons.size(); i ++)
+            if (recordHash(persons.get(i)) == hash &&
+                sameRecord(persons.get(i), person))
+            {
+                persons.remove(i);
+                return true;
+            }
+        return false;
+    }
+
+    /** Auxiliary to compareBucket - whether two persons hold the same
+     *  information
+     */
+    private static boolean sameRecord(Person person1, Person person2)
+    {
+        for (PersonField field : PersonField.values())
+            if (! field.valueOf(person1).equals(field.valueOf(person2)))
+                return false;
+        return true;
+    }
+
+    /** The hash of all of the information about a person
+     */
+    private static long recordHash(Person person)
+    {
+        long hash = FNV_OFFSET;
+        for (PersonField field : PersonField.values())
+        {
+            hash = fnv(field.valueOf(person), hash);
+            hash = (hash ^ SEPARATOR) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /** Continue a 64 bit FNV-1a hash with the characters of a string
+     */
+    private static long fnv(String text, long hash)
+    {
+        for (int i = 0; i < text.length(); i ++)
+        {
+            char c = text.charAt(i);
+            hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /** Scramble the bits of a hash, so that sums of hashes do not cancel
+     *  out in simple ways
+     */
+    private static long mix(long hash)
+    {
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+    private static final int SEPARATOR = 0x1F;
+
+    // Trees are sized to hold about this many persons per bucket
+
+    private static final int PERSONS_PER_BUCKET = 8;
+    private static final int MAX_DEPTH = 20;
+}
@@ -0,0 +1,442 @@
+/**
+ *  ChangeFeed.java
+ *
+ */
+
+package addressbook;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** An object of this class records the changes made to an address book as
+ *  a feed that other programs can follow to keep a copy of the book.  Each
+ *  person added, updated or removed, and each reordering of the book, is an
+ *  entry with a sequence number one more than the entry before it, the
+ *  person as it was before and after the change, and where the person was
+ *  and is in the book.
+ *
+ *  The entries for one change share a version.  A reader replays them
+ *  together: it takes out the person of each REMOVE and UPDATE at its
+ *  position before, from the highest position down, then puts in the person
+ *  of each ADD and UPDATE at its position after, from the lowest up.  A
+ *  REORDER is replayed by sorting on getOrder(), or - when an undo puts the
+ *  book back in the order before a sort - by getPreviousPositions().  A
+ *  reader that keeps up thus never needs to copy the whole book again.
+ *
+ *  A reader asks for the entries from a given sequence number on, in
+ *  batches, and remembers the number after the last one it got.  Only the
+ *  most recent entries are kept - no more than a given number of them, and
+ *  no more than a given (estimated) number of bytes - so a reader that has
+ *  fallen further behind than that must copy the whole book again.
+ */
+public class ChangeFeed
+{
+    /** One change in the feed
+     */
+    public static class Entry
+    {
+        /** The kinds of change
+         */
+        public enum Kind
+        {
+            /** A person was added - getAfter() gives the person */
+            ADD,
+            /** A person's information was changed - getBefore() and
+             *  getAfter() give the person before and after */
+            UPDATE,
+            /** A person was removed - getBefore() gives the person */
+            REMOVE,
+            /** The order of the persons changed - getOrder() tells how */
+            REORDER
+        }
+
+        Entry(long sequence, long version, Kind kind, Person before,
+              Person after, int positionBefore, int positionAfter,
+              String order, int [] previousPositions)
+        {
+            this.sequence = sequence;
+            this.version = version;
+            this.kind = kind;
+            this.before = before;
+            this.after = after;
+            this.positionBefore = positionBefore;
+            this.positionAfter = positionAfter;
+            this.order = order;
+            this.previousPositions = previousPositions;
+            bytes = ENTRY_BYTES + bytes(before) + bytes(after) +
+                    (previousPositions == null ? 0 : 4L * previousPositions.length);
+        }
+
+        /** Get the sequence number of this entry
+         *
+         *  @return the sequence number
+         */
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        /** Get the version of the book's snapshot just after the change.
+         *  Several entries may share a version, if one operation changed
+         *  several persons
+         *
+         *  @return the version
+         */
+        public long getVersion()
+        {
+            return version;
+        }
+
+        /** Get the kind of change
+         *
+         *  @return the kind
+         */
+        public Kind getKind()
+        {
+            return kind;
+        }
+
+        /** Get the person as it was before the change
+         *
+         *  @return the person - null for ADD and REORDER
+         */
+        public Person getBefore()
+        {
+            return before;
+        }
+
+        /** Get the person as it was after the change
+         *
+         *  @return the person - null for REMOVE and REORDER
+         */
+        public Person getAfter()
+        {
+            return after;
+        }
+
+        /** Get where the person was before the change
+         *
+         *  @return the position in the book before the change, for UPDATE
+         *          and REMOVE; -1 for ADD and REORDER
+         */
+        public int getPositionBefore()
+        {
+            return positionBefore;
+        }
+
+        /** Get where the person is after the change
+         *
+         *  @return the position in the book after the change, for ADD and
+         *          UPDATE; -1 for REMOVE and REORDER
+         */
+        public int getPositionAfter()
+        {
+            return positionAfter;
+        }
+
+        /** Get the order of the persons after a REORDER
+         *
+         *  @return "name" or "zip" after a sort by that field, or a sort
+         *          redone; null if undo put the book back in the order it had
+         *          before a sort - see getPreviousPositions()
+         */
+        public String getOrder()
+        {
+            return order;
+        }
+
+        /** Get the order of the persons after a REORDER that undid a sort
+         *
+         *  @return for each position in the book after the change, the
+         *          position the person there had before it; null for other
+         *          entries.  The array must not be changed
+         */
+        public int [] getPreviousPositions()
+        {
+            return previousPositions;
+        }
+
+        public String toString()
+        {
+            Person person = after != null ? after : before;
+            return sequence + " " + kind + " " +
+                   (person != null ? person.getFullName() : "by " + order);
+        }
+
+        /** Estimate the memory taken by a person's information.  For a
+         *  person read lazily, only the name is in the person - the rest is
+         *  in the reader's cache, and is not read just to be measured
+         */
+        private static long bytes(Person person)
+        {
+            if (person == null)
+                return 0;
+            long result = PERSON_BYTES;
+            if (person instanceof LazyBookFormat.LazyPerson)
+                return result + 2 * (person.getFirstName().length() +
+                                     person.getLastName().length());
+            for (PersonField field : PersonField.values())
+                result += 2 * field.valueOf(person).length();
+            return result;
+        }
+
+        private final long sequence, version;
+        private final Kind kind;
+        private final Person before, after;
+        private final int positionBefore, positionAfter;
+        private final String order;
+        private final int [] previousPositions;
+        private final long bytes;
+
+        private static final int ENTRY_BYTES = 64;
+        private static final int PERSON_BYTES = 64;
+    }
+
+    /** Constructor - create an empty feed
+     *
+     *  @param maxEntries the most entries to keep
+     *  @param maxBytes the most memory (estimated) the entries should take
+     */
+    public ChangeFeed(int maxEntries, long maxBytes)
+    {
+        entries = new Entry[INITIAL_CAPACITY];
+        first = 1;
+        setRetention(maxEntries, maxBytes);
+    }
+
+    /** Change how many entries are kept, discarding the oldest if there are
+     *  now too many
+     *
+     *  @param maxEntries the most entries to keep
+     *  @param maxBytes the most memory (estimated) the entries should take
+     */
+    public synchronized void setRetention(int maxEntries, long maxBytes)
+    {
+        if (maxEntries < 0 || maxBytes < 0)
+            throw new IllegalArgumentException("Negative retention");
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    /** Get the sequence number of the oldest entry kept
+     *
+     *  @return the oldest sequence number that can be read.  If no entries
+     *          are kept, this is the number the next entry will have
+     */
+    public synchronized long getFirstSequence()
+    {
+        return first;
+    }
+
+    /** Get the sequence number the next entry will have
+     *
+     *  @return one more than the sequence number of the newest entry
+     */
+    public synchronized long getNextSequence()
+    {
+        return first + count;
+    }
+
+    /** Find out whether reading can start at a given sequence number
+     *
+     *  @param sequence the sequence number
+     *  @return true if every entry from sequence on is still kept
+     */
+    public synchronized boolean isRetained(long sequence)
+    {
+        return sequence >= first && sequence <= first + count;
+    }
+
+    /** Read the entries from a given sequence number on
+     *
+     *  @param from the sequence number of the first entry wanted
+     *  @param max the most entries to return
+     *  @return the entries, in order - empty if there are none yet
+     *
+     *  @exception IllegalArgumentException if the entry at from is no longer
+     *             kept, or from is beyond the next sequence number
+     */
+    public synchronized List<Entry> read(long from, int max)
+    {
+        if (! isRetained(from))
+            throw new IllegalArgumentException("Sequence " + from +
+                " is not retained - the feed holds " + first + " to " +
+                (first + count - 1));
+        int available = (int) Math.min(max, first + count - from);
+        List<Entry> result = new ArrayList<Entry>(Math.max(available, 0));
+        for (int i = 0; i < available; i ++)
+            result.add(get((int) (from - first) + i));
+        return result;
+    }
+
+    /** Read the entries from a given sequence number on, waiting for there
+     *  to be some if there are none yet
+     *
+     *  @param from the sequence number of the first entry wanted
+     *  @param max the most entries to return
+     *  @param timeoutMillis the longest time to wait
+     *  @return the entries, in order - empty if none arrived in time
+     *
+     *  @exception IllegalArgumentException if the entry at from is no longer
+     *             kept, or from is beyond the next sequence number
+     *  @exception InterruptedException if the thread is interrupted while
+     *             waiting
+     */
+    public synchronized List<Entry> poll(long from, int max, long timeoutMillis)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (from == first + count && remaining > 0)
+        {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return read(from, max);
+    }
+
+    /** Record the effect of one change to the book.  A person that is both
+     *  removed and added - matched by name - is recorded as an update.  If
+     *  several persons removed share a name, each added person with that
+     *  name is matched with the first of them not yet matched
+     *
+     *  @param version the version of the book after the change
+     *  @param removed the persons taken out of the book
+     *  @param removedAt where each of them was, before the change
+     *  @param added the persons put into the book
+     *  @param addedAt where each of them is, after the change
+     *  @param order for a sort, or a sort redone, the field sorted on;
+     *         otherwise null
+     *  @param previousPositions for an undone sort, the position before the
+     *         change of the person at each position after it; otherwise null
+     */
+    synchronized void record(long version,
+                             List<Person> removed,
+                             int [] removedAt,
+                             List<Person> added,
+                             int [] addedAt,
+                             String order,
+                             int [] previousPositions)
+    {
+        if (removed.isEmpty() && added.isEmpty())
+        {
+            append(new Entry(first + count, version, Entry.Kind.REORDER,
+                             null, null, -1, -1, order, previousPositions));
+        }
+        else
+        {
+            Map<String, ArrayDeque<Integer>> before =
+                new HashMap<String, ArrayDeque<Integer>>();
+            for (int i = 0; i < removed.size(); i ++)
+            {
+                String name = removed.get(i).getFullName();
+                ArrayDeque<Integer> named = before.get(name);
+                if (named == null)
+                {
+                    named = new ArrayDeque<Integer>(1);
+                    before.put(name, named);
+                }
+                named.add(i);
+            }
+            boolean [] matched = new boolean[removed.size()];
+            for (int j = 0; j < added.size(); j ++)
+            {
+                Person person = added.get(j);
+                ArrayDeque<Integer> named = before.get(person.getFullName());
+                Integer old = named == null ? null : named.poll();
+                if (old == null)
+                    append(new Entry(first + count, version, Entry.Kind.ADD,
+                                     null, person, -1, addedAt[j], null, null));
+                else
+                {
+                    matched[old] = true;
+                    append(new Entry(first + count, version, Entry.Kind.UPDATE,
+                                     removed.get(old), person, removedAt[old],
+                                     addedAt[j], null, null));
+                }
+            }
+            for (int i = 0; i < removed.size(); i ++)
+                if (! matched[i])
+                    append(new Entry(first + count, version, Entry.Kind.REMOVE,
+                                     removed.get(i), null, removedAt[i], -1,
+                                     null, null));
+        }
+        notifyAll();
+    }
+
+    /** Auxiliary to record - add an entry at the end of the buffer, and
+     *  discard the oldest if that takes the feed over its limits.  Trimming
+     *  as each entry goes in, rather than once the whole change is in, keeps
+     *  a change to the whole book from growing the buffer past the limits
+     */
+    private void append(Entry entry)
+    {
+        if (count == entries.length)
+        {
+            Entry [] larger = new Entry[2 * entries.length];
+            for (int i = 0; i < count; i ++)
+                larger[i] = get(i);
+            entries = larger;
+            head = 0;
+        }
+        entries[(head + count) & (entries.length - 1)] = entry;
+        count ++;
+        bytes += entry.bytes;
+        trim();
+    }
+
+    /** Auxiliary to append and setRetention - discard the oldest entries
+     *  until the rest are within the limits, then give back the buffer if it
+     *  is much larger than the entries left need
+     */
+    private void trim()
+    {
+        while (count > 0 && (count > maxEntries || bytes > maxBytes))
+        {
+            bytes -= entries[head].bytes;
+            entries[head] = null;
+            head = (head + 1) & (entries.length - 1);
+            count --;
+            first ++;
+        }
+        if (entries.length > INITIAL_CAPACITY && 
+            count < entries.length / SHRINK_RATIO)
+        {
+            int length = INITIAL_CAPACITY;
+            while (length < 2 * count)
+                length *= 2;
+            Entry [] smaller = new Entry[length];
+            for (int i = 0; i < count; i ++)
+                smaller[i] = get(i);
+            entries = smaller;
+            head = 0;
+        }
+    }
+
+    /** Get the entry at a position counted from the oldest kept
+     */
+    private Entry get(int index)
+    {
+        return entries[(head + index) & (entries.length - 1)];
+    }
+
+    // The entries kept, as a circular buffer whose length is a power of two.
+    // The oldest is at entries[head], with sequence number first
+
+    private Entry [] entries;
+    private int head, count;
+    private long first;
+    private long bytes;
+
+    // The limits on what is kept
+
+    private int maxEntries;
+    private long maxBytes;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int SHRINK_RATIO = 4;
+}
@@ -0,0 +1,607 @@
+/**
+ *  CompressedBookFormat.java
+ *
+ */
+
+package addressbook;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** This class reads and writes address books in a compressed file format.
+ *  Persons are grouped into blocks of BLOCK_SIZE records, and each block is
+ *  compressed on its own, so that any one person can be read by
+ *  decompressing just the block that holds it.  Field values that occur
+ *  more than once in the book (cities, states, ZIPs, ...) are stored once
+ *  in a dictionary shared by all the blocks, and are referred to by number.
+ *
+ *  The layout of a file is:
+ *
+ *      MAGIC, VERSION, record count, block size
+ *      the dictionary - a count followed by the values
+ *      the compressed blocks, one after the other
+ *      the block index - a count, then for each block its offset,
+ *          compressed length, uncompressed length and the CRC-32 of its
+ *          compressed bytes
+ *      the offset of the block index (the last 8 bytes of the file)
+ *
+ *  Within a block each field of each person is written as a number: 0 means
+ *  the value follows as a literal, anything else is 1 + a dictionary index.
+ *
+ *  Since each block can be decoded on its own, a whole book is read by
+ *  decoding runs of blocks on the shared worker pool, checking each block
+ *  against its checksum as it is read, and putting the runs back together
+ *  in order.  Files written before checksums were added (version 1) are
+ *  still read, without checking.
+ */
+public class CompressedBookFormat
+{
+    /** Find out whether a file is in this format
+     *
+     *  @param file the file to check
+     *  @return true if the file starts with this format's magic number
+     *
+     *  @exception IOException if there is a problem reading the file
+     */
+    public static boolean isCompressed(File file) throws IOException
+    {
+        DataInputStream stream = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            return stream.readInt() == MAGIC;
+        }
+        catch(EOFException e)
+        {
+            return false;
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /** Write an address book to a file in this format
+     *
+     *  @param addressBook the book to write
+     *  @param file the file to create
+     *
+     *  @exception IOException if there is a problem writing the file
+     */
+    public static void write(AddressBook addressBook, File file)
+        throws IOException
+    {
+        BookSnapshot snapshot = addressBook.snapshot();
+        int size = snapshot.size();
+        List<String> dictionary = buildDictionary(snapshot);
+        Map<String, Integer> codes = new HashMap<String, Integer>();
+        for (int i = 0; i < dictionary.size(); i ++)
+            codes.put(dictionary.get(i), i + 1);
+
+        CountingOutputStream counter = new CountingOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file)));
+        DataOutputStream stream = new DataOutputStream(counter);
+        try
+        {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            stream.writeInt(size);
+            stream.writeInt(BLOCK_SIZE);
+            stream.writeInt(dictionary.size());
+            for (String value : dictionary)
+                stream.writeUTF(value);
+
+            int blockCount = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            long [] offsets = new long[blockCount];
+            int [] compressedLengths = new int[blockCount];
+            int [] rawLengths = new int[blockCount];
+            int [] checksums = new int[blockCount];
+
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            DataOutputStream rawStream = new DataOutputStream(raw);
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            byte [] compressed = new byte[4096];
+            CRC32 crc = new CRC32();
+            for (int block = 0; block < blockCount; block ++)
+            {
+                raw.reset();
+                int end = Math.min(size, (block + 1) * BLOCK_SIZE);
+                for (int i = block * BLOCK_SIZE; i < end; i ++)
+                    writePerson(rawStream, snapshot.get(i), codes);
+                rawStream.flush();
+
+                byte [] input = raw.toByteArray();
+                deflater.reset();
+                deflater.setInput(input);
+                deflater.finish();
+                offsets[block] = counter.getCount();
+                crc.reset();
+                int length = 0;
+                while (! deflater.finished())
+                {
+                    int count = deflater.deflate(compressed);
+                    stream.write(compressed, 0, count);
+                    crc.update(compressed, 0, count);
+                    length += count;
+                }
+                compressedLengths[block] = length;
+                rawLengths[block] = input.length;
+                checksums[block] = (int) crc.getValue();
+            }
+            deflater.end();
+
+            long indexOffset = counter.getCount();
+            stream.writeInt(blockCount);
+            for (int block = 0; block < blockCount; block ++)
+            {
+                stream.writeLong(offsets[block]);
+                stream.writeInt(compressedLengths[block]);
+                stream.writeInt(rawLengths[block]);
+                stream.writeInt(checksums[block]);
+            }
+            stream.writeLong(indexOffset);
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /** Read a whole address book from a file in this format
+     *
+     *  @param file the file to read
+     *  @return a new AddressBook holding the persons in the file
+     *
+     *  @exception IOException if there is a problem reading the file, or it
+     *             is not in this format
+     */
+    public static AddressBook read(File file) throws IOException
+    {
+        return read(file, null);
+    }
+
+    /** Read a whole address book from a file in this format, reporting the
+     *  persons in each run of blocks as it is read.  The runs are decoded in
+     *  parallel on the shared worker pool, except when this is called by a
+     *  worker itself (as when the shards of a ShardedAddressBook are read),
+     *  which decodes them one after another
+     *
+     *  @param file the file to read
+     *  @param listener the object to report persons to, in order, or null
+     *  @return a new AddressBook holding the persons in the file
+     *
+     *  @exception IOException if there is a problem reading the file, it
+     *             is not in this format, or a block fails its checksum
+     */
+    public static AddressBook read(File file, FileSystem.ReadListener listener)
+        throws IOException
+    {
+        final Reader reader = new Reader(file);
+        List<Future<List<Person>>> runs = new ArrayList<Future<List<Person>>>();
+        try
+        {
+            for (int first = 0; first < reader.getBlockCount();
+                 first += BLOCKS_PER_RUN)
+            {
+                final int from = first;
+                final int to = Math.min(first + BLOCKS_PER_RUN,
+                                        reader.getBlockCount());
+                Callable<List<Person>> run = new Callable<List<Person>>() {
+                    public List<Person> call() throws IOException
+                    {
+                        List<Person> result = new ArrayList<Person>();
+                        for (int block = from; block < to; block ++)
+                            result.addAll(reader.readBlock(block));
+                        return result;
+                    }
+                };
+                if (BookExecutors.isWorker())
+                {
+                    FutureTask<List<Person>> task =
+                        new FutureTask<List<Person>>(run);
+                    task.run();
+                    runs.add(task);
+                }
+                else
+                    runs.add(BookExecutors.workers().submit(run));
+            }
+
+            List<Person> persons = new ArrayList<Person>(reader.size());
+            for (Future<List<Person>> run : runs)
+            {
+                List<Person> runPersons = get(run);
+                persons.addAll(runPersons);
+                if (listener != null)
+                    listener.personsRead(runPersons);
+            }
+            AddressBook result = new AddressBook();
+            result.appendPersons(persons);
+            return result;
+        }
+        finally
+        {
+            // Stop any runs still waiting, if one has failed
+            for (Future<List<Person>> run : runs)
+                run.cancel(false);
+            reader.close();
+        }
+    }
+
+    /** Auxiliary to read - wait for a run of blocks to be decoded
+     *
+     *  @param run the run
+     *  @return the persons in the run
+     *
+     *  @exception IOException if the run could not be read
+     */
+    private static List<Person> get(Future<List<Person>> run)
+        throws IOException
+    {
+        try
+        {
+            return run.get();
+        }
+        catch(InterruptedException e)
+        {
+            throw new InterruptedIOException("Interrupted while reading");
+        }
+        catch(ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            else if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            else
+                throw new IOException(e.getCause());
+        }
+    }
+
+    /** An object of this class gives random access to the persons in a file
+     *  in this format.  The header, dictionary and block index are read when
+     *  the reader is created; after that, reading a person decompresses only
+     *  the block holding it.
+     */
+    public static class Reader
+    {
+        /** Constructor - open a file and read its header and index
+         *
+         *  @param file the file to read
+         *
+         *  @exception IOException if there is a problem reading the file, or
+         *             it is not in this format
+         */
+        public Reader(File file) throws IOException
+        {
+            this.file = new RandomAccessFile(file, "r");
+            try
+            {
+                if (this.file.readInt() != MAGIC)
+                    throw new IOException(file + " is not a compressed book");
+                int version = this.file.readInt();
+                if (version != VERSION && version != UNCHECKED_VERSION)
+                    throw new IOException(file + " has an unknown version");
+                size = this.file.readInt();
+                blockSize = this.file.readInt();
+                dictionary = new String[this.file.readInt()];
+                for (int i = 0; i < dictionary.length; i ++)
+                    dictionary[i] = this.file.readUTF();
+
+                this.file.seek(this.file.length() - 8);
+                this.file.seek(this.file.readLong());
+                int blockCount = this.file.readInt();
+                offsets = new long[blockCount];
+                compressedLengths = new int[blockCount];
+                rawLengths = new int[blockCount];
+                if (version != UNCHECKED_VERSION)
+                    checksums = new int[blockCount];
+                for (int block = 0; block < blockCount; block ++)
+                {
+                    offsets[block] = this.file.readLong();
+                    compressedLengths[block] = this.file.readInt();
+                    rawLengths[block] = this.file.readInt();
+                    if (checksums != null)
+                        checksums[block] = this.file.readInt();
+                }
+            }
+            catch(IOException e)
+            {
+                this.file.close();
+                throw e;
+            }
+        }
+
+        /** Get the number of persons in the file
+         *
+         *  @return the number of persons
+         */
+        public int size()
+        {
+            return size;
+        }
+
+        /** Get the number of blocks in the file
+         *
+         *  @return the number of blocks
+         */
+        public int getBlockCount()
+        {
+            return offsets.length;
+        }
+
+        /** Read a single person, decompressing only the block holding it
+         *
+         *  @param index the position of the person in the book
+         *  @return the person at that position
+         *
+         *  @exception IOException if there is a problem reading the file
+         */
+        public Person get(int index) throws IOException
+        {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("No person " + index);
+            return readBlock(index / blockSize).get(index % blockSize);
+        }
+
+        /** Read and decompress one block.  Blocks can be read by several
+         *  threads at once
+         *
+         *  @param block the number of the block
+         *  @return the persons in the block, in order
+         *
+         *  @exception IOException if there is a problem reading the file, or
+         *             the block fails its checksum
+         */
+        public List<Person> readBlock(int block) throws IOException
+        {
+            ByteBuffer compressed = ByteBuffer.allocate(compressedLengths[block]);
+            FileChannel channel = file.getChannel();
+            while (compressed.hasRemaining())
+                if (channel.read(compressed, offsets[block] + compressed.position()) < 0)
+                    throw new EOFException("Truncated block " + block);
+
+            if (checksums != null)
+            {
+                CRC32 crc = new CRC32();
+                crc.update(compressed.array(), 0, compressed.capacity());
+                if ((int) crc.getValue() != checksums[block])
+                    throw new IOException("Block " + block + " fails its checksum");
+            }
+            return decodeBlock(compressed.array(), rawLengths[block], dictionary);
+        }
+
+        /** Close the file
+         *
+         *  @exception IOException if there is a problem closing the file
+         */
+        public void close() throws IOException
+        {
+            file.close();
+        }
+
+        private RandomAccessFile file;
+        private int size;
+        private int blockSize;
+        private String [] dictionary;
+        private long [] offsets;
+        private int [] compressedLengths;
+        private int [] rawLengths;
+        private int [] checksums;       // null if the file has none
+    }
+
+    /** Auxiliary to the reader - decompress and decode one block
+     *
+     *  @param compressed the compressed contents of the block
+     *  @param rawLength the length of the block once decompressed
+     *  @param dictionary the dictionary of shared values
+     *  @return the persons in the block, in order
+     *
+     *  @exception IOException if the block is corrupt
+     */
+    static List<Person> decodeBlock(byte [] compressed,
+                                    int rawLength,
+                                    String [] dictionary) throws IOException
+    {
+        byte [] raw = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(compressed);
+            int count = 0;
+            while (count < rawLength && ! inflater.finished())
+            {
+                int inflated = inflater.inflate(raw, count, rawLength - count);
+                // Nothing more can come out of a block that has run out of
+                // input before it ended
+                if (inflated == 0 &&
+                    (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated block");
+                count += inflated;
+            }
+            if (count != rawLength)
+                throw new IOException("Truncated block");
+        }
+        catch(DataFormatException e)
+        {
+            throw new IOException("Corrupt block", e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+
+        List<Person> result = new ArrayList<Person>();
+        DataInputStream stream =
+            new DataInputStream(new ByteArrayInputStream(raw));
+        while (stream.available() > 0)
+            result.add(readPerson(stream, dictionary));
+        return result;
+    }
+
+    /** Auxiliary to write - choose the values to put in the dictionary: every
+     *  value that occurs more than once, most frequent first so that the most
+     *  common values get the shortest codes
+     *
+     *  @param snapshot the snapshot of the book being written
+     *  @return the dictionary
+     */
+    private static List<String> buildDictionary(BookSnapshot snapshot)
+    {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (Person person : snapshot)
+            for (String value : fields(person))
+            {
+                Integer count = counts.get(value);
+                counts.put(value, count == null ? 1 : count + 1);
+            }
+
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet())
+            if (entry.getValue() > 1)
+                result.add(entry.getKey());
+        Collections.sort(result, new Comparator<String>() {
+            public int compare(String value1, String value2)
+            {
+                return counts.get(value2) - counts.get(value1);
+            }
+        });
+        return result;
+    }
+
+    /** Auxiliary to various methods - the stored fields of a person, in the
+     *  order they are written
+     *
+     *  @param person the person
+     *  @return the person's fields
+     */
+    private static String [] fields(Person person)
+    {
+        String [] result = { person.getFirstName(),
+                             person.getLastName(),
+                             person.getAddress(),
+                             person.getCity(),
+                             person.getState(),
+                             person.getZip(),
+                             person.getPhone() };
+        return result;
+    }
+
+    /** Auxiliary to write - encode one person
+     */
+    private static void writePerson(DataOutputStream stream,
+                                    Person person,
+                                    Map<String, Integer> codes)
+        throws IOException
+    {
+        for (String value : fields(person))
+        {
+            Integer code = codes.get(value);
+            if (code == null)
+            {
+                writeVarInt(stream, 0);
+                stream.writeUTF(value);
+            }
+            else
+                writeVarInt(stream, code);
+        }
+    }
+
+    /** Auxiliary to decodeBlock - decode one person
+     */
+    private static Person readPerson(DataInputStream stream,
+                                     String [] dictionary) throws IOException
+    {
+        String [] values = new String[FIELD_COUNT];
+        for (int i = 0; i < FIELD_COUNT; i ++)
+        {
+            int code = readVarInt(stream);
+            values[i] = code == 0 ? stream.readUTF() : dictionary[code - 1];
+        }
+        // Note the order of the constructor's last two parameters
+        return new Person(values[0], values[1], values[2], values[3],
+                          values[4], values[6], values[5]);
+    }
+
+    /** Write a non-negative int in as few bytes as possible - 7 bits per byte,
+     *  with the high bit set on all but the last byte
+     */
+    static void writeVarInt(DataOutput stream, int value) throws IOException
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            stream.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        stream.writeByte(value);
+    }
+
+    /** Read an int written by writeVarInt
+     */
+    static int readVarInt(DataInput stream) throws IOException
+    {
+        int result = 0;
+        for (int shift = 0; ; shift += 7)
+        {
+            int b = stream.readUnsignedByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+    }
+
+    /** An output stream that keeps track of how many bytes pass through it,
+     *  so that block offsets are known as the file is written.  Also used by
+     *  LazyBookFormat, whose offsets can pass 2 GB
+     */
+    static class CountingOutputStream extends FilterOutputStream
+    {
+        CountingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            count ++;
+        }
+
+        public void write(byte [] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount()
+        {
+            return count;
+        }
+
+        private long count;
+    }
+
+    // Identification of the format, and how it is laid out
+
+    static final int MAGIC = 0x41424B43;           // "ABKC"
+    static final int VERSION = 2;
+    static final int UNCHECKED_VERSION = 1;        // No block checksums
+    static final int BLOCK_SIZE = 256;
+    private static final int FIELD_COUNT = 7;
+
+    // How many blocks each task decodes when a whole book is read
+
+    private static final int BLOCKS_PER_RUN = 64;
+}
@@ -0,0 +1,38 @@
+/**
+ *  FieldIndex.java
+ *
+ */
+
+package addressbook;
+
+import java.util.Iterator;
+
+/** An index over one field of the persons in an address book, which the
+ *  query planner can use in place of a scan of the whole book.  Different
+ *  kinds of index can answer different kinds of condition - a hash index
+ *  only equality, a sorted index also prefixes and ranges.
+ */
+public interface FieldIndex
+{
+    /** Get the field this index covers
+     *
+     *  @return the indexed field
+     */
+    PersonField getField();
+
+    /** Estimate how many persons satisfy a condition on this index's field
+     *
+     *  @param condition the condition
+     *  @return an estimate of the number of matching persons, or -1 if this
+     *          index cannot answer the condition
+     */
+    int estimate(Query.Condition condition);
+
+    /** Find the persons satisfying a condition on this index's field.  This
+     *  should only be called for conditions for which estimate() is not -1
+     *
+     *  @param condition the condition
+     *  @return the persons satisfying the condition, produced lazily
+     */
+    Iterator<Person> lookup(Query.Condition condition);
+}
@@ -8,6 +8,9 @@
 package addressbook;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.util.List;
+import java.nio.file.StandardCopyOption;
 
 /** An object of this class manages interaction between the address book
  *  program and the file system of the computer it is running on.
@@ -15,7 +18,34 @@ import java.io.*;
 
 public class FileSystem
 {
-    /** Read a stored file
+    /** The formats a book can be saved in
+     */
+    public enum Format
+    {
+        /** The serialized AddressBook object */
+        STANDARD,
+        /** The compact format of CompressedBookFormat */
+        COMPRESSED,
+        /** The format of LazyBookFormat, which is opened by reading only the
+         *  names */
+        LAZY
+    }
+    
+    /** An object implementing this interface is told about the persons in
+     *  a book as they are read, so that they can be shown before the whole
+     *  book has been read
+     */
+    public interface ReadListener
+    {
+        /** Called, on the reading thread, with each group of persons read.
+         *  The groups come in the order the persons are in the book
+         *
+         *  @param persons the persons just read
+         */
+        void personsRead(List<Person> persons);
+    }
+    
+    /** Read a stored file.  Files saved in any of the formats can be read.
      *
      *  @param file the file specification for the file to read
      *  @return the AddressBook object stored in the file
@@ -30,16 +60,58 @@ public class FileSystem
     public AddressBook readFile(File file) throws IOException, 
                                                   ClassNotFoundException
     {
-        ObjectInputStream stream = 
-            new ObjectInputStream(new FileInputStream(file));
-        AddressBook result = (AddressBook) stream.readObject();
+        return readFile(file, null);
+    }
+    
+    /** Read a stored file, reporting the persons in it as they are read.
+     *  The compressed and lazy formats are reported a group at a time; a
+     *  file in the standard format can only be reported once it has been
+     *  read completely
+     *
+     *  @param file the file specification for the file to read
+     *  @param listener the object to report persons to, or null
+     *  @return the AddressBook object stored in the file
+     *
+     *  @exception IOException if there is a problem reading the file
+     *  @exception ClassCastException if the file does not contain an
+     *             AddressBook
+     *  @exception ClassNotFoundException if the file does not contain
+     *             an AddressBook, and the class it does contain is not
+     *             found - this should never happen
+     */
+    public AddressBook readFile(File file, ReadListener listener) 
+        throws IOException, ClassNotFoundException
+    {
+        AddressBook result;
+        if (CompressedBookFormat.isCompressed(file))
+            result = CompressedBookFormat.read(file, listener);
+        else if (LazyBookFormat.isLazy(file))
+            result = LazyBookFormat.read(file, listener);
+        else
+        {
+            ObjectInputStream stream = 
+                new ObjectInputStream(new FileInputStream(file));
+            try
+            {
+                result = (AddressBook) stream.readObject();
+            }
+            finally
+            {
+                stream.close();
+            }
+            if (listener != null)
+                listener.personsRead(result.snapshot().asList());
+        }
         result.setFile(file);
         result.setUnchangedSinceLastSave();
         defaultDirectory = file.getParent();
         return result;
     }
     
-    /** Save an address book to a file
+    /** Save an address book to a file, in the format that has been selected.
+     *  The book is written to a new file which then replaces the old one, so
+     *  that a book whose persons are still being read lazily from the old
+     *  file can be saved over it
      *
      *  @param addressBook the AddressBook to save
      *  @param file the file specification for the file to create
@@ -48,14 +120,64 @@ public class FileSystem
      */
     public void  saveFile(AddressBook addressBook, File file) throws IOException
     {
-        ObjectOutputStream stream = 
-            new ObjectOutputStream(new FileOutputStream(file));
-        stream.writeObject(addressBook);
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temporary = File.createTempFile("book", ".tmp", directory);
+        try
+        {
+            switch(format)
+            {
+                case COMPRESSED:
+                    CompressedBookFormat.write(addressBook, temporary);
+                    break;
+                    
+                case LAZY:
+                    LazyBookFormat.write(addressBook, temporary);
+                    break;
+                    
+                default:
+                    ObjectOutputStream stream = 
+                        new ObjectOutputStream(new FileOutputStream(temporary));
+                    try
+                    {
+                        stream.writeObject(addressBook);
+                    }
+                    finally
+                    {
+                        stream.close();
+                    }
+            }
+            Files.move(temporary.toPath(), file.toPath(), 
+                       StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            temporary.delete();
+        }
         addressBook.setFile(file);
         addressBook.setUnchangedSinceLastSave();
         defaultDirectory = file.getParent();
     }
 
+    /** Choose the format used by saveFile
+     *
+     *  @param format the format to save books in from now on
+     */
+    public void setFormat(Format format)
+    {
+        if (format == null)
+            throw new IllegalArgumentException("No format");
+        this.format = format;
+    }
+    
+    /** Find out which format is used by saveFile
+     *
+     *  @return the format books are saved in
+     */
+    public Format getFormat()
+    {
+        return format;
+    }
+
     /** Get the default directory for open/save/print
      * 
      *  @return the default directory, or the user's home directory if there
@@ -69,4 +191,8 @@ public class FileSystem
     // The default directory to use for open/save/print
     
     private String defaultDirectory;
+    
+    // The format files are saved in
+    
+    private Format format = Format.STANDARD;
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+/**
+ *  HashFieldIndex.java
+ *
+ */
+
+package addressbook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** An index that maps each value of one field to the persons having that
+ *  value.  This form of the index keeps the values in a hash table, so it
+ *  can only answer equality conditions, but does so in constant time.
+ */
+public class HashFieldIndex implements FieldIndex
+{
+    /** Constructor
+     *
+     *  @param field the field to index
+     */
+    public HashFieldIndex(PersonField field)
+    {
+        this(field, new HashMap<String, Set<Person>>());
+    }
+
+    /** Constructor for subclasses that keep the values in another kind of map
+     *
+     *  @param field the field to index
+     *  @param entries the (empty) map to keep the values in
+     */
+    protected HashFieldIndex(PersonField field, Map<String, Set<Person>> entries)
+    {
+        this.field = field;
+        this.entries = entries;
+    }
+
+    /** Accessor for the field this index covers
+     *
+     *  @return the indexed field
+     */
+    public PersonField getField()
+    {
+        return field;
+    }
+
+    /** Record a person in the index
+     *
+     *  @param person the person to add
+     */
+    public synchronized void add(Person person)
+    {
+        String value = field.valueOf(person);
+        Set<Person> persons = entries.get(value);
+        if (persons == null)
+        {
+            persons = new LinkedHashSet<Person>();
+            entries.put(value, persons);
+        }
+        persons.add(person);
+    }
+
+    /** Remove a person from the index
+     *
+     *  @param person the person to remove - with the same field value it
+     *         had when it was added
+     */
+    public synchronized void remove(Person person)
+    {
+        String value = field.valueOf(person);
+        Set<Person> persons = entries.get(value);
+        if (persons != null)
+        {
+            persons.remove(person);
+            if (persons.isEmpty())
+                entries.remove(value);
+        }
+    }
+
+    /** Remove every person from the index
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    /** Find the persons with a given value in this index's field
+     *
+     *  @param value the value
+     *  @return the persons having that value
+     */
+    public synchronized List<Person> get(String value)
+    {
+        Set<Person> persons = entries.get(value);
+        if (persons == null)
+            return Collections.emptyList();
+        return new ArrayList<Person>(persons);
+    }
+
+    /** Estimate how many persons satisfy a condition - exact, for equality
+     *
+     *  @param condition the condition
+     *  @return the number of matching persons, or -1 if the condition is
+     *          not an equality
+     */
+    public synchronized int estimate(Query.Condition condition)
+    {
+        if (condition.getOperator() != Query.Operator.EQUALS)
+            return -1;
+        Set<Person> persons = entries.get(condition.getValue());
+        return persons == null ? 0 : persons.size();
+    }
+
+    /** Find the persons satisfying an equality condition
+     *
+     *  @param condition the condition
+     *  @return the persons satisfying the condition
+     */
+    public Iterator<Person> lookup(Query.Condition condition)
+    {
+        return get(condition.getValue()).iterator();
+    }
+
+    // The field indexed, and the persons having each of its values
+
+    protected final PersonField field;
+    protected final Map<String, Set<Person>> entries;
+}
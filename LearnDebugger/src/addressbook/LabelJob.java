@@ -0,0 +1,390 @@
+/**
+ *  LabelJob.java
+ *
+ */
+
+package addressbook;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/** An object of this class prints the mailing labels for an address book
+ *  split by region, for bulk mailing: one file for each sectional center -
+ *  the persons whose ZIPs begin with the same three digits - with the
+ *  labels in each file sorted by ZIP and then by name.  Persons whose ZIPs
+ *  do not begin with three digits go in a file of their own.  The labels
+ *  look just like those AddressBook.printMailingLabels() prints.
+ *
+ *  The book is split in one pass over a snapshot; then each region is
+ *  sorted and written by a task of its own on the shared worker pool,
+ *  largest regions first, so that all the processors are kept busy until
+ *  the last few small regions.  When every file has been written, a
+ *  manifest listing each file with the number of labels in it and its size
+ *  in bytes is written beside them, as manifest.txt.
+ *
+ *      LabelJob [-prefix n] file directory
+ */
+public class LabelJob
+{
+    /** Constructor - split by the first three digits of the ZIP
+     *
+     *  @param addressBook the book to print labels for
+     */
+    public LabelJob(AddressBook addressBook)
+    {
+        this.addressBook = addressBook;
+        prefixLength = DEFAULT_PREFIX_LENGTH;
+    }
+
+    /** Change how many digits of the ZIP pick out a region
+     *
+     *  @param prefixLength the number of digits - 3 for sectional centers
+     *
+     *  @exception IllegalArgumentException if prefixLength is not positive
+     */
+    public void setPrefixLength(int prefixLength)
+    {
+        if (prefixLength <= 0)
+            throw new IllegalArgumentException("Prefix length " + prefixLength);
+        this.prefixLength = prefixLength;
+    }
+
+    /** Print the labels, and the manifest
+     *
+     *  @param directory the directory to write the files in - created if
+     *         it does not exist
+     *  @return the manifest
+     *
+     *  @exception IOException if there is a problem writing a file
+     */
+    public Manifest run(final File directory) throws IOException
+    {
+        if (! directory.isDirectory() && ! directory.mkdirs())
+            throw new IOException("Cannot create directory " + directory);
+
+        final Map<String, List<Person>> regions = split(addressBook.snapshot());
+        List<String> prefixes = new ArrayList<String>(regions.keySet());
+        Collections.sort(prefixes, new Comparator<String>() {
+            public int compare(String prefix1, String prefix2)
+            {
+                return regions.get(prefix2).size() - regions.get(prefix1).size();
+            }
+        });
+
+        List<Callable<Entry>> tasks = new ArrayList<Callable<Entry>>();
+        for (final String prefix : prefixes)
+        {
+            final List<Person> persons = regions.get(prefix);
+            tasks.add(new Callable<Entry>() {
+                public Entry call() throws IOException
+                {
+                    return print(prefix, persons, directory);
+                }
+            });
+        }
+
+        List<Entry> entries;
+        try
+        {
+            entries = BookExecutors.invokeAll(tasks);
+        }
+        catch(IOException e)
+        {
+            throw e;
+        }
+        catch(RuntimeException e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            throw new IOException(e);
+        }
+
+        Manifest result = new Manifest(entries);
+        write(new File(directory, MANIFEST_NAME), result.toString());
+        return result;
+    }
+
+    /** Print the labels for a book split by region
+     *
+     *  @param args the command line - see the class description
+     *
+     *  @exception Exception if the book cannot be read or the labels written
+     */
+    public static void main(String [] args) throws Exception
+    {
+        int prefixLength = DEFAULT_PREFIX_LENGTH;
+        int next = 0;
+        try
+        {
+            if (args.length > 1 && args[0].equals("-prefix"))
+            {
+                prefixLength = Integer.parseInt(args[1]);
+                next = 2;
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            next = args.length;
+        }
+        if (args.length - next != 2)
+        {
+            System.err.println("Usage: LabelJob [-prefix n] file directory");
+            System.exit(1);
+        }
+
+        AddressBook book = new FileSystem().readFile(new File(args[next]));
+        LabelJob job = new LabelJob(book);
+        job.setPrefixLength(prefixLength);
+        System.out.print(job.run(new File(args[next + 1])));
+    }
+
+    /** The files written by a job, with the number of labels in each and
+     *  its size
+     */
+    public static class Manifest
+    {
+        /** Constructor
+         *
+         *  @param entries the files, in any order
+         */
+        Manifest(List<Entry> entries)
+        {
+            this.entries = new ArrayList<Entry>(entries);
+            Collections.sort(this.entries, new Comparator<Entry>() {
+                public int compare(Entry entry1, Entry entry2)
+                {
+                    return entry1.getPrefix().compareTo(entry2.getPrefix());
+                }
+            });
+            for (Entry entry : entries)
+            {
+                totalLabels += entry.getLabels();
+                totalBytes += entry.getBytes();
+            }
+        }
+
+        /** Get the files written
+         *
+         *  @return the files, in order of ZIP prefix
+         */
+        public List<Entry> getEntries()
+        {
+            return Collections.unmodifiableList(entries);
+        }
+
+        /** Get the number of labels printed
+         *
+         *  @return the number of labels in all the files
+         */
+        public int getTotalLabels()
+        {
+            return totalLabels;
+        }
+
+        /** Get the size of the files written
+         *
+         *  @return the number of bytes in all the files
+         */
+        public long getTotalBytes()
+        {
+            return totalBytes;
+        }
+
+        /** Get the text of the manifest, as written to manifest.txt: a line
+         *  for each file giving its ZIP prefix, name, number of labels and
+         *  size in bytes, separated by tabs, then a line of totals
+         */
+        public String toString()
+        {
+            StringBuilder result = new StringBuilder();
+            result.append("# prefix\tfile\tlabels\tbytes\n");
+            for (Entry entry : entries)
+                result.append(entry.getPrefix()).append('\t')
+                      .append(entry.getFile().getName()).append('\t')
+                      .append(entry.getLabels()).append('\t')
+                      .append(entry.getBytes()).append('\n');
+            result.append("total\t").append(entries.size()).append(" files\t")
+                  .append(totalLabels).append('\t')
+                  .append(totalBytes).append('\n');
+            return result.toString();
+        }
+
+        private final List<Entry> entries;
+        private int totalLabels;
+        private long totalBytes;
+    }
+
+    /** One file written by a job
+     */
+    public static class Entry
+    {
+        /** Constructor
+         *
+         *  @param prefix the ZIP prefix of the region
+         *  @param file the file
+         *  @param labels the number of labels in it
+         *  @param bytes its size
+         */
+        Entry(String prefix, File file, int labels, long bytes)
+        {
+            this.prefix = prefix;
+            this.file = file;
+            this.labels = labels;
+            this.bytes = bytes;
+        }
+
+        /** Get the ZIP prefix of the region
+         *
+         *  @return the prefix, or "other" for persons whose ZIPs have none
+         */
+        public String getPrefix()
+        {
+            return prefix;
+        }
+
+        /** Get the file
+         *
+         *  @return the file
+         */
+        public File getFile()
+        {
+            return file;
+        }
+
+        /** Get the number of labels in the file
+         *
+         *  @return the number of labels
+         */
+        public int getLabels()
+        {
+            return labels;
+        }
+
+        /** Get the size of the file
+         *
+         *  @return the number of bytes
+         */
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        private final String prefix;
+        private final File file;
+        private final int labels;
+        private final long bytes;
+    }
+
+    /** Auxiliary to run - split the persons by region
+     *
+     *  @param snapshot the persons
+     *  @return the persons of each region, by ZIP prefix
+     */
+    private Map<String, List<Person>> split(BookSnapshot snapshot)
+    {
+        Map<String, List<Person>> result = new HashMap<String, List<Person>>();
+        for (Person person : snapshot)
+        {
+            String prefix = prefixOf(person.getZip());
+            List<Person> region = result.get(prefix);
+            if (region == null)
+            {
+                region = new ArrayList<Person>();
+                result.put(prefix, region);
+            }
+            region.add(person);
+        }
+        return result;
+    }
+
+    /** Auxiliary to split - get the region of a ZIP
+     *
+     *  @param zip the ZIP
+     *  @return its first prefixLength characters, if they are digits, or
+     *          OTHER
+     */
+    private String prefixOf(String zip)
+    {
+        if (zip == null || zip.length() < prefixLength)
+            return OTHER;
+        for (int i = 0; i < prefixLength; i ++)
+            if (! Character.isDigit(zip.charAt(i)))
+                return OTHER;
+        return zip.substring(0, prefixLength);
+    }
+
+    /** Auxiliary to run - sort the persons of a region and print their
+     *  labels.  Run by a worker
+     *
+     *  @param prefix the ZIP prefix of the region
+     *  @param persons the persons
+     *  @param directory the directory to write the file in
+     *  @return the entry for the file in the manifest
+     *
+     *  @exception IOException if there is a problem writing the file
+     */
+    private static Entry print(String prefix, List<Person> persons,
+                               File directory) throws IOException
+    {
+        Collections.sort(persons, new Person.CompareByZip());
+        File file = new File(directory, "labels-" + prefix + ".txt");
+        PrintWriter writer = open(file);
+        try
+        {
+            for (Person person : persons)
+                AddressBook.printMailingLabel(writer, person);
+            if (writer.checkError())
+                throw new IOException("Problem writing " + file);
+        }
+        finally
+        {
+            writer.close();
+        }
+        return new Entry(prefix, file, persons.size(), file.length());
+    }
+
+    /** Auxiliary to run - write the manifest
+     */
+    private static void write(File file, String text) throws IOException
+    {
+        PrintWriter writer = open(file);
+        try
+        {
+            writer.print(text);
+            if (writer.checkError())
+                throw new IOException("Problem writing " + file);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    private static PrintWriter open(File file) throws IOException
+    {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE));
+    }
+
+    private final AddressBook addressBook;
+    private int prefixLength;
+
+    private static final int DEFAULT_PREFIX_LENGTH = 3;
+    private static final String OTHER = "other";
+    private static final String MANIFEST_NAME = "manifest.txt";
+    private static final int BUFFER_SIZE = 1 << 16;
+}
@@ -0,0 +1,422 @@
+/**
+ *  LazyBookFormat.java
+ *
+ */
+
+package addressbook;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** This class reads and writes address books in a format that lets a book
+ *  be opened without reading all of it.  The file holds a table of names,
+ *  each with the file offset of the rest of that person's information.  When
+ *  a book is read, only the name table is read; each person's address, city,
+ *  state, ZIP and phone are read the first time they are asked for, and are
+ *  kept in a bounded cache of recently used persons.  So the time to open a
+ *  book, and the memory it occupies until its details are used, depend only
+ *  on the names.
+ *
+ *  The layout of a file is:
+ *
+ *      MAGIC, VERSION, record count
+ *      the details of each person - address, city, state, ZIP, phone
+ *      the name table - for each person, first name, last name, and the
+ *          offset of the person's details
+ *      the offset of the name table (the last 8 bytes of the file)
+ */
+public class LazyBookFormat
+{
+    /** Find out whether a file is in this format
+     *
+     *  @param file the file to check
+     *  @return true if the file starts with this format's magic number
+     *
+     *  @exception IOException if there is a problem reading the file
+     */
+    public static boolean isLazy(File file) throws IOException
+    {
+        DataInputStream stream = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            return stream.readInt() == MAGIC;
+        }
+        catch(EOFException e)
+        {
+            return false;
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /** Write an address book to a file in this format
+     *
+     *  @param addressBook the book to write
+     *  @param file the file to create
+     *
+     *  @exception IOException if there is a problem writing the file
+     */
+    public static void write(AddressBook addressBook, File file)
+        throws IOException
+    {
+        BookSnapshot snapshot = addressBook.snapshot();
+        long [] offsets = new long[snapshot.size()];
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try
+        {
+            output.setLength(0);
+            // Counted here, not by stream.size(), which stops at 2 GB
+            CompressedBookFormat.CountingOutputStream counter =
+                new CompressedBookFormat.CountingOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(
+                        output.getChannel()), 1 << 16));
+            DataOutputStream stream = new DataOutputStream(counter);
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            stream.writeInt(snapshot.size());
+
+            int i = 0;
+            for (Person person : snapshot)
+            {
+                offsets[i ++] = counter.getCount();
+                stream.writeUTF(person.getAddress());
+                stream.writeUTF(person.getCity());
+                stream.writeUTF(person.getState());
+                stream.writeUTF(person.getZip());
+                stream.writeUTF(person.getPhone());
+            }
+
+            long tableOffset = counter.getCount();
+            i = 0;
+            for (Person person : snapshot)
+            {
+                stream.writeUTF(person.getFirstName());
+                stream.writeUTF(person.getLastName());
+                stream.writeLong(offsets[i ++]);
+            }
+            stream.writeLong(tableOffset);
+            stream.flush();
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+
+    /** Read an address book from a file in this format.  Only the names are
+     *  read now; the other information about each person is read when it is
+     *  first needed
+     *
+     *  @param file the file to read
+     *  @return a new AddressBook holding the persons in the file
+     *
+     *  @exception IOException if there is a problem reading the file, or it
+     *             is not in this format
+     */
+    public static AddressBook read(File file) throws IOException
+    {
+        return read(file, null);
+    }
+
+    /** Read an address book from a file in this format, reporting the
+     *  persons as their names are read
+     *
+     *  @param file the file to read
+     *  @param listener the object to report persons to, or null
+     *  @return a new AddressBook holding the persons in the file
+     *
+     *  @exception IOException if there is a problem reading the file, or it
+     *             is not in this format
+     */
+    public static AddressBook read(File file, FileSystem.ReadListener listener)
+        throws IOException
+    {
+        Reader reader = new Reader(file, DEFAULT_CACHE_SIZE);
+        try
+        {
+            AddressBook result = new AddressBook();
+            result.deferIndexes();
+            result.appendPersons(reader.readNames(listener));
+            result.setSource(reader);
+            return result;
+        }
+        catch(IOException e)
+        {
+            reader.close();
+            throw e;
+        }
+    }
+
+    /** An object of this class reads the details of persons from one file on
+     *  demand, keeping the most recently used ones in a cache.  The file is
+     *  kept open until the reader is closed, so that it keeps reading the
+     *  same data even if the file is later replaced.  A closed reader opens
+     *  the file again if it is asked for details, provided the file has not
+     *  changed since it was first opened.
+     */
+    static class Reader implements Closeable
+    {
+        /** Constructor
+         *
+         *  @param file the file to read
+         *  @param cacheSize the most persons' details to keep in memory
+         *
+         *  @exception IOException if the file cannot be opened or is not in
+         *             this format
+         */
+        Reader(File file, final int cacheSize) throws IOException
+        {
+            path = file;
+            lastModified = file.lastModified();
+            length = file.length();
+            this.file = open(file);
+            cache = new LinkedHashMap<Long, String []>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(
+                    Map.Entry<Long, String []> eldest)
+                {
+                    return size() > cacheSize;
+                }
+            };
+        }
+
+        /** Read the name table, making a person for each name whose details
+         *  will be read through this reader
+         *
+         *  @param listener the object to report each group of persons to as
+         *         it is read, or null
+         *  @return the persons, in order
+         *
+         *  @exception IOException if there is a problem reading the file
+         */
+        synchronized List<Person> readNames(FileSystem.ReadListener listener)
+            throws IOException
+        {
+            RandomAccessFile file = file();
+            file.seek(8);
+            int size = file.readInt();
+            file.seek(file.length() - 8);
+            file.seek(file.readLong());
+            DataInputStream stream = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(
+                    file.getChannel()), 1 << 16));
+
+            List<Person> result = new ArrayList<Person>(size);
+            int reported = 0;
+            for (int i = 0; i < size; i ++)
+            {
+                String first = stream.readUTF();
+                String last = stream.readUTF();
+                result.add(new LazyPerson(first, last, this, stream.readLong()));
+                if (listener != null && 
+                    (result.size() - reported == REPORT_SIZE || i == size - 1))
+                {
+                    listener.personsRead(result.subList(reported, result.size()));
+                    reported = result.size();
+                }
+            }
+            return result;
+        }
+
+        /** Get the details of a person, from the cache if possible.  They
+         *  are cached together with their forms without accents, so that
+         *  searches ignoring accents do not work these out on every call
+         *
+         *  @param offset the offset of the details in the file
+         *  @return the address, city, state, ZIP and phone, in that order,
+         *          then the same as given by SearchCriterion.fold() - the
+         *          very same strings for values that have no accents
+         */
+        synchronized String [] details(long offset)
+        {
+            String [] result = cache.get(offset);
+            if (result == null)
+            {
+                try
+                {
+                    RandomAccessFile file = file();
+                    file.seek(offset);
+                    result = new String [2 * DETAIL_COUNT];
+                    for (int i = 0; i < DETAIL_COUNT; i ++)
+                    {
+                        result[i] = POOLED[i] ? StringPool.canonical(file.readUTF())
+                                              : file.readUTF();
+                        String folded = SearchCriterion.fold(result[i]);
+                        if (folded != result[i] && POOLED[i])
+                            folded = StringPool.canonical(folded);
+                        result[DETAIL_COUNT + i] = folded;
+                    }
+                }
+                catch(IOException e)
+                {
+                    throw new UncheckedIOException(
+                        "Cannot read details from the book file", e);
+                }
+                cache.put(offset, result);
+            }
+            return result;
+        }
+
+        /** Get the details now in the cache - for measuring them
+         *
+         *  @return the cached details, least recently used first
+         */
+        synchronized List<String []> getCachedDetails()
+        {
+            return new ArrayList<String []>(cache.values());
+        }
+
+        /** Close the file.  The details already cached can still be used
+         *
+         *  @exception IOException if there is a problem closing the file
+         */
+        public synchronized void close() throws IOException
+        {
+            if (file != null)
+            {
+                file.close();
+                file = null;
+            }
+        }
+
+        /** Auxiliary to the reading methods - get the open file, opening it
+         *  again if the reader has been closed
+         *
+         *  @exception IOException if the file cannot be opened, or has
+         *             changed since the reader was created
+         */
+        private RandomAccessFile file() throws IOException
+        {
+            if (file == null)
+            {
+                if (path.lastModified() != lastModified ||
+                    path.length() != length)
+                    throw new IOException(path + " has changed since it was read");
+                file = open(path);
+            }
+            return file;
+        }
+
+        /** Auxiliary to the constructor and file() - open the file and
+         *  check that it is in this format
+         */
+        private static RandomAccessFile open(File path) throws IOException
+        {
+            RandomAccessFile result = new RandomAccessFile(path, "r");
+            if (result.readInt() != MAGIC || result.readInt() != VERSION)
+            {
+                result.close();
+                throw new IOException(path + " is not a lazy book");
+            }
+            return result;
+        }
+
+        private RandomAccessFile file;  // null while closed
+        private LinkedHashMap<Long, String []> cache;
+
+        // The file, and what it looked like when it was opened
+
+        private final File path;
+        private final long lastModified, length;
+    }
+
+    /** A person whose details are read from a file when first needed.  When
+     *  written to an ordinary (serialized) file, it is replaced by a plain
+     *  Person holding all its information.  Updating one produces a plain
+     *  Person too
+     */
+    static class LazyPerson extends Person
+    {
+        LazyPerson(String firstName, String lastName, Reader reader, long offset)
+        {
+            super(firstName, lastName, null, null, null, null, null);
+            this.reader = reader;
+            this.offset = offset;
+        }
+
+        public String getAddress()
+        {
+            return reader.details(offset)[0];
+        }
+
+        public String getCity()
+        {
+            return reader.details(offset)[1];
+        }
+
+        public String getState()
+        {
+            return reader.details(offset)[2];
+        }
+
+        public String getZip()
+        {
+            return reader.details(offset)[3];
+        }
+
+        public String getPhone()
+        {
+            return reader.details(offset)[4];
+        }
+
+        public long getPhoneNumber()
+        {
+            return PhoneIndex.normalize(getPhone());
+        }
+
+        public String getFolded(PersonField field)
+        {
+            // The names were folded when this person was made
+            int detail = field.ordinal() - PersonField.ADDRESS.ordinal();
+            return detail < 0 ? super.getFolded(field)
+                              : reader.details(offset)[DETAIL_COUNT + detail];
+        }
+
+        /** Get the reader this person's details are read through
+         *
+         *  @return the reader
+         */
+        Reader getReader()
+        {
+            return reader;
+        }
+
+        private Object writeReplace()
+        {
+            String [] details = reader.details(offset);
+            return new Person(getFirstName(), getLastName(), details[0],
+                              details[1], details[2], details[4], details[3]);
+        }
+
+        private final transient Reader reader;
+        private final transient long offset;
+
+        // Never itself written to a file - see writeReplace()
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    // Identification of the format
+
+    static final int MAGIC = 0x41424B4C;           // "ABKL"
+    static final int VERSION = 1;
+
+    // How many details each person has - address, city, state, ZIP and
+    // phone - and which of them are few enough in number to be pooled
+
+    private static final int DETAIL_COUNT = 5;
+    private static final boolean [] POOLED = { false, true, true, true, false };
+
+    // How many names are read between reports to a listener
+
+    private static final int REPORT_SIZE = 1024;
+
+    // How many persons' details a book keeps in memory
+
+    private static final int DEFAULT_CACHE_SIZE = 4096;
+}
@@ -0,0 +1,385 @@
+/**
+ *  PersistentList.java
+ *
+ */
+
+package addressbook;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/** An object of this class is an immutable list.  Each operation that
+ *  "changes" a list leaves it as it was and returns a new list instead.  The
+ *  new list shares all but O(log n) of its structure with the old one, so
+ *  keeping many versions of a large list around costs little.
+ *
+ *  The list is held as a height-balanced (AVL) binary tree in which each
+ *  node records the size of its subtree; elements are found by position.
+ *  get, set, insert and remove are all O(log n).
+ */
+public final class PersistentList<E> implements Iterable<E>
+{
+    /** Get an empty list
+     *
+     *  @return a list with no elements
+     */
+    public static <E> PersistentList<E> empty()
+    {
+        return new PersistentList<E>(null);
+    }
+
+    /** Create a list holding the elements of an array, in O(n) time
+     *
+     *  @param elements the elements, in order
+     *  @return a list of those elements
+     */
+    public static <E> PersistentList<E> of(E [] elements)
+    {
+        return new PersistentList<E>(build(elements, 0, elements.length));
+    }
+
+    /** Get the number of elements in this list
+     *
+     *  @return the number of elements
+     */
+    public int size()
+    {
+        return size(root);
+    }
+
+    /** Get the element at a given position
+     *
+     *  @param index the position
+     *  @return the element at that position
+     */
+    public E get(int index)
+    {
+        checkIndex(index, size());
+        Node<E> node = root;
+        while (true)
+        {
+            int leftSize = size(node.left);
+            if (index < leftSize)
+                node = node.left;
+            else if (index > leftSize)
+            {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+            else
+                return node.value;
+        }
+    }
+
+    /** Get a list with the element at a given position replaced
+     *
+     *  @param index the position
+     *  @param value the new element
+     *  @return the new list
+     */
+    public PersistentList<E> set(int index, E value)
+    {
+        checkIndex(index, size());
+        return new PersistentList<E>(set(root, index, value));
+    }
+
+    /** Get a list with an element added at the end
+     *
+     *  @param value the new element
+     *  @return the new list
+     */
+    public PersistentList<E> add(E value)
+    {
+        return insert(size(), value);
+    }
+
+    /** Get a list with several elements added at the end.  This takes
+     *  O(k + log n) time for k elements, rather than O(k log n)
+     *
+     *  @param values the new elements, in order
+     *  @return the new list
+     */
+    public PersistentList<E> addAll(E [] values)
+    {
+        if (values.length == 0)
+            return this;
+        return new PersistentList<E>(join(root, values[0],
+                                          build(values, 1, values.length)));
+    }
+
+    /** Get a list with an element inserted at a given position
+     *
+     *  @param index the position - from 0 to size() inclusive
+     *  @param value the new element
+     *  @return the new list
+     */
+    public PersistentList<E> insert(int index, E value)
+    {
+        checkIndex(index, size() + 1);
+        return new PersistentList<E>(insert(root, index, value));
+    }
+
+    /** Get a list with the element at a given position removed
+     *
+     *  @param index the position
+     *  @return the new list
+     */
+    public PersistentList<E> remove(int index)
+    {
+        checkIndex(index, size());
+        return new PersistentList<E>(remove(root, index));
+    }
+
+    /** Copy the elements of this list into an array
+     *
+     *  @param result an array at least as long as this list
+     *  @return the array
+     */
+    public E [] toArray(E [] result)
+    {
+        int i = 0;
+        for (E value : this)
+            result[i ++] = value;
+        return result;
+    }
+
+    /** Get an iterator over the elements, in order.  Each step takes O(1)
+     *  time on average
+     *
+     *  @return an iterator over the elements
+     */
+    public Iterator<E> iterator()
+    {
+        return iterator(0);
+    }
+
+    /** Get an iterator over the elements, starting at a given position
+     *
+     *  @param start the position of the first element to produce
+     *  @return an iterator over the elements from start on
+     */
+    public Iterator<E> iterator(int start)
+    {
+        final Deque<Node<E>> path = new ArrayDeque<Node<E>>();
+        Node<E> node = root;
+        while (node != null)
+        {
+            int leftSize = size(node.left);
+            if (start <= leftSize)
+            {
+                path.push(node);
+                node = node.left;
+            }
+            else
+            {
+                start -= leftSize + 1;
+                node = node.right;
+            }
+        }
+
+        return new Iterator<E>() {
+            public boolean hasNext()
+            {
+                return ! path.isEmpty();
+            }
+
+            public E next()
+            {
+                if (path.isEmpty())
+                    throw new NoSuchElementException();
+                Node<E> node = path.pop();
+                for (Node<E> next = node.right; next != null; next = next.left)
+                    path.push(next);
+                return node.value;
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** Find the nodes of this list's tree that are not shared with lists
+     *  already looked at - for measuring lists
+     *
+     *  @param seen the nodes already looked at, to which this list's other
+     *         nodes are added
+     *  @param values a list to which the elements in those other nodes are
+     *         added
+     *  @return the number of nodes added to seen
+     */
+    int collect(Set<Object> seen, List<E> values)
+    {
+        int result = 0;
+        Deque<Node<E>> pending = new ArrayDeque<Node<E>>();
+        if (root != null)
+            pending.push(root);
+        while (! pending.isEmpty())
+        {
+            Node<E> node = pending.pop();
+            if (! seen.add(node))
+                continue;           // So is all of its subtree
+            result ++;
+            values.add(node.value);
+            if (node.left != null)
+                pending.push(node.left);
+            if (node.right != null)
+                pending.push(node.right);
+        }
+        return result;
+    }
+
+    /** Constructor
+     *
+     *  @param root the root of the tree, or null for an empty list
+     */
+    private PersistentList(Node<E> root)
+    {
+        this.root = root;
+    }
+
+    /** A node of the tree.  Nodes are never changed once made
+     */
+    private static final class Node<E>
+    {
+        Node(Node<E> left, E value, Node<E> right)
+        {
+            this.left = left;
+            this.value = value;
+            this.right = right;
+            size = PersistentList.size(left) + 1 + PersistentList.size(right);
+            height = Math.max(height(left), height(right)) + 1;
+        }
+
+        final Node<E> left, right;
+        final E value;
+        final int size, height;
+    }
+
+    // Auxiliaries to the public methods - each works on a subtree and
+    // returns the new subtree
+
+    private static <E> Node<E> build(E [] elements, int from, int to)
+    {
+        if (from >= to)
+            return null;
+        int middle = (from + to) >>> 1;
+        return new Node<E>(build(elements, from, middle),
+                           elements[middle],
+                           build(elements, middle + 1, to));
+    }
+
+    /** Make a tree holding the elements of left, then value, then the
+     *  elements of right, whatever the heights of left and right
+     */
+    private static <E> Node<E> join(Node<E> left, E value, Node<E> right)
+    {
+        if (height(left) > height(right) + 1)
+            return balance(left.left, left.value, join(left.right, value, right));
+        else if (height(right) > height(left) + 1)
+            return balance(join(left, value, right.left), right.value, right.right);
+        else
+            return new Node<E>(left, value, right);
+    }
+
+    private static <E> Node<E> set(Node<E> node, int index, E value)
+    {
+        int leftSize = size(node.left);
+        if (index < leftSize)
+            return new Node<E>(set(node.left, index, value), node.value, node.right);
+        else if (index > leftSize)
+            return new Node<E>(node.left, node.value,
+                               set(node.right, index - leftSize - 1, value));
+        else
+            return new Node<E>(node.left, value, node.right);
+    }
+
+    private static <E> Node<E> insert(Node<E> node, int index, E value)
+    {
+        if (node == null)
+            return new Node<E>(null, value, null);
+        int leftSize = size(node.left);
+        if (index <= leftSize)
+            return balance(insert(node.left, index, value), node.value, node.right);
+        else
+            return balance(node.left, node.value,
+                           insert(node.right, index - leftSize - 1, value));
+    }
+
+    private static <E> Node<E> remove(Node<E> node, int index)
+    {
+        int leftSize = size(node.left);
+        if (index < leftSize)
+            return balance(remove(node.left, index), node.value, node.right);
+        else if (index > leftSize)
+            return balance(node.left, node.value,
+                           remove(node.right, index - leftSize - 1));
+        else if (node.left == null)
+            return node.right;
+        else if (node.right == null)
+            return node.left;
+        else
+        {
+            // Replace the node's value by the first value of its right subtree
+            Node<E> first = node.right;
+            while (first.left != null)
+                first = first.left;
+            return balance(node.left, first.value, remove(node.right, 0));
+        }
+    }
+
+    /** Make a node from two subtrees whose heights differ by at most 2,
+     *  rotating as needed to keep the tree balanced
+     */
+    private static <E> Node<E> balance(Node<E> left, E value, Node<E> right)
+    {
+        int difference = height(left) - height(right);
+        if (difference > 1)
+        {
+            if (height(left.left) >= height(left.right))
+                return new Node<E>(left.left, left.value,
+                                   new Node<E>(left.right, value, right));
+            else
+                return new Node<E>(new Node<E>(left.left, left.value, left.right.left),
+                                   left.right.value,
+                                   new Node<E>(left.right.right, value, right));
+        }
+        else if (difference < -1)
+        {
+            if (height(right.right) >= height(right.left))
+                return new Node<E>(new Node<E>(left, value, right.left),
+                                   right.value, right.right);
+            else
+                return new Node<E>(new Node<E>(left, value, right.left.left),
+                                   right.left.value,
+                                   new Node<E>(right.left.right, right.value, right.right));
+        }
+        else
+            return new Node<E>(left, value, right);
+    }
+
+    private static int size(Node<?> node)
+    {
+        return node == null ? 0 : node.size;
+    }
+
+    private static int height(Node<?> node)
+    {
+        return node == null ? 0 : node.height;
+    }
+
+    private static void checkIndex(int index, int limit)
+    {
+        if (index < 0 || index >= limit)
+            throw new IndexOutOfBoundsException("Index: " + index);
+    }
+
+    // The root of the tree - null if the list is empty
+
+    private final Node<E> root;
+}
@@ -11,7 +11,12 @@ import java.io.Serializable;
 import java.util.Comparator;
 
 /** An object of this class maintains information about a single individual
- *  in the address book
+ *  in the address book.  Persons are immutable - a change produces a new
+ *  Person - so they can be shared freely between snapshots and threads.
+ *  City, state and ZIP are taken from the StringPool, so that the persons
+ *  sharing them share their Strings.
+ *  Everything but the name is reached through the accessors, which a
+ *  subclass may override to supply it lazily (see LazyBookFormat).
  */
 public class Person implements Serializable
 {
@@ -22,8 +27,8 @@ public class Person implements Serializable
      *  @param address the person's address
      *  @param city the person's city
      *  @param state the person's state
-     *  @param zip the person's zip
      *  @param phone the person's phone
+     *  @param zip the person's zip
      */
     public Person(String firstName,
                   String lastName, 
@@ -36,10 +41,14 @@ public class Person implements Serializable
         this.firstName = firstName;
         this.lastName = lastName;
         this.address = address;
-        this.city = city;
-        this.state = state;
-        this.zip = zip;
+        this.city = StringPool.canonical(city);
+        this.state = StringPool.canonical(state);
+        this.zip = StringPool.canonical(zip);
         this.phone = phone;
+        this.fullName = fullName(this.firstName, this.lastName);
+        this.phoneNumber = PhoneIndex.normalize(phone);
+        this.folded = fold(this.firstName, this.lastName, this.address,
+                           this.city, this.state, this.zip, this.phone);
     }
     
     /** Get the full name of a person in the form last, first
@@ -48,7 +57,7 @@ public class Person implements Serializable
      */
     public String getFullName()
     {
-          return fullName(firstName, lastName);
+          return fullName;
     }
     
     /** Get the full name corresponding to a given first and last name
@@ -62,6 +71,24 @@ public class Person implements Serializable
 		return lastName + ", " + firstName;    
     }
      
+    /** Accessor for the person's first name
+     *
+     *  @return the person's first name
+     */
+    public String getFirstName()
+    {
+        return firstName;
+    }
+    
+    /** Accessor for the person's last name
+     *
+     *  @return the person's last name
+     */
+    public String getLastName()
+    {
+        return lastName;
+    }
+    
     /** Accessor for the person's address
      *
      *  @return the person's address
@@ -107,26 +134,45 @@ public class Person implements Serializable
         return phone;
     }
     
-    /** Update the person with new information.  Note that the name
-     *  cannot be changed, but the other information can be
+    /** Accessor for the person's phone number in canonical numeric form,
+     *  for looking persons up by number
+     *
+     *  @return the phone number as given by PhoneIndex.normalize()
+     */
+    public long getPhoneNumber()
+    {
+        return phoneNumber;
+    }
+    
+    /** Get the value of a field with the accents removed, for searches that
+     *  ignore accents.  This is worked out once, when the person is made
+     *
+     *  @param field the field
+     *  @return the field's value as given by SearchCriterion.fold()
+     */
+    public String getFolded(PersonField field)
+    {
+        return folded == null ? field.valueOf(this) : folded[field.ordinal()];
+    }
+    
+    /** Create an updated copy of the person with new information.  Note
+     *  that the name cannot be changed, but the other information can be
      *
      *  @param address the person's new address
      *  @param city the person's new city
      *  @param state the person's new state
      *  @param zip the person's new zip
      *  @param phone the person's new phone
+     *  @return a new Person with this person's name and the new information
      */
-    public void update(String address,
-                       String city,
-                       String state,
-                       String zip,
-                       String phone)
+    public Person update(String address,
+                         String city,
+                         String state,
+                         String zip,
+                         String phone)
     {
-        this.address = address;
-        this.city = city;
-        this.state = state;
-        this.zip = zip;
-        this.phone = phone;
+        return new Person(firstName, lastName, address, city, state, 
+                          phone, zip);
     }
     
     /** Test to see whether this person contains a search criterion
@@ -138,21 +184,80 @@ public class Person implements Serializable
     {
         return firstName.contains(criterion) ||
                lastName.contains(criterion) ||
-               address.contains(criterion) ||
-               city.contains(criterion) ||
-               state.contains(criterion) ||
-               zip.contains(criterion) ||
-               phone.contains(criterion);
+               getAddress().contains(criterion) ||
+               getCity().contains(criterion) ||
+               getState().contains(criterion) ||
+               getZip().contains(criterion) ||
+               getPhone().contains(criterion);
+    }
+    
+    /** When a person is read from a file, replace it by one whose city,
+     *  state and ZIP come from the StringPool
+     *
+     *  @return the person to use in place of the one read
+     */
+    private Object readResolve()
+    {
+        return new Person(firstName, lastName, address, city, state, 
+                          phone, zip);
     }
     
+    // Files written before this class declared a serialVersionUID use
+    // the one computed for it then
+    
+    private static final long serialVersionUID = -8027140635279699029L;
+    
     // Stored information about the person
     
-    private String firstName, lastName;
-    private String address;
-    private String city;
-    private String state;
-    private String zip;
-    private String phone;
+    private final String firstName, lastName;
+    private final String address;
+    private final String city;
+    private final String state;
+    private final String zip;
+    private final String phone;
+    
+    // The full name is used constantly, so it is made only once.  It is
+    // not stored in files, since readResolve() makes it again
+    
+    private final transient String fullName;
+    
+    // The phone number in canonical form - also made again by readResolve()
+    
+    private final transient long phoneNumber;
+    
+    // The fields with their accents removed, in the order of PersonField -
+    // null if no field has any, as is usual, so that nothing extra is kept
+    
+    private final transient String [] folded;
+    
+    // Which fields, in the order of PersonField, are few enough in number
+    // to be worth pooling
+    
+    private static final boolean [] POOLED = {
+        false, false, false, true, true, true, false
+    };
+    
+    /** Auxiliary to the constructor - remove the accents from the fields
+     *
+     *  @param values the fields, in the order of PersonField
+     *  @return the fields without accents - city, state and ZIP taken from
+     *          the StringPool - or null if none of them had any
+     */
+    private static String [] fold(String ... values)
+    {
+        String [] result = null;
+        for (int i = 0; i < values.length; i ++)
+        {
+            String folded = SearchCriterion.fold(values[i]);
+            if (folded != values[i])
+            {
+                if (result == null)
+                    result = values.clone();
+                result[i] = POOLED[i] ? StringPool.canonical(folded) : folded;
+            }
+        }
+        return result;
+    }
     
     /** Comparator for comparing two persons by alphabetical order of name
      */
@@ -192,7 +297,7 @@ public class Person implements Serializable
          */
         public int compare(Person person1, Person person2)
         {
-            int result = person1.zip.compareTo(person2.zip);
+            int result = person1.getZip().compareTo(person2.getZip());
             if (result == 0)
                 return new CompareByName().compare(person1, person2);
             else
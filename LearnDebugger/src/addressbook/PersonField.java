@@ -0,0 +1,74 @@
+/**
+ *  PersonField.java
+ *
+ */
+
+package addressbook;
+
+/** The fields of a Person that can be named in queries and searches
+ */
+public enum PersonField
+{
+    FIRST("first"),
+    LAST("last"),
+    ADDRESS("address"),
+    CITY("city"),
+    STATE("state"),
+    ZIP("zip"),
+    PHONE("phone");
+
+    /** Constructor
+     *
+     *  @param name the name used for this field in queries
+     */
+    PersonField(String name)
+    {
+        this.name = name;
+    }
+
+    /** Get the name used for this field in queries
+     *
+     *  @return the field's name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /** Get the value of this field for a given person
+     *
+     *  @param person the person
+     *  @return the value of this field for that person
+     */
+    public String valueOf(Person person)
+    {
+        switch(this)
+        {
+            case FIRST:     return person.getFirstName();
+            case LAST:      return person.getLastName();
+            case ADDRESS:   return person.getAddress();
+            case CITY:      return person.getCity();
+            case STATE:     return person.getState();
+            case ZIP:       return person.getZip();
+            case PHONE:
+            default:        return person.getPhone();
+        }
+    }
+
+    /** Find the field with a given query name, ignoring case
+     *
+     *  @param name the name
+     *  @return the field with that name
+     *
+     *  @exception IllegalArgumentException if there is no such field
+     */
+    public static PersonField forName(String name)
+    {
+        for (PersonField field : values())
+            if (field.name.equalsIgnoreCase(name))
+                return field;
+        throw new IllegalArgumentException("No such field: " + name);
+    }
+
+    private final String name;
+}
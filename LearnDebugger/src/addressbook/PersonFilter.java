@@ -0,0 +1,20 @@
+/**
+ *  PersonFilter.java
+ *
+ */
+
+package addressbook;
+
+/** An object implementing this interface picks out some of the persons in a
+ *  book - for example the search criteria, SearchCriterion and
+ *  RegexCriterion.
+ */
+public interface PersonFilter
+{
+    /** Test a person
+     *
+     *  @param person the person
+     *  @return true if the person is one of those picked out
+     */
+    boolean matches(Person person);
+}
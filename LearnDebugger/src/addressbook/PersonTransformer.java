@@ -0,0 +1,21 @@
+/**
+ *  PersonTransformer.java
+ *
+ */
+
+package addressbook;
+
+/** An object implementing this interface says how to change each of the
+ *  persons picked out by AddressBook.updateWhere().
+ */
+public interface PersonTransformer
+{
+    /** Work out the new information about a person
+     *
+     *  @param person the person as it is now
+     *  @return the person as it should be - a Person with the same name,
+     *          usually made by person.update() - or the person itself or
+     *          null to leave it as it is
+     */
+    Person transform(Person person);
+}
@@ -0,0 +1,287 @@
+/**
+ *  PhoneIndex.java
+ *
+ */
+
+package addressbook;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/** An index from phone numbers to the persons having them, for reverse
+ *  ("caller ID") lookups.  Phone numbers are first put into a canonical
+ *  numeric form by normalize(), so that "978-927-2300", "(978) 927 2300" and
+ *  "+1 978 927 2300" are the same number.
+ *
+ *  The index is an open-addressing hash table whose keys are the numbers as
+ *  primitive longs, so neither adding a person nor looking a number up
+ *  creates any objects.  Several persons may share a number; each has its
+ *  own slot in the table.  Persons with no recognizable number are not
+ *  indexed.
+ */
+public class PhoneIndex implements FieldIndex
+{
+    /** Put a phone number into canonical numeric form.  Everything but the
+     *  digits is ignored, and a leading 1 (the North American country code)
+     *  is dropped from an 11 digit number.  The digits are packed into a
+     *  long behind a leading 1, so that leading zeros are kept.  No objects
+     *  are created
+     *
+     *  @param phone the phone number as entered - may be null
+     *  @return the canonical form, or NO_NUMBER if phone has no digits or
+     *          too many to pack
+     */
+    public static long normalize(CharSequence phone)
+    {
+        if (phone == null)
+            return NO_NUMBER;
+        long result = 1;
+        int digits = 0;
+        boolean leadingOne = false;
+        for (int i = 0; i < phone.length(); i ++)
+        {
+            char c = phone.charAt(i);
+            if (c < '0' || c > '9')
+                continue;
+            if (digits == 0 && c == '1')
+                leadingOne = true;
+            if (++ digits > MAX_DIGITS)
+                return NO_NUMBER;
+            result = result * 10 + (c - '0');
+        }
+        if (digits == 0)
+            return NO_NUMBER;
+        if (digits == 11 && leadingOne)
+        {
+            // Remove the sentinel, so that the 1 becomes the sentinel
+            result -= 100000000000L;
+        }
+        return result;
+    }
+
+    /** Constructor - create an empty index
+     */
+    public PhoneIndex()
+    {
+        clear();
+    }
+
+    /** Accessor for the field this index covers
+     *
+     *  @return PersonField.PHONE
+     */
+    public PersonField getField()
+    {
+        return PersonField.PHONE;
+    }
+
+    /** Record a person in the index
+     *
+     *  @param person the person to add
+     */
+    public synchronized void add(Person person)
+    {
+        long number = person.getPhoneNumber();
+        if (number == NO_NUMBER)
+            return;
+        if (2 * (size + 1) > values.length)
+            resize(2 * values.length);
+        int slot = home(number);
+        while (values[slot] != null)
+            slot = (slot + 1) & mask;
+        keys[slot] = number;
+        values[slot] = person;
+        size ++;
+    }
+
+    /** Remove a person from the index
+     *
+     *  @param person the person to remove - the same object that was added
+     */
+    public synchronized void remove(Person person)
+    {
+        long number = person.getPhoneNumber();
+        if (number == NO_NUMBER)
+            return;
+        for (int slot = home(number); values[slot] != null; slot = (slot + 1) & mask)
+        {
+            if (values[slot] == person)
+            {
+                delete(slot);
+                size --;
+                return;
+            }
+        }
+    }
+
+    /** Remove every person from the index
+     */
+    public synchronized void clear()
+    {
+        keys = new long[INITIAL_CAPACITY];
+        values = new Person[INITIAL_CAPACITY];
+        mask = INITIAL_CAPACITY - 1;
+        size = 0;
+    }
+
+    /** Get the number of slots in the table - for measuring the index
+     *
+     *  @return the length of the table
+     */
+    synchronized int getCapacity()
+    {
+        return keys.length;
+    }
+
+    /** Find a person with a given number
+     *
+     *  @param number the number, in canonical form
+     *  @return a person with that number, or null if there is none
+     */
+    public synchronized Person getFirst(long number)
+    {
+        if (number == NO_NUMBER)
+            return null;
+        for (int slot = home(number); values[slot] != null; slot = (slot + 1) & mask)
+            if (keys[slot] == number)
+                return values[slot];
+        return null;
+    }
+
+    /** Find the persons with a given number
+     *
+     *  @param number the number, in canonical form
+     *  @param result an array to put the persons in - as many as fit
+     *  @return the number of persons with that number, which may be more
+     *          than were put in result
+     */
+    public synchronized int get(long number, Person [] result)
+    {
+        if (number == NO_NUMBER)
+            return 0;
+        int count = 0;
+        for (int slot = home(number); values[slot] != null; slot = (slot + 1) & mask)
+        {
+            if (keys[slot] == number)
+            {
+                if (count < result.length)
+                    result[count] = values[slot];
+                count ++;
+            }
+        }
+        return count;
+    }
+
+    /** Estimate the number of persons satisfying a condition.  Only
+     *  equality conditions on phone can be answered
+     *
+     *  @param condition the condition
+     *  @return the number of persons with the number, or -1
+     */
+    public int estimate(Query.Condition condition)
+    {
+        if (condition.getField() != PersonField.PHONE ||
+            condition.getOperator() != Query.Operator.EQUALS)
+            return -1;
+        long number = normalize(condition.getValue());
+        if (number == NO_NUMBER)
+            return -1;
+        return get(number, NONE);
+    }
+
+    /** Produce the persons satisfying an equality condition on phone
+     *
+     *  @param condition the condition - one for which estimate() did not
+     *         return -1
+     *  @return the persons whose phone is exactly the value given.  (Those
+     *          whose number is only the same in canonical form are not
+     *          included, since they do not satisfy the condition)
+     */
+    public Iterator<Person> lookup(Query.Condition condition)
+    {
+        long number = normalize(condition.getValue());
+        List<Person> result = new ArrayList<Person>();
+        synchronized(this)
+        {
+            for (int slot = home(number); values[slot] != null; slot = (slot + 1) & mask)
+                if (keys[slot] == number && condition.matches(values[slot]))
+                    result.add(values[slot]);
+        }
+        return result.iterator();
+    }
+
+    /** Auxiliary to the methods that probe the table - the slot where the
+     *  search for a number starts
+     */
+    private int home(long number)
+    {
+        long hash = number * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /** Auxiliary to remove - empty a slot, moving later entries of the same
+     *  run back so that every entry can still be reached from its home slot
+     */
+    private void delete(int hole)
+    {
+        int slot = hole;
+        while (true)
+        {
+            slot = (slot + 1) & mask;
+            if (values[slot] == null)
+                break;
+            int home = home(keys[slot]);
+            // The entry may move to the hole unless its home lies cyclically
+            // after the hole and at or before its slot
+            boolean reachable = hole <= slot ?
+                (home > hole && home <= slot) : (home > hole || home <= slot);
+            if (! reachable)
+            {
+                keys[hole] = keys[slot];
+                values[hole] = values[slot];
+                hole = slot;
+            }
+        }
+        values[hole] = null;
+    }
+
+    /** Auxiliary to add - move every entry into a larger table
+     */
+    private void resize(int capacity)
+    {
+        long [] oldKeys = keys;
+        Person [] oldValues = values;
+        keys = new long[capacity];
+        values = new Person[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i ++)
+        {
+            if (oldValues[i] != null)
+            {
+                int slot = home(oldKeys[i]);
+                while (values[slot] != null)
+                    slot = (slot + 1) & mask;
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /** The value normalize() gives for a phone with no usable number
+     */
+    public static final long NO_NUMBER = 0;
+
+    // The table - slot i holds a number in keys[i] and a person having it in
+    // values[i], or is empty if values[i] is null.  The table is kept at
+    // most half full
+
+    private long [] keys;
+    private Person [] values;
+    private int mask;
+    private int size;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_DIGITS = 18;
+    private static final Person [] NONE = new Person[0];
+}
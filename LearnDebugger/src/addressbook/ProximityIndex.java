@@ -0,0 +1,284 @@
+/**
+ *  ProximityIndex.java
+ *
+ */
+
+package addressbook;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/** An index of the persons in a book by the location of their ZIP, for
+ *  finding the persons near a given ZIP.  It uses the KD-tree of a
+ *  ZipCentroids, recording which persons are at each ZIP and, for each
+ *  subtree, how many persons are in it.  Searches skip subtrees with no
+ *  persons, so their cost depends on the ZIPs the book actually uses rather
+ *  than on every ZIP in the table.  Adding or removing a person updates the
+ *  counts along one path from the root, taking O(log n) time.
+ *
+ *  Persons whose ZIP is not in the table are not indexed.
+ */
+public class ProximityIndex
+{
+    /** Constructor - create an empty index
+     *
+     *  @param centroids the locations of ZIPs
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ProximityIndex(ZipCentroids centroids)
+    {
+        this.centroids = centroids;
+        persons = (List<Person> []) new List[centroids.size()];
+        counts = new int[centroids.size()];
+    }
+
+    /** Accessor for the locations this index uses
+     *
+     *  @return the locations of ZIPs
+     */
+    public ZipCentroids getCentroids()
+    {
+        return centroids;
+    }
+
+    /** Record a person in the index
+     *
+     *  @param person the person to add
+     */
+    public synchronized void add(Person person)
+    {
+        int position = centroids.positionOf(person.getZip());
+        if (position < 0)
+            return;
+        if (persons[position] == null)
+            persons[position] = new ArrayList<Person>(2);
+        persons[position].add(person);
+        count(position, 1);
+    }
+
+    /** Remove a person from the index
+     *
+     *  @param person the person to remove - the same object that was added
+     */
+    public synchronized void remove(Person person)
+    {
+        int position = centroids.positionOf(person.getZip());
+        if (position < 0 || persons[position] == null)
+            return;
+        List<Person> atZip = persons[position];
+        for (int i = 0; i < atZip.size(); i ++)
+        {
+            if (atZip.get(i) == person)
+            {
+                atZip.remove(i);
+                count(position, -1);
+                return;
+            }
+        }
+    }
+
+    /** Remove every person from the index
+     */
+    public synchronized void clear()
+    {
+        Arrays.fill(persons, null);
+        Arrays.fill(counts, 0);
+    }
+
+    /** Get the number of persons at each ZIP that has any - for measuring
+     *  the index
+     *
+     *  @return the sizes of the lists of persons kept
+     */
+    synchronized List<Integer> getListSizes()
+    {
+        List<Integer> result = new ArrayList<Integer>();
+        for (List<Person> atZip : persons)
+            if (atZip != null)
+                result.add(atZip.size());
+        return result;
+    }
+
+    /** Find the persons within a given distance of a ZIP
+     *
+     *  @param zip the ZIP to measure from
+     *  @param miles the distance
+     *  @return the persons whose ZIPs' centres are within that distance of
+     *          the centre of zip, nearest first
+     *
+     *  @exception IllegalArgumentException if the location of zip is not known
+     */
+    public synchronized List<Person> withinRadius(String zip, double miles)
+    {
+        int from = centroids.requirePosition(zip);
+        List<Integer> found = new ArrayList<Integer>();
+        collect(0, counts.length, 0, from, ZipCentroids.toChordSquared(miles),
+                found);
+
+        final int origin = from;
+        Collections.sort(found, new Comparator<Integer>() {
+            public int compare(Integer position1, Integer position2)
+            {
+                return Double.compare(distanceSquared(origin, position1),
+                                      distanceSquared(origin, position2));
+            }
+        });
+        List<Person> result = new ArrayList<Person>();
+        for (int position : found)
+            result.addAll(persons[position]);
+        return result;
+    }
+
+    /** Find the persons nearest a ZIP
+     *
+     *  @param zip the ZIP to measure from
+     *  @param count the number of persons wanted
+     *  @return the count persons (or all, if there are fewer) whose ZIPs'
+     *          centres are nearest the centre of zip, nearest first.  Ties
+     *          at the last distance are broken arbitrarily
+     *
+     *  @exception IllegalArgumentException if the location of zip is not known
+     */
+    public synchronized List<Person> nearest(String zip, int count)
+    {
+        int from = centroids.requirePosition(zip);
+        List<Person> result = new ArrayList<Person>(Math.max(count, 0));
+
+        // Best first: subtrees are queued with a lower bound on the distance
+        // of their points, and points with their actual distance, so points
+        // come off the queue in order of distance
+        PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+        queue.add(new Candidate(0, 0, counts.length, 0, -1));
+        while (result.size() < count && ! queue.isEmpty())
+        {
+            Candidate candidate = queue.poll();
+            if (candidate.position >= 0)
+            {
+                for (Person person : persons[candidate.position])
+                {
+                    if (result.size() == count)
+                        break;
+                    result.add(person);
+                }
+                continue;
+            }
+
+            int low = candidate.low, high = candidate.high;
+            int middle = (low + high) >>> 1;
+            if (low >= high || counts[middle] == 0)
+                continue;
+            if (persons[middle] != null && ! persons[middle].isEmpty())
+                queue.add(new Candidate(distanceSquared(from, middle),
+                                        0, 0, 0, middle));
+            int axis = candidate.axis, next = (axis + 1) % 3;
+            double difference = centroids.coordinate(axis, from) -
+                                centroids.coordinate(axis, middle);
+            double farBound = Math.max(candidate.bound, difference * difference);
+            queue.add(new Candidate(difference < 0 ? candidate.bound : farBound,
+                                    low, middle, next, -1));
+            queue.add(new Candidate(difference < 0 ? farBound : candidate.bound,
+                                    middle + 1, high, next, -1));
+        }
+        return result;
+    }
+
+    /** Auxiliary to withinRadius - find the positions with persons in a
+     *  subtree that lie within a distance of a point
+     *
+     *  @param low the first position in the subtree
+     *  @param high one past the last position in the subtree
+     *  @param axis the axis the subtree is split on
+     *  @param from the position of the point
+     *  @param limit the square of the greatest chord distance wanted
+     *  @param found the list to add positions to
+     */
+    private void collect(int low, int high, int axis, int from, double limit,
+                         List<Integer> found)
+    {
+        if (low >= high)
+            return;
+        int middle = (low + high) >>> 1;
+        if (counts[middle] == 0)
+            return;
+        if (persons[middle] != null && ! persons[middle].isEmpty() &&
+            distanceSquared(from, middle) <= limit)
+            found.add(middle);
+
+        int next = (axis + 1) % 3;
+        double difference = centroids.coordinate(axis, from) -
+                            centroids.coordinate(axis, middle);
+        if (difference < 0 || difference * difference <= limit)
+            collect(low, middle, next, from, limit, found);
+        if (difference >= 0 || difference * difference <= limit)
+            collect(middle + 1, high, next, from, limit, found);
+    }
+
+    /** Auxiliary to add and remove - change the count of persons in every
+     *  subtree holding a position
+     */
+    private void count(int position, int change)
+    {
+        int low = 0, high = counts.length;
+        while (true)
+        {
+            int middle = (low + high) >>> 1;
+            counts[middle] += change;
+            if (position == middle)
+                return;
+            else if (position < middle)
+                high = middle;
+            else
+                low = middle + 1;
+        }
+    }
+
+    /** The square of the chord distance between the points at two positions
+     */
+    private double distanceSquared(int position1, int position2)
+    {
+        double result = 0;
+        for (int axis = 0; axis < 3; axis ++)
+        {
+            double difference = centroids.coordinate(axis, position1) -
+                                centroids.coordinate(axis, position2);
+            result += difference * difference;
+        }
+        return result;
+    }
+
+    /** An entry in the queue used by nearest() - either a subtree or a
+     *  single position
+     */
+    private static class Candidate implements Comparable<Candidate>
+    {
+        Candidate(double bound, int low, int high, int axis, int position)
+        {
+            this.bound = bound;
+            this.low = low;
+            this.high = high;
+            this.axis = axis;
+            this.position = position;
+        }
+
+        public int compareTo(Candidate other)
+        {
+            return Double.compare(bound, other.bound);
+        }
+
+        final double bound;             // no point in it is nearer than this
+        final int low, high, axis;      // for a subtree
+        final int position;             // for a position; -1 for a subtree
+    }
+
+    private ZipCentroids centroids;
+
+    // The persons at each position in the tree, and the number of persons in
+    // the subtree whose root is at each position
+
+    private List<Person> [] persons;
+    private int [] counts;
+}
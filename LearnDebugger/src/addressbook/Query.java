@@ -0,0 +1,385 @@
+/**
+ *  Query.java
+ *
+ */
+
+package addressbook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/** An object of this class is a structured query over the fields of the
+ *  persons in an address book - one or more conditions joined by AND, e.g.
+ *
+ *      state = "MA" AND zip STARTS WITH "019" AND city != "Wenham"
+ *
+ *  A condition is a field name (first, last, address, city, state, zip or
+ *  phone), an operator (=, !=, <, <=, >, >=, STARTS WITH or CONTAINS), and a
+ *  value in double quotes.  Field names and keywords are not case sensitive;
+ *  values are.
+ *
+ *  When a query is executed, the planner looks at every condition that an
+ *  index of the book can answer and drives the query from the one expected
+ *  to match the fewest persons; the remaining conditions are checked against
+ *  each candidate.  Only if no condition can use an index is the whole book
+ *  scanned.
+ */
+public class Query
+{
+    /** The operators that may appear in a condition
+     */
+    public enum Operator
+    {
+        EQUALS("="),
+        NOT_EQUALS("!="),
+        LESS("<"),
+        LESS_OR_EQUAL("<="),
+        GREATER(">"),
+        GREATER_OR_EQUAL(">="),
+        STARTS_WITH("STARTS WITH"),
+        CONTAINS("CONTAINS");
+
+        Operator(String symbol)
+        {
+            this.symbol = symbol;
+        }
+
+        /** Get the way this operator is written in a query
+         *
+         *  @return the operator's symbol
+         */
+        public String getSymbol()
+        {
+            return symbol;
+        }
+
+        private final String symbol;
+    }
+
+    /** A single condition on one field
+     */
+    public static class Condition
+    {
+        /** Constructor
+         *
+         *  @param field the field tested
+         *  @param operator the comparison to make
+         *  @param value the value to compare the field with
+         */
+        public Condition(PersonField field, Operator operator, String value)
+        {
+            this.field = field;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        /** Test a person against this condition
+         *
+         *  @param person the person to test
+         *  @return true if the person satisfies this condition
+         */
+        public boolean matches(Person person)
+        {
+            String actual = field.valueOf(person);
+            switch(operator)
+            {
+                case EQUALS:            return actual.equals(value);
+                case NOT_EQUALS:        return ! actual.equals(value);
+                case LESS:              return actual.compareTo(value) < 0;
+                case LESS_OR_EQUAL:     return actual.compareTo(value) <= 0;
+                case GREATER:           return actual.compareTo(value) > 0;
+                case GREATER_OR_EQUAL:  return actual.compareTo(value) >= 0;
+                case STARTS_WITH:       return actual.startsWith(value);
+                case CONTAINS:
+                default:                return actual.contains(value);
+            }
+        }
+
+        /** Accessor for the field tested
+         *
+         *  @return the field
+         */
+        public PersonField getField()
+        {
+            return field;
+        }
+
+        /** Accessor for the comparison made
+         *
+         *  @return the operator
+         */
+        public Operator getOperator()
+        {
+            return operator;
+        }
+
+        /** Accessor for the value compared with
+         *
+         *  @return the value
+         */
+        public String getValue()
+        {
+            return value;
+        }
+
+        /** Write this condition the way it would appear in a query
+         *
+         *  @return the text of the condition
+         */
+        public String toString()
+        {
+            return field.getName() + " " + operator.getSymbol() +
+                   " \"" + value + "\"";
+        }
+
+        private final PersonField field;
+        private final Operator operator;
+        private final String value;
+    }
+
+    /** Constructor
+     *
+     *  @param conditions the conditions, all of which must be satisfied
+     */
+    public Query(List<Condition> conditions)
+    {
+        this.conditions = new ArrayList<Condition>(conditions);
+    }
+
+    /** Parse the text of a query
+     *
+     *  @param text the query
+     *  @return the corresponding Query
+     *
+     *  @exception IllegalArgumentException if the text is not a valid query
+     */
+    public static Query parse(String text)
+    {
+        Tokenizer tokens = new Tokenizer(text);
+        List<Condition> conditions = new ArrayList<Condition>();
+        do
+        {
+            PersonField field = PersonField.forName(tokens.word());
+            Operator operator = parseOperator(tokens);
+            conditions.add(new Condition(field, operator, tokens.quoted()));
+        }
+        while (tokens.keyword("AND"));
+
+        if (! tokens.atEnd())
+            throw new IllegalArgumentException(
+                "Unexpected text in query at position " + tokens.position);
+        return new Query(conditions);
+    }
+
+    /** Get the conditions of this query
+     *
+     *  @return the conditions
+     */
+    public List<Condition> getConditions()
+    {
+        return Collections.unmodifiableList(conditions);
+    }
+
+    /** Test a person against this query
+     *
+     *  @param person the person to test
+     *  @return true if the person satisfies every condition
+     */
+    public boolean matches(Person person)
+    {
+        for (Condition condition : conditions)
+            if (! condition.matches(person))
+                return false;
+        return true;
+    }
+
+    /** Execute this query against an address book
+     *
+     *  @param addressBook the book to query
+     *  @return a cursor over the persons satisfying the query.  If an index
+     *          is used, they come in index order; otherwise in book order
+     */
+    public QueryCursor execute(AddressBook addressBook)
+    {
+        Plan plan = plan(addressBook.getIndexes());
+        if (plan.index == null)
+            return new QueryCursor(scan(addressBook), conditions);
+
+        List<Condition> remaining = new ArrayList<Condition>(conditions);
+        remaining.remove(plan.driver);
+        return new QueryCursor(plan.index.lookup(plan.driver), remaining);
+    }
+
+    /** Describe how this query would be executed against an address book
+     *
+     *  @param addressBook the book to query
+     *  @return a description of the plan
+     */
+    public String explain(AddressBook addressBook)
+    {
+        Plan plan = plan(addressBook.getIndexes());
+        if (plan.index == null)
+            return "scan, filter " + conditions;
+        else
+            return "index " + plan.index.getField().getName() + " for " +
+                   plan.driver + " (about " + plan.estimate + "), filter " +
+                   conditions;
+    }
+
+    /** Auxiliary to execute and explain - choose the condition and index
+     *  expected to produce the fewest candidates
+     *
+     *  @param indexes the indexes available
+     *  @return the chosen plan; its index is null if a scan is needed
+     */
+    private Plan plan(List<FieldIndex> indexes)
+    {
+        Plan best = new Plan();
+        for (Condition condition : conditions)
+            for (FieldIndex index : indexes)
+            {
+                if (index.getField() != condition.getField())
+                    continue;
+                int estimate = index.estimate(condition);
+                if (estimate >= 0 &&
+                    (best.index == null || estimate < best.estimate))
+                {
+                    best.index = index;
+                    best.driver = condition;
+                    best.estimate = estimate;
+                }
+            }
+        return best;
+    }
+
+    /** Auxiliary to execute - produce every person in a book, in order.  The
+     *  scan works on the snapshot current when it starts
+     */
+    private static Iterator<Person> scan(AddressBook addressBook)
+    {
+        return addressBook.snapshot().iterator();
+    }
+
+    /** Auxiliary to parse - read an operator
+     */
+    private static Operator parseOperator(Tokenizer tokens)
+    {
+        if (tokens.keyword("STARTS"))
+        {
+            if (! tokens.keyword("WITH"))
+                throw new IllegalArgumentException("Expected WITH after STARTS");
+            return Operator.STARTS_WITH;
+        }
+        if (tokens.keyword("CONTAINS"))
+            return Operator.CONTAINS;
+
+        String symbol = tokens.symbol();
+        for (Operator operator : Operator.values())
+            if (operator.getSymbol().equals(symbol))
+                return operator;
+        throw new IllegalArgumentException("Unknown operator: " + symbol);
+    }
+
+    /** The result of planning a query
+     */
+    private static class Plan
+    {
+        FieldIndex index;           // null if the book must be scanned
+        Condition driver;           // the condition the index answers
+        int estimate;
+    }
+
+    /** Splits the text of a query into words, symbols and quoted values
+     */
+    private static class Tokenizer
+    {
+        Tokenizer(String text)
+        {
+            this.text = text;
+            position = 0;
+        }
+
+        boolean atEnd()
+        {
+            skipSpace();
+            return position >= text.length();
+        }
+
+        /** Read a word made of letters */
+        String word()
+        {
+            skipSpace();
+            int start = position;
+            while (position < text.length() &&
+                   Character.isLetter(text.charAt(position)))
+                position ++;
+            if (start == position)
+                throw new IllegalArgumentException(
+                    "Expected a field name at position " + start);
+            return text.substring(start, position);
+        }
+
+        /** Read the given keyword if it comes next; otherwise read nothing */
+        boolean keyword(String keyword)
+        {
+            skipSpace();
+            int end = position + keyword.length();
+            if (text.regionMatches(true, position, keyword, 0, keyword.length()) &&
+                (end == text.length() || ! Character.isLetter(text.charAt(end))))
+            {
+                position = end;
+                return true;
+            }
+            return false;
+        }
+
+        /** Read a comparison symbol such as <= */
+        String symbol()
+        {
+            skipSpace();
+            int start = position;
+            while (position < text.length() &&
+                   "=!<>".indexOf(text.charAt(position)) >= 0)
+                position ++;
+            return text.substring(start, position);
+        }
+
+        /** Read a value in double quotes; \" and \\ are escapes */
+        String quoted()
+        {
+            skipSpace();
+            if (position >= text.length() || text.charAt(position) != '"')
+                throw new IllegalArgumentException(
+                    "Expected a quoted value at position " + position);
+            StringBuilder result = new StringBuilder();
+            position ++;
+            while (position < text.length() && text.charAt(position) != '"')
+            {
+                char c = text.charAt(position ++);
+                if (c == '\\' && position < text.length())
+                    c = text.charAt(position ++);
+                result.append(c);
+            }
+            if (position >= text.length())
+                throw new IllegalArgumentException("Unterminated value");
+            position ++;
+            return result.toString();
+        }
+
+        private void skipSpace()
+        {
+            while (position < text.length() &&
+                   Character.isWhitespace(text.charAt(position)))
+                position ++;
+        }
+
+        private final String text;
+        private int position;
+    }
+
+    // The conditions, all of which must be satisfied
+
+    private List<Condition> conditions;
+}
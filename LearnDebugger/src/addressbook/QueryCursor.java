@@ -0,0 +1,96 @@
+/**
+ *  QueryCursor.java
+ *
+ */
+
+package addressbook;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/** An object of this class walks through the results of a query.  Results
+ *  are found one at a time as they are asked for: the cursor draws
+ *  candidates from an index (or from the whole book) and passes on only
+ *  those that satisfy all of the query's conditions.
+ */
+public class QueryCursor implements Iterator<Person>
+{
+    /** Constructor
+     *
+     *  @param candidates the persons that may satisfy the query
+     *  @param conditions the conditions a candidate must satisfy
+     */
+    QueryCursor(Iterator<Person> candidates, List<Query.Condition> conditions)
+    {
+        this.candidates = candidates;
+        this.conditions = conditions;
+    }
+
+    /** Find out whether there are more results
+     *
+     *  @return true if next() will return another result
+     */
+    public boolean hasNext()
+    {
+        while (pending == null && candidates.hasNext())
+        {
+            Person candidate = candidates.next();
+            if (matchesAll(candidate))
+                pending = candidate;
+        }
+        return pending != null;
+    }
+
+    /** Get the next result
+     *
+     *  @return the next person satisfying the query
+     *
+     *  @exception NoSuchElementException if there are no more results
+     */
+    public Person next()
+    {
+        if (! hasNext())
+            throw new NoSuchElementException();
+        Person result = pending;
+        pending = null;
+        return result;
+    }
+
+    /** Get up to a given number of further results
+     *
+     *  @param count the most results to return
+     *  @return the next results - fewer than count only if there are no more
+     */
+    public List<Person> next(int count)
+    {
+        List<Person> result = new ArrayList<Person>();
+        while (result.size() < count && hasNext())
+            result.add(next());
+        return result;
+    }
+
+    /** Results cannot be removed through a cursor
+     *
+     *  @exception UnsupportedOperationException always
+     */
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /** Auxiliary to hasNext - test a candidate against every condition
+     */
+    private boolean matchesAll(Person candidate)
+    {
+        for (Query.Condition condition : conditions)
+            if (! condition.matches(candidate))
+                return false;
+        return true;
+    }
+
+    private Iterator<Person> candidates;
+    private List<Query.Condition> conditions;
+    private Person pending;         // Next result, if already found
+}
@@ -0,0 +1,206 @@
+/**
+ *  RegexCriterion.java
+ *
+ */
+
+package addressbook;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** An object of this class is a regular expression to be looked for in some
+ *  of the fields of a person - for example ^01[89] in the ZIP, or Ln$ in the
+ *  address.  A person matches if the expression is found anywhere in one of
+ *  those fields; ^ and $ match at the start and end of the field.
+ *
+ *  Expressions are compiled once and kept in a cache of the most recently
+ *  used, shared by every criterion, so that searching again for the same
+ *  expression does not compile it again.  Each thread that tests persons
+ *  against a criterion has a Matcher of its own, which is reused for every
+ *  field of every person, so testing creates no objects.
+ *
+ *  If the criterion looks at one field only, and the expression is anchored
+ *  at the start and begins with ordinary characters (as ^01[89] begins with
+ *  01), getIndexCondition() gives a condition those characters must meet,
+ *  so that an index on the field can pick out the candidates.
+ */
+public class RegexCriterion implements PersonFilter
+{
+    /** Constructor
+     *
+     *  @param regex the regular expression, as for java.util.regex.Pattern
+     *  @param flags the flags, as for Pattern.compile()
+     *  @param fields the fields to look in
+     *
+     *  @exception IllegalArgumentException if the expression is not valid
+     *             (a PatternSyntaxException) or no fields are given
+     */
+    public RegexCriterion(String regex, int flags, Collection<PersonField> fields)
+    {
+        if (fields.isEmpty())
+            throw new IllegalArgumentException("No fields to search");
+        pattern = compile(regex, flags);
+        this.fields = EnumSet.copyOf(fields).toArray(new PersonField[0]);
+        matchers = new ThreadLocal<Matcher>() {
+            protected Matcher initialValue()
+            {
+                return pattern.matcher("");
+            }
+        };
+    }
+
+    /** Constructor - look in one field, with no flags
+     *
+     *  @param regex the regular expression
+     *  @param field the field to look in
+     *
+     *  @exception IllegalArgumentException if the expression is not valid
+     */
+    public RegexCriterion(String regex, PersonField field)
+    {
+        this(regex, 0, EnumSet.of(field));
+    }
+
+    /** Get the compiled expression
+     *
+     *  @return the pattern
+     */
+    public Pattern getPattern()
+    {
+        return pattern;
+    }
+
+    /** Test a person against this criterion
+     *
+     *  @param person the person
+     *  @return true if the expression is found in one of the fields looked at
+     */
+    public boolean matches(Person person)
+    {
+        Matcher matcher = matchers.get();
+        for (PersonField field : fields)
+        {
+            String value = field.valueOf(person);
+            if (value != null && matcher.reset(value).find())
+                return true;
+        }
+        return false;
+    }
+
+    /** Get a condition that every person matching this criterion meets and
+     *  that an index may be able to answer
+     *
+     *  @return a condition on the one field looked at: equal to the
+     *          expression, if it is anchored at both ends and has no special
+     *          characters, or starting with the ordinary characters that
+     *          begin the expression, if it is anchored at the start.  null if
+     *          there is no such condition
+     */
+    public Query.Condition getIndexCondition()
+    {
+        if (fields.length != 1)
+            return null;
+        String prefix = literalPrefix(pattern);
+        if (prefix == null || prefix.isEmpty())
+            return null;
+        if (pattern.pattern().equals("^" + prefix + "$"))
+            return new Query.Condition(fields[0], Query.Operator.EQUALS, prefix);
+        else
+            return new Query.Condition(fields[0], Query.Operator.STARTS_WITH,
+                                       prefix);
+    }
+
+    public String toString()
+    {
+        return "/" + pattern.pattern() + "/ in " + Arrays.asList(fields);
+    }
+
+    /** Compile an expression, or get it from the cache if it was compiled
+     *  recently
+     *
+     *  @param regex the regular expression
+     *  @param flags the flags, as for Pattern.compile()
+     *  @return the compiled pattern
+     *
+     *  @exception IllegalArgumentException if the expression is not valid
+     */
+    public static Pattern compile(String regex, int flags)
+    {
+        String key = flags + "/" + regex;
+        synchronized(cache)
+        {
+            Pattern result = cache.get(key);
+            if (result != null)
+                return result;
+        }
+        Pattern result = Pattern.compile(regex, flags);
+        synchronized(cache)
+        {
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    /** Auxiliary to getIndexCondition - get the ordinary characters at the
+     *  start of an expression anchored at the start
+     *
+     *  @param pattern the pattern
+     *  @return the characters every match must begin with - possibly none -
+     *          or null if the pattern is not anchored, uses flags that
+     *          change what a character matches, or has alternatives
+     */
+    private static String literalPrefix(Pattern pattern)
+    {
+        String regex = pattern.pattern();
+        if (! regex.startsWith("^") || regex.indexOf('|') >= 0 ||
+            (pattern.flags() & (Pattern.CASE_INSENSITIVE | Pattern.COMMENTS |
+                                Pattern.LITERAL | Pattern.MULTILINE |
+                                Pattern.CANON_EQ)) != 0)
+            return null;
+
+        StringBuilder result = new StringBuilder();
+        for (int i = 1; i < regex.length(); i ++)
+        {
+            char c = regex.charAt(i);
+            if (SPECIAL.indexOf(c) >= 0)
+            {
+                // A character followed by a quantifier may be left out or
+                // repeated, so it is not part of the prefix
+                if (QUANTIFIERS.indexOf(c) >= 0 && result.length() > 0)
+                    result.setLength(result.length() - 1);
+                break;
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+
+    private final Pattern pattern;
+    private final PersonField [] fields;
+
+    // The Matcher each thread uses for this criterion
+
+    private final ThreadLocal<Matcher> matchers;
+
+    // The most recently used patterns, by flags and expression
+
+    private static final int CACHE_SIZE = 256;
+    private static final Map<String, Pattern> cache =
+        new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest)
+            {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+    // The characters that are not ordinary in an expression, and those of
+    // them that are quantifiers
+
+    private static final String SPECIAL = "\\.[]{}()*+?^$|";
+    private static final String QUANTIFIERS = "{*+?";
+}
@@ -0,0 +1,223 @@
+/**
+ *  ScalabilityCheck.java
+ *
+ */
+
+package addressbook;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** This program checks that the address book's operations keep up as books
+ *  grow.  It makes up books of increasing size with a BookGenerator, times
+ *  lookups, searches, sorting, saving and loading on each, and works out
+ *  from each pair of sizes how fast each time grows: as size^k, for the k
+ *  measured.  Lookups must grow sub-linearly, with k at most 0.5, and the
+ *  rest no worse than linearly, with k at most 1.2 - which allows for a
+ *  book that has grown too big for the processor's caches being somewhat
+ *  slower per person, but catches an operation that does n log n work
+ *  where it should do n, let alone one that is quadratic.  Sorting is
+ *  expected to take n log n time, so its times are divided by log n before
+ *  k is worked out, and the same limit applies.  It prints a table of the
+ *  results and exits with status 1 if any growth is too fast.
+ *
+ *      ScalabilityCheck [-format standard|compressed|lazy] [size ...]
+ *
+ *  The default sizes are 10000, 100000 and 1000000; a size of 10000000
+ *  needs a heap of several gigabytes (-Xmx6g).  Each operation is repeated
+ *  until it has run for a fraction of a second, and the fastest repetition
+ *  is used, so that small books are timed as reliably as large ones.
+ */
+public class ScalabilityCheck
+{
+    /** Run the check
+     *
+     *  @param args the command line - see the class description
+     *
+     *  @exception Exception if a book cannot be saved or loaded
+     */
+    public static void main(String [] args) throws Exception
+    {
+        FileSystem fileSystem = new FileSystem();
+        List<Integer> sizes = new ArrayList<Integer>();
+        try
+        {
+            for (int i = 0; i < args.length; i ++)
+            {
+                if (args[i].equals("-format") && i + 1 < args.length)
+                    fileSystem.setFormat(FileSystem.Format.valueOf(
+                        args[++ i].toUpperCase()));
+                else
+                    sizes.add(Integer.parseInt(args[i]));
+            }
+        }
+        catch(IllegalArgumentException e)
+        {
+            System.err.println("Usage: ScalabilityCheck " +
+                "[-format standard|compressed|lazy] [size ...]");
+            System.exit(1);
+        }
+        if (sizes.isEmpty())
+            for (int size : DEFAULT_SIZES)
+                sizes.add(size);
+
+        // Once at the smallest size first, so that the code being timed has
+        // been compiled
+        measure(sizes.get(0), fileSystem);
+
+        System.out.printf("%-8s %10s %14s %8s %8s%n",
+                          "", "size", "ms", "growth", "limit");
+        boolean passed = true;
+        double [] previous = null;
+        int previousSize = 0;
+        for (int size : sizes)
+        {
+            double [] times = measure(size, fileSystem);
+            for (int op = 0; op < OPERATIONS.length; op ++)
+            {
+                String growth = "", verdict = "";
+                if (previous != null)
+                {
+                    double ratio = times[op] / previous[op];
+                    if (N_LOG_N[op])
+                        ratio *= Math.log(previousSize) / Math.log(size);
+                    double k = Math.log(ratio) /
+                               Math.log((double) size / previousSize);
+                    boolean ok = k <= LIMITS[op];
+                    passed &= ok;
+                    growth = String.format("%8.2f", k);
+                    verdict = String.format("%8.2f%s", LIMITS[op],
+                                            ok ? "" : "  TOO FAST");
+                }
+                System.out.printf("%-8s %10d %14.3f %8s %s%n", OPERATIONS[op],
+                                  size, times[op], growth, verdict);
+            }
+            previous = times;
+            previousSize = size;
+        }
+        System.out.println(passed ? "Passed" : "Failed");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /** Time each operation on a book of a given size
+     *
+     *  @param size the number of persons
+     *  @param fileSystem the file system to save and load with
+     *  @return the time each operation took, in milliseconds, in the order
+     *          of OPERATIONS
+     *
+     *  @exception Exception if the book cannot be saved or loaded
+     */
+    private static double [] measure(int size, final FileSystem fileSystem)
+        throws Exception
+    {
+        final AddressBook book = new BookGenerator(size).generateBook(size);
+        // Each sort would otherwise keep the whole book's order for undoing,
+        // and the timings would include growing and collecting the history
+        book.setUndoDepth(0);
+        String [] names = book.getNames();
+        Random random = new Random(size);
+        final String [] wanted = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i ++)
+            wanted[i] = names[random.nextInt(names.length)];
+        names = null;
+
+        final File file = File.createTempFile("scalability", ".book");
+        try
+        {
+            double [] result = new double[OPERATIONS.length];
+            result[0] = time(new Task() {
+                public void run()
+                {
+                    for (String name : wanted)
+                        if (book.getPersonInformation(name) == null)
+                            throw new IllegalStateException("Lost " + name);
+                }
+            });
+            result[1] = time(new Task() {
+                public void run()
+                {
+                    // Nobody matches, so every person is looked at
+                    if (book.search("no such person", 0) != -1)
+                        throw new IllegalStateException("Found nobody");
+                }
+            });
+            result[2] = time(new Task() {
+                public void run()
+                {
+                    book.sortByZip();
+                    book.sortByName();
+                }
+            });
+            result[3] = time(new Task() {
+                public void run() throws Exception
+                {
+                    fileSystem.saveFile(book, file);
+                }
+            });
+            result[4] = time(new Task() {
+                public void run() throws Exception
+                {
+                    AddressBook loaded = fileSystem.readFile(file);
+                    if (loaded.size() != book.size())
+                        throw new IllegalStateException("Loaded " +
+                            loaded.size() + " persons, not " + book.size());
+                }
+            });
+            return result;
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    /** Time a task, repeating it until it has run for at least MIN_MILLIS
+     *
+     *  @param task the task
+     *  @return the shortest time it took, in milliseconds
+     *
+     *  @exception Exception if the task fails
+     */
+    private static double time(Task task) throws Exception
+    {
+        long best = Long.MAX_VALUE, total = 0;
+        for (int i = 0; i < MIN_REPETITIONS || total < MIN_MILLIS * 1000000L; i ++)
+        {
+            long start = System.nanoTime();
+            task.run();
+            long elapsed = System.nanoTime() - start;
+            best = Math.min(best, elapsed);
+            total += elapsed;
+        }
+        return best / 1e6;
+    }
+
+    /** Something to time
+     */
+    private interface Task
+    {
+        void run() throws Exception;
+    }
+
+    // The operations timed, the fastest each may grow with size, and which
+    // are expected to take n log n time - their growth is measured after
+    // dividing by log n
+
+    private static final String [] OPERATIONS = {
+        "lookup", "search", "sort", "save", "load"
+    };
+    private static final double [] LIMITS = {
+        0.5, 1.2, 1.2, 1.2, 1.2
+    };
+    private static final boolean [] N_LOG_N = {
+        false, false, true, false, false
+    };
+
+    private static final int [] DEFAULT_SIZES = { 10000, 100000, 1000000 };
+    private static final int LOOKUPS = 100000;
+    private static final int MIN_REPETITIONS = 3;
+    private static final long MIN_MILLIS = 500;
+}
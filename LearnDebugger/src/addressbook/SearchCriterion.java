@@ -0,0 +1,174 @@
+/**
+ *  SearchCriterion.java
+ *
+ */
+
+package addressbook;
+
+import java.text.Normalizer;
+
+/** An object of this class is the text of a search together with the
+ *  options saying how it is matched, prepared so that testing a person
+ *  against it does no more work than it must and creates no objects.
+ *
+ *  Accents are ignored by matching the text with its accents removed
+ *  against the same form of each field, which each Person works out once,
+ *  when it is made (see Person.getFolded()).  Case is ignored by comparing
+ *  characters without regard to case (String.regionMatches), which needs no
+ *  lower case copy of either.
+ */
+public class SearchCriterion implements PersonFilter
+{
+    /** Constructor
+     *
+     *  @param text the text to search for
+     *  @param options how to match it
+     */
+    public SearchCriterion(String text, SearchOptions options)
+    {
+        this.text = text;
+        this.options = options;
+        pattern = options.isIgnoreAccents() ? fold(text) : text;
+        fields = options.getFields().toArray(new PersonField[0]);
+    }
+
+    /** Get the text searched for
+     *
+     *  @return the text, as given
+     */
+    public String getText()
+    {
+        return text;
+    }
+
+    /** Get the options
+     *
+     *  @return how the text is matched
+     */
+    public SearchOptions getOptions()
+    {
+        return options;
+    }
+
+    /** Test a person against this criterion
+     *
+     *  @param person the person
+     *  @return true if the text matches in one of the fields looked at
+     */
+    public boolean matches(Person person)
+    {
+        for (PersonField field : fields)
+        {
+            String value = options.isIgnoreAccents()
+                ? person.getFolded(field)
+                : field.valueOf(person);
+            if (matches(value))
+                return true;
+        }
+        return false;
+    }
+
+    public String toString()
+    {
+        return "\"" + text + "\" (" + options + ")";
+    }
+
+    /** Remove the accents from the letters of a string, leaving case alone.
+     *  Letters that do not decompose into a letter and an accent, such as
+     *  "o" with a stroke, are replaced by the nearest unaccented letters
+     *
+     *  @param value the string - may be null
+     *  @return the string without accents - the string itself if it had none
+     */
+    public static String fold(String value)
+    {
+        if (value == null || isAscii(value))
+            return value;
+        String decomposed = Normalizer.normalize(value, Normalizer.Form.NFD);
+        StringBuilder result = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i ++)
+        {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK)
+                continue;
+            int special = SPECIAL_LETTERS.indexOf(c);
+            if (special >= 0)
+                result.append(SPECIAL_FOLDINGS[special]);
+            else
+                result.append(c);
+        }
+        return result.toString();
+    }
+
+    /** Auxiliary to matches - test one field's value
+     */
+    private boolean matches(String value)
+    {
+        if (value == null)
+            return false;
+        int length = pattern.length();
+        if (! options.isIgnoreCase())
+        {
+            for (int at = value.indexOf(pattern); at >= 0;
+                 at = value.indexOf(pattern, at + 1))
+            {
+                if (! options.isWholeWords() || isWord(value, at, length))
+                    return true;
+            }
+            return false;
+        }
+
+        int last = value.length() - length;
+        if (length == 0)
+            return last >= 0;
+        char first = pattern.charAt(0);
+        char upper = Character.toUpperCase(first);
+        char lower = Character.toLowerCase(first);
+        for (int at = 0; at <= last; at ++)
+        {
+            // Check the first character before the rest
+            char c = value.charAt(at);
+            if (c != first && c != upper && c != lower &&
+                Character.toLowerCase(c) != lower)
+                continue;
+            if (value.regionMatches(true, at, pattern, 0, length) &&
+                (! options.isWholeWords() || isWord(value, at, length)))
+                return true;
+        }
+        return false;
+    }
+
+    /** Auxiliary to matches - find out whether a match is a whole word
+     */
+    private static boolean isWord(String value, int start, int length)
+    {
+        int end = start + length;
+        return (start == 0 || ! Character.isLetterOrDigit(value.charAt(start - 1))) &&
+               (end == value.length() || ! Character.isLetterOrDigit(value.charAt(end)));
+    }
+
+    private static boolean isAscii(String value)
+    {
+        for (int i = 0; i < value.length(); i ++)
+            if (value.charAt(i) >= 0x80)
+                return false;
+        return true;
+    }
+
+    private final String text;
+    private final SearchOptions options;
+
+    // The text as it is compared with the fields, and the fields looked at
+
+    private final String pattern;
+    private final PersonField [] fields;
+
+    // Letters that have no accent to remove, and what they fold to
+
+    private static final String SPECIAL_LETTERS =
+        "\u00d8\u00f8\u0141\u0142\u0110\u0111" +   // O, L, D with strokes
+        "\u00c6\u00e6\u0152\u0153\u00df\u0131";    // AE, OE, sharp s, dotless i
+    private static final String [] SPECIAL_FOLDINGS = {
+        "O", "o", "L", "l", "D", "d", "AE", "ae", "OE", "oe", "ss", "i"
+    };
+}
@@ -0,0 +1,171 @@
+/**
+ *  SearchCursor.java
+ *
+ */
+
+package addressbook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/** An object of this class walks through the persons in an address book
+ *  that a filter picks out, remembering where it is by the snapshot it
+ *  walks rather than by a position in the book - so that adding, removing
+ *  or sorting persons between one result and the next neither skips a
+ *  person nor finds one twice.
+ *
+ *  The cursor goes through the persons in the order they had when it was
+ *  opened, from the position it was opened at.  Each person is checked
+ *  against the book as it is when the cursor reaches it:
+ *
+ *  - a person removed since the cursor was opened is skipped
+ *  - a person changed since then is tested, and returned, as changed
+ *  - a person added since then is not seen - open a new cursor to see it
+ *
+ *  A person is recognised as still in the book by identity, not by name,
+ *  so that persons who share a name are each found once.  A person no
+ *  longer in the book is looked for by name among the persons that were
+ *  not in the snapshot - the changed copies.  The first time that happens
+ *  the cursor makes a table of the snapshot's persons, in one pass.
+ *
+ *  Nothing is looked up while the book is unchanged, so a cursor costs no
+ *  more than a search; each call resumes where the last one stopped, so a
+ *  page of results costs only the persons looked at for that page.
+ */
+public class SearchCursor implements Iterator<Person>
+{
+    /** Constructor
+     *
+     *  @param addressBook the book searched
+     *  @param filter the filter that picks out the results
+     *  @param startingIndex the position in the book to start from - 0 if
+     *         less
+     */
+    SearchCursor(AddressBook addressBook, PersonFilter filter, int startingIndex)
+    {
+        this.addressBook = addressBook;
+        this.filter = filter;
+        snapshot = addressBook.snapshot();
+        candidates = snapshot.iterator(Math.max(startingIndex, 0));
+    }
+
+    /** Get the book searched
+     *
+     *  @return the book
+     */
+    public AddressBook getAddressBook()
+    {
+        return addressBook;
+    }
+
+    /** Get the filter that picks out the results
+     *
+     *  @return the filter
+     */
+    public PersonFilter getFilter()
+    {
+        return filter;
+    }
+
+    /** Find out whether there are more results
+     *
+     *  @return true if next() will return another result
+     */
+    public boolean hasNext()
+    {
+        while (pending == null && candidates.hasNext())
+        {
+            Person candidate = current(candidates.next());
+            if (candidate != null && filter.matches(candidate))
+                pending = candidate;
+        }
+        return pending != null;
+    }
+
+    /** Get the next result
+     *
+     *  @return the next person picked out by the filter, as the person is
+     *          in the book now
+     *
+     *  @exception NoSuchElementException if there are no more results
+     */
+    public Person next()
+    {
+        if (! hasNext())
+            throw new NoSuchElementException();
+        Person result = pending;
+        pending = null;
+        return result;
+    }
+
+    /** Get up to a given number of further results
+     *
+     *  @param count the most results to return
+     *  @return the next results - fewer than count only if there are no more
+     */
+    public List<Person> next(int count)
+    {
+        List<Person> result = new ArrayList<Person>();
+        while (result.size() < count && hasNext())
+            result.add(next());
+        return result;
+    }
+
+    /** Results cannot be removed through a cursor
+     *
+     *  @exception UnsupportedOperationException always
+     */
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /** Auxiliary to hasNext - get a person from the snapshot as the person
+     *  is in the book now
+     *
+     *  @param person the person, as in the snapshot
+     *  @return the person now, or null if the person has been removed
+     */
+    private Person current(Person person)
+    {
+        if (addressBook.snapshot() == snapshot || 
+            addressBook.containsPerson(person))
+            return person;
+
+        // Removed, or replaced by a changed copy: a person of the same name
+        // that was not in the snapshot, and not already taken as the copy
+        // of another person
+        for (Person named : addressBook.findPersons(person.getFullName()))
+        {
+            if (snapshotPersons == null)
+            {
+                snapshotPersons = Collections.newSetFromMap(
+                    new IdentityHashMap<Person, Boolean>(snapshot.size()));
+                for (Person inSnapshot : snapshot)
+                    snapshotPersons.add(inSnapshot);
+            }
+            if (! snapshotPersons.contains(named) && snapshotPersons.add(named))
+                return named;
+        }
+        return null;
+    }
+
+    private final AddressBook addressBook;
+    private final PersonFilter filter;
+
+    // The snapshot walked, and where the walk has reached
+
+    private final BookSnapshot snapshot;
+    private final Iterator<Person> candidates;
+    private Person pending;         // Next result, if already found
+
+    // The persons of the snapshot, and the changed copies already returned -
+    // made only when a person is found to be no longer in the book
+
+    private Set<Person> snapshotPersons;
+}
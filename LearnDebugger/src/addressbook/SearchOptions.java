@@ -0,0 +1,141 @@
+/**
+ *  SearchOptions.java
+ *
+ */
+
+package addressbook;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/** An object of this class says how the text of a search is to be matched
+ *  against the fields of a person: whether case and accents matter, whether
+ *  only whole words match, and which fields are looked at.  Options are
+ *  immutable; the with... methods return changed copies.
+ */
+public class SearchOptions
+{
+    /** Match exactly, in any field - the way Find has always worked */
+    public static final SearchOptions EXACT =
+        new SearchOptions(false, false, false, EnumSet.allOf(PersonField.class));
+
+    /** Constructor
+     *
+     *  @param ignoreCase true if upper and lower case letters match each other
+     *  @param ignoreAccents true if letters with diacritics match the same
+     *         letters without them - "Quebec" matches the city spelled with
+     *         an acute accent
+     *  @param wholeWords true if the text must match whole words - neither
+     *         preceded nor followed by a letter or digit
+     *  @param fields the fields to look at
+     *
+     *  @exception IllegalArgumentException if no fields are given
+     */
+    public SearchOptions(boolean ignoreCase,
+                         boolean ignoreAccents,
+                         boolean wholeWords,
+                         Collection<PersonField> fields)
+    {
+        if (fields.isEmpty())
+            throw new IllegalArgumentException("No fields to search");
+        this.ignoreCase = ignoreCase;
+        this.ignoreAccents = ignoreAccents;
+        this.wholeWords = wholeWords;
+        this.fields = Collections.unmodifiableSet(EnumSet.copyOf(fields));
+    }
+
+    /** Find out whether case is ignored
+     *
+     *  @return true if upper and lower case letters match each other
+     */
+    public boolean isIgnoreCase()
+    {
+        return ignoreCase;
+    }
+
+    /** Find out whether accents are ignored
+     *
+     *  @return true if letters with diacritics match the same letters
+     *          without them
+     */
+    public boolean isIgnoreAccents()
+    {
+        return ignoreAccents;
+    }
+
+    /** Find out whether only whole words match
+     *
+     *  @return true if the text must match whole words
+     */
+    public boolean isWholeWords()
+    {
+        return wholeWords;
+    }
+
+    /** Get the fields looked at
+     *
+     *  @return the fields
+     */
+    public Set<PersonField> getFields()
+    {
+        return fields;
+    }
+
+    /** Get a copy of these options with case ignored or not
+     *
+     *  @param ignoreCase true to ignore case
+     *  @return the options
+     */
+    public SearchOptions withIgnoreCase(boolean ignoreCase)
+    {
+        return new SearchOptions(ignoreCase, ignoreAccents, wholeWords, fields);
+    }
+
+    /** Get a copy of these options with accents ignored or not
+     *
+     *  @param ignoreAccents true to ignore accents
+     *  @return the options
+     */
+    public SearchOptions withIgnoreAccents(boolean ignoreAccents)
+    {
+        return new SearchOptions(ignoreCase, ignoreAccents, wholeWords, fields);
+    }
+
+    /** Get a copy of these options matching whole words or not
+     *
+     *  @param wholeWords true to match only whole words
+     *  @return the options
+     */
+    public SearchOptions withWholeWords(boolean wholeWords)
+    {
+        return new SearchOptions(ignoreCase, ignoreAccents, wholeWords, fields);
+    }
+
+    /** Get a copy of these options looking at other fields
+     *
+     *  @param fields the fields to look at
+     *  @return the options
+     *
+     *  @exception IllegalArgumentException if no fields are given
+     */
+    public SearchOptions withFields(Collection<PersonField> fields)
+    {
+        return new SearchOptions(ignoreCase, ignoreAccents, wholeWords, fields);
+    }
+
+    public String toString()
+    {
+        return (ignoreCase ? "ignore case, " : "") +
+               (ignoreAccents ? "ignore accents, " : "") +
+               (wholeWords ? "whole words, " : "") +
+               (fields.size() == PersonField.values().length
+                   ? "any field" : "fields " + fields);
+    }
+
+    private final boolean ignoreCase;
+    private final boolean ignoreAccents;
+    private final boolean wholeWords;
+    private final Set<PersonField> fields;
+}
@@ -0,0 +1,772 @@
+/**
+ *  ShardedAddressBook.java
+ *
+ */
+
+package addressbook;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+/** An object of this class maintains an address book that is partitioned
+ *  into shards by ZIP prefix (the 3-digit sectional center).  Each shard is
+ *  an ordinary AddressBook stored in its own file in a directory, read and
+ *  written through a FileSystem.  A shard is only read when something in it
+ *  is needed, and is dropped from memory again once it has been idle for a
+ *  while.  A small directory file records which shard each name lives in, so
+ *  that operations on a single person touch only that person's shard.
+ *
+ *  The order of the book as a whole is the order of the shards by prefix,
+ *  and within each shard the order of that shard.
+ *
+ *  A shard is pinned in memory while an operation is using it, so that
+ *  evicting idle shards - which any thread may do - never drops a shard
+ *  part way through a change to it.
+ *
+ *  Run as a program, it splits a book into shards, or looks at a book
+ *  already split:
+ *
+ *      ShardedAddressBook directory split file
+ *      ShardedAddressBook directory lookup name
+ *      ShardedAddressBook directory find text
+ *      ShardedAddressBook directory count
+ */
+public class ShardedAddressBook
+{
+    /** Constructor - open (or create) a sharded address book
+     *
+     *  @param fileSystem the object to use for reading and writing shards
+     *  @param directory the directory holding the shard files
+     *  @param idleMillis how long a shard may go unused before it is evicted
+     *
+     *  @exception IOException if there is a problem reading the directory file
+     *  @exception ClassNotFoundException if the directory file is corrupt
+     */
+    public ShardedAddressBook(FileSystem fileSystem,
+                              File directory,
+                              long idleMillis) throws IOException,
+                                                      ClassNotFoundException
+    {
+        this.fileSystem = fileSystem;
+        this.directory = directory;
+        this.idleMillis = idleMillis;
+        shards = new TreeMap<String, Shard>();
+        shardOfName = new HashMap<String, String>();
+
+        if (! directory.exists() && ! directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+
+        File directoryFile = new File(directory, DIRECTORY_FILE);
+        if (directoryFile.exists())
+            readDirectory(directoryFile);
+    }
+
+    /** Get the shard key for a ZIP code - its first three digits, or
+     *  OTHER_SHARD if it does not start with three digits
+     *
+     *  @param zip the ZIP code
+     *  @return the key of the shard that persons with this ZIP belong to
+     */
+    public static String shardKey(String zip)
+    {
+        if (zip != null && zip.length() >= PREFIX_LENGTH)
+        {
+            for (int i = 0; i < PREFIX_LENGTH; i ++)
+                if (! Character.isDigit(zip.charAt(i)))
+                    return OTHER_SHARD;
+            return zip.substring(0, PREFIX_LENGTH);
+        }
+        return OTHER_SHARD;
+    }
+
+    /** Provide a list of the the names of all the persons in the book.  The
+     *  shards are read in parallel.
+     *
+     *  @return an array of Strings, each representing the name of one person
+     *
+     *  @exception IOException if there is a problem reading a shard
+     *  @exception ClassNotFoundException if a shard file is corrupt
+     */
+    public String [] getNames() throws IOException, ClassNotFoundException
+    {
+        List<Callable<String []>> tasks = new ArrayList<Callable<String []>>();
+        for (final Shard shard : shardList())
+        {
+            tasks.add(new Callable<String []>() {
+                public String [] call() throws Exception
+                {
+                    try
+                    {
+                        return pin(shard).getNames();
+                    }
+                    finally
+                    {
+                        unpin(shard);
+                    }
+                }
+            });
+        }
+
+        List<String []> parts = fanOut(tasks);
+        int total = 0;
+        for (String [] part : parts)
+            total += part.length;
+        String [] result = new String[total];
+        int next = 0;
+        for (String [] part : parts)
+        {
+            System.arraycopy(part, 0, result, next, part.length);
+            next += part.length;
+        }
+        evictIdleShards();
+        return result;
+    }
+
+    /** Add a new Person to the book
+     *
+     *  @param firstName the person's first name
+     *  @param lastName the person's last name
+     *  @param address the person's address
+     *  @param city the person's city
+     *  @param state the person's state
+     *  @param zip the person's zip
+     *  @param phone the person's phone
+     *
+     *  @exception IllegalArgumentException if a person of that name exists
+     *  @exception IOException if there is a problem reading the shard
+     *  @exception ClassNotFoundException if the shard file is corrupt
+     */
+    public synchronized void addPerson(String firstName,
+                                       String lastName,
+                                       String address,
+                                       String city,
+                                       String state,
+                                       String zip,
+                                       String phone)
+        throws IOException, ClassNotFoundException
+    {
+        String name = Person.fullName(firstName, lastName);
+        if (shardOfName.containsKey(name))
+            throw new IllegalArgumentException(
+                "A person of that name is already in the list");
+
+        String key = shardKey(zip);
+        Shard shard = shardFor(key);
+        try
+        {
+            pin(shard).addPerson(firstName, lastName, address, city,
+                                 state, zip, phone);
+        }
+        finally
+        {
+            unpin(shard);
+        }
+        shardOfName.put(name, key);
+        shard.size ++;
+        directoryChanged = true;
+        evictIdleShards();
+    }
+
+    /** Provide current information about a person in the book.  Only the
+     *  shard holding the person is read.
+     *
+     *  @param name the desired name
+     *  @return an array of Strings, each containing one piece of stored
+     *          information about this person, or null if no such person exists
+     *
+     *  @exception IOException if there is a problem reading the shard
+     *  @exception ClassNotFoundException if the shard file is corrupt
+     */
+    public synchronized String [] getPersonInformation(String name)
+        throws IOException, ClassNotFoundException
+    {
+        String key = shardOfName.get(name);
+        if (key == null)
+            return null;
+        Shard shard = shardFor(key);
+        String [] result;
+        try
+        {
+            result = pin(shard).getPersonInformation(name);
+        }
+        finally
+        {
+            unpin(shard);
+        }
+        evictIdleShards();
+        return result;
+    }
+
+    /** Update stored information about a person.  If the new ZIP belongs
+     *  in a different shard, the person is moved to that shard.
+     *
+     *  @param name the name of the person (which cannot be updated)
+     *  @param address the person's new address
+     *  @param city the person's new city
+     *  @param state the person's new state
+     *  @param zip the person's new zip
+     *  @param phone the person's new phone
+     *
+     *  @exception IllegalArgumentException if the specified person does not exist
+     *  @exception IOException if there is a problem reading a shard
+     *  @exception ClassNotFoundException if a shard file is corrupt
+     */
+    public synchronized void updatePerson(String name,
+                                          String address,
+                                          String city,
+                                          String state,
+                                          String zip,
+                                          String phone)
+        throws IOException, ClassNotFoundException
+    {
+        String oldKey = shardOfName.get(name);
+        if (oldKey == null)
+            throw new IllegalArgumentException("No such person");
+
+        String newKey = shardKey(zip);
+        Shard oldShard = shardFor(oldKey);
+        try
+        {
+            AddressBook oldBook = pin(oldShard);
+            if (newKey.equals(oldKey))
+                oldBook.updatePerson(name, address, city, state, zip, phone);
+            else
+            {
+                Shard newShard = shardFor(newKey);
+                try
+                {
+                    Person person = oldBook.findPerson(name);
+                    pin(newShard).addPerson(person.getFirstName(),
+                        person.getLastName(), address, city, state, zip, phone);
+                }
+                finally
+                {
+                    unpin(newShard);
+                }
+                oldBook.removePerson(name);
+                shardOfName.put(name, newKey);
+                oldShard.size --;
+                newShard.size ++;
+                directoryChanged = true;
+            }
+        }
+        finally
+        {
+            unpin(oldShard);
+        }
+        evictIdleShards();
+    }
+
+    /** Remove a specific person from the book
+     *
+     *  @param name the desired name
+     *
+     *  @exception IllegalArgumentException if the specified person does not exist
+     *  @exception IOException if there is a problem reading the shard
+     *  @exception ClassNotFoundException if the shard file is corrupt
+     */
+    public synchronized void removePerson(String name)
+        throws IOException, ClassNotFoundException
+    {
+        String key = shardOfName.get(name);
+        if (key == null)
+            throw new IllegalArgumentException("No such person");
+        Shard shard = shardFor(key);
+        try
+        {
+            pin(shard).removePerson(name);
+        }
+        finally
+        {
+            unpin(shard);
+        }
+        shardOfName.remove(name);
+        shard.size --;
+        directoryChanged = true;
+        evictIdleShards();
+    }
+
+    /** Search the book for a person matching given criteria.  Shards
+     *  wholly before startingIndex are not read, since the directory of
+     *  names gives the size of each; the rest are read and searched in
+     *  groups of one per processor, in parallel, until a group finds a
+     *  match.  The earliest match in book order wins.
+     *
+     *  @param criterion the criterion for the search
+     *  @param startingIndex the position in the whole book to start from
+     *  @return the position in the whole book of the first person at or after
+     *          startingIndex which has a field that contains the criterion,
+     *          or -1 if there is no such person
+     *
+     *  @exception IOException if there is a problem reading a shard
+     *  @exception ClassNotFoundException if a shard file is corrupt
+     */
+    public int search(final String criterion, int startingIndex)
+        throws IOException, ClassNotFoundException
+    {
+        // The sizes change with the directory, so they are copied under the
+        // same lock, and the searches use the copy
+        List<Shard> shardList;
+        int [] sizes;
+        synchronized(this)
+        {
+            shardList = shardList();
+            sizes = new int[shardList.size()];
+            for (int i = 0; i < sizes.length; i ++)
+                sizes[i] = shardList.get(i).size;
+        }
+        int first = 0, offset = 0;
+        while (first < sizes.length && offset + sizes[first] <= startingIndex)
+            offset += sizes[first ++];
+
+        int groupSize = Runtime.getRuntime().availableProcessors();
+        try
+        {
+            while (first < shardList.size())
+            {
+                int end = Math.min(shardList.size(), first + groupSize);
+                List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+                int [] offsets = new int[end - first];
+                for (int i = first; i < end; i ++)
+                {
+                    final Shard shard = shardList.get(i);
+                    final int start = Math.max(0, startingIndex - offset);
+                    offsets[i - first] = offset;
+                    offset += sizes[i];
+                    tasks.add(new Callable<Integer>() {
+                        public Integer call() throws Exception
+                        {
+                            try
+                            {
+                                return pin(shard).search(criterion, start);
+                            }
+                            finally
+                            {
+                                unpin(shard);
+                            }
+                        }
+                    });
+                }
+
+                List<Integer> found = fanOut(tasks);
+                for (int i = 0; i < found.size(); i ++)
+                    if (found.get(i) >= 0)
+                        return offsets[i] + found.get(i);
+                first = end;
+            }
+            return -1;
+        }
+        finally
+        {
+            evictIdleShards();
+        }
+    }
+
+    /** Get the number of persons in the book, from the directory of names,
+     *  without reading any shard
+     *
+     *  @return the number of persons
+     */
+    public synchronized int size()
+    {
+        return shardOfName.size();
+    }
+
+    /** Get the number of shards
+     *
+     *  @return the number of shards, whether in memory or not
+     */
+    public int getShardCount()
+    {
+        return shardList().size();
+    }
+
+    /** Split an address book into shards, replacing any sharded book in a
+     *  directory
+     *
+     *  @param addressBook the book to split
+     *  @param fileSystem the object to use for writing the shards
+     *  @param directory the directory to hold the shard files
+     *  @param idleMillis how long a shard may go unused before it is evicted
+     *  @return the sharded book, saved
+     *
+     *  @exception IOException if there is a problem writing a file
+     *  @exception ClassNotFoundException if a sharded book already in the
+     *             directory is corrupt
+     */
+    public static ShardedAddressBook split(AddressBook addressBook,
+                                           FileSystem fileSystem,
+                                           File directory,
+                                           long idleMillis)
+        throws IOException, ClassNotFoundException
+    {
+        ShardedAddressBook result =
+            new ShardedAddressBook(fileSystem, directory, idleMillis);
+        synchronized(result)
+        {
+            for (Shard shard : result.shardList())
+                shard.file.delete();
+            result.shards.clear();
+            result.shardOfName.clear();
+
+            Map<String, List<Person>> parts = new TreeMap<String, List<Person>>();
+            for (Person person : addressBook.snapshot())
+            {
+                String key = shardKey(person.getZip());
+                List<Person> part = parts.get(key);
+                if (part == null)
+                {
+                    part = new ArrayList<Person>();
+                    parts.put(key, part);
+                }
+                part.add(person);
+                result.shardOfName.put(person.getFullName(), key);
+            }
+            for (Map.Entry<String, List<Person>> part : parts.entrySet())
+            {
+                Shard shard = result.shardFor(part.getKey());
+                AddressBook book = new AddressBook();
+                book.appendPersons(part.getValue());
+                fileSystem.saveFile(book, shard.file);
+                shard.size = part.getValue().size();
+            }
+            result.directoryChanged = true;
+            result.save();
+        }
+        return result;
+    }
+
+    /** Split a book into shards, or look at a book already split - see the
+     *  class description
+     *
+     *  @param args the command line
+     *
+     *  @exception Exception if a file cannot be read or written
+     */
+    public static void main(String [] args) throws Exception
+    {
+        if (args.length < 2 || 
+            (! args[1].equals("count") && args.length != 3))
+        {
+            System.err.println("Usage: ShardedAddressBook directory " +
+                "split file | lookup name | find text | count");
+            System.exit(1);
+        }
+        FileSystem fileSystem = new FileSystem();
+        File directory = new File(args[0]);
+        ShardedAddressBook book;
+        if (args[1].equals("split"))
+        {
+            book = split(fileSystem.readFile(new File(args[2])), fileSystem,
+                         directory, DEFAULT_IDLE_MILLIS);
+            System.out.println(book.size() + " persons in " + 
+                               book.getShardCount() + " shards");
+        }
+        else
+        {
+            book = new ShardedAddressBook(fileSystem, directory, 
+                                          DEFAULT_IDLE_MILLIS);
+            if (args[1].equals("lookup"))
+            {
+                String [] information = book.getPersonInformation(args[2]);
+                System.out.println(information == null 
+                    ? "No such person" : Arrays.asList(information).toString());
+            }
+            else if (args[1].equals("find"))
+                System.out.println(book.search(args[2], 0));
+            else
+                System.out.println(book.size() + " persons in " + 
+                                   book.getShardCount() + " shards");
+        }
+        System.out.println(book.getLoadedShardCount() + " shards read");
+    }
+
+    /** Save every shard that has changed since it was read, plus the
+     *  directory of names if it has changed
+     *
+     *  @exception IOException if there is a problem writing a file
+     */
+    public synchronized void save() throws IOException
+    {
+        for (Shard shard : shardList())
+        {
+            synchronized(shard)
+            {
+                if (shard.book != null && shard.book.getChangedSinceSaved())
+                    fileSystem.saveFile(shard.book, shard.file);
+            }
+        }
+        if (directoryChanged)
+            writeDirectory(new File(directory, DIRECTORY_FILE));
+    }
+
+    /** Drop shards that have not been used for the idle interval from memory.
+     *  A shard with unsaved changes is saved first - if the directory of
+     *  names has changed too, the whole book is saved, so that the files on
+     *  disk always agree with each other; if that fails the shard is kept.  A shard pinned by an
+     *  operation in progress is always kept.
+     */
+    public synchronized void evictIdleShards()
+    {
+        long now = System.currentTimeMillis();
+        for (Shard shard : shardList())
+        {
+            synchronized(shard)
+            {
+                if (shard.book == null || shard.pins > 0 ||
+                    now - shard.lastUsed < idleMillis)
+                    continue;
+                try
+                {
+                    // A changed directory may name persons in other changed
+                    // shards too, so they all go with it
+                    if (shard.book.getChangedSinceSaved() && directoryChanged)
+                        save();
+                    else if (shard.book.getChangedSinceSaved())
+                        fileSystem.saveFile(shard.book, shard.file);
+                    shard.book = null;
+                }
+                catch(IOException e)
+                {
+                    // Keep the shard in memory - the changes are not lost
+                }
+            }
+        }
+    }
+
+    /** Find out how many shards are currently held in memory
+     *
+     *  @return the number of shards currently loaded
+     */
+    public int getLoadedShardCount()
+    {
+        int count = 0;
+        for (Shard shard : shardList())
+            synchronized(shard)
+            {
+                if (shard.book != null)
+                    count ++;
+            }
+        return count;
+    }
+
+    /** Get the directory this book is stored in
+     *
+     *  @return the directory holding the shard files
+     */
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /** Auxiliary to various methods - get the shard for a key, creating an
+     *  (empty, unloaded) entry for it if there is none yet
+     *
+     *  @param key the shard key
+     *  @return the shard
+     */
+    private Shard shardFor(String key)
+    {
+        synchronized(shards)
+        {
+            Shard shard = shards.get(key);
+            if (shard == null)
+            {
+                shard = new Shard(new File(directory, key + SHARD_SUFFIX));
+                shards.put(key, shard);
+            }
+            return shard;
+        }
+    }
+
+    /** Auxiliary to various methods - get the shards in book order
+     *
+     *  @return a list of all the shards, ordered by key
+     */
+    private List<Shard> shardList()
+    {
+        synchronized(shards)
+        {
+            return new ArrayList<Shard>(shards.values());
+        }
+    }
+
+    /** Auxiliary to various methods - make sure a shard is in memory, and
+     *  keep it there until unpin() is called
+     *
+     *  @param shard the shard
+     *  @return the address book holding the shard's persons
+     *
+     *  @exception IOException if there is a problem reading the shard
+     *  @exception ClassNotFoundException if the shard file is corrupt
+     */
+    private AddressBook pin(Shard shard) throws IOException,
+                                                ClassNotFoundException
+    {
+        synchronized(shard)
+        {
+            // Counted first, so that unpin() in a finally block balances it
+            // even if the shard cannot be read
+            shard.pins ++;
+            if (shard.book == null)
+            {
+                if (shard.file.exists())
+                    shard.book = fileSystem.readFile(shard.file);
+                else
+                {
+                    shard.book = new AddressBook();
+                    shard.book.setFile(shard.file);
+                }
+            }
+            shard.lastUsed = System.currentTimeMillis();
+            return shard.book;
+        }
+    }
+
+    /** Auxiliary to various methods - let a shard be evicted again once it
+     *  is idle
+     *
+     *  @param shard the shard, pinned by pin()
+     */
+    private void unpin(Shard shard)
+    {
+        synchronized(shard)
+        {
+            shard.pins --;
+            shard.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /** Auxiliary to various methods - run tasks in parallel, passing on any
+     *  exception thrown by one of them
+     *
+     *  @param tasks the tasks to run
+     *  @return the results of the tasks, in task order
+     *
+     *  @exception IOException if a task failed reading a shard
+     *  @exception ClassNotFoundException if a task found a shard file corrupt
+     */
+    private static <T> List<T> fanOut(List<Callable<T>> tasks)
+        throws IOException, ClassNotFoundException
+    {
+        try
+        {
+            return BookExecutors.invokeAll(tasks);
+        }
+        catch(IOException e)
+        {
+            throw e;
+        }
+        catch(ClassNotFoundException e)
+        {
+            throw e;
+        }
+        catch(RuntimeException e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    /** Read the directory of names
+     *
+     *  @param file the directory file
+     */
+    @SuppressWarnings("unchecked")
+    private void readDirectory(File file) throws IOException,
+                                                 ClassNotFoundException
+    {
+        ObjectInputStream stream =
+            new ObjectInputStream(new FileInputStream(file));
+        try
+        {
+            shardOfName = (HashMap<String, String>) stream.readObject();
+        }
+        finally
+        {
+            stream.close();
+        }
+        for (String key : shardOfName.values())
+            shardFor(key).size ++;
+        directoryChanged = false;
+    }
+
+    /** Write the directory of names.  As with FileSystem.saveFile(), it is
+     *  written to a new file which then replaces the old one, so that a
+     *  failure part way through leaves the old directory as it was
+     *
+     *  @param file the directory file
+     */
+    private void writeDirectory(File file) throws IOException
+    {
+        File temporary = File.createTempFile("shards", ".tmp", directory);
+        try
+        {
+            ObjectOutputStream stream =
+                new ObjectOutputStream(new FileOutputStream(temporary));
+            try
+            {
+                stream.writeObject(shardOfName);
+            }
+            finally
+            {
+                stream.close();
+            }
+            Files.move(temporary.toPath(), file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            temporary.delete();
+        }
+        directoryChanged = false;
+    }
+
+    /** Information kept about one shard
+     */
+    private static class Shard
+    {
+        Shard(File file)
+        {
+            this.file = file;
+        }
+
+        final File file;
+        AddressBook book;       // null when not in memory
+        long lastUsed;
+        int pins;               // Operations using the shard now
+        int size;               // Persons in the shard, from the directory
+    }
+
+    // Shard files are named by key, with this suffix, and the directory of
+    // names is stored alongside them
+
+    private static final int PREFIX_LENGTH = 3;
+    public static final String OTHER_SHARD = "other";
+    private static final String SHARD_SUFFIX = ".book";
+    private static final String DIRECTORY_FILE = "shards.dir";
+    static final long DEFAULT_IDLE_MILLIS = 60000;
+
+    // The interface to the file system, and where the shards live
+
+    private FileSystem fileSystem;
+    private File directory;
+    private long idleMillis;
+
+    // The shards, in key order, and the shard key of every name
+
+    private TreeMap<String, Shard> shards;
+    private HashMap<String, String> shardOfName;
+    private boolean directoryChanged;
+}
@@ -0,0 +1,217 @@
+/**
+ *  SortedFieldIndex.java
+ *
+ */
+
+package addressbook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+/** An index that keeps the values of one field in sorted order, so that
+ *  besides equality it can answer prefix and range conditions.  A lookup
+ *  takes O(log n) to find the first value in range, plus time proportional
+ *  to the number of persons found.
+ *
+ *  A prefix or range lookup does not copy the whole range at once: it
+ *  copies the persons of a few values at a time, as they are reached, so a
+ *  reader that stops early pays only for what it has read, and the index
+ *  is locked only briefly.  Changes made meanwhile to values not yet
+ *  reached are seen; a reader that wants one consistent answer holds the
+ *  book's lock while it reads, as the book itself does.
+ */
+public class SortedFieldIndex extends HashFieldIndex
+{
+    /** Constructor
+     *
+     *  @param field the field to index
+     */
+    public SortedFieldIndex(PersonField field)
+    {
+        super(field, new TreeMap<String, Set<Person>>());
+    }
+
+    /** Find the persons whose value in this index's field lies in a range
+     *
+     *  @param low the lowest value wanted, or null for no lower limit
+     *  @param lowInclusive true if low itself is wanted
+     *  @param high the highest value wanted, or null for no upper limit
+     *  @param highInclusive true if high itself is wanted
+     *  @return the persons in range, in order of field value
+     */
+    public synchronized List<Person> getRange(String low,
+                                              boolean lowInclusive,
+                                              String high,
+                                              boolean highInclusive)
+    {
+        List<Person> result = new ArrayList<Person>();
+        for (Set<Person> persons :
+                 range(low, lowInclusive, high, highInclusive).values())
+            result.addAll(persons);
+        return result;
+    }
+
+    /** Find the persons whose value in this index's field starts with a
+     *  given prefix
+     *
+     *  @param prefix the prefix
+     *  @return the persons found, in order of field value
+     */
+    public List<Person> getPrefix(String prefix)
+    {
+        return getRange(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    /** Estimate how many persons satisfy a condition.  Equality is exact;
+     *  for a prefix or range, persons are counted only as far as
+     *  ESTIMATE_LIMIT values, beyond which the range is taken to be large
+     *
+     *  @param condition the condition
+     *  @return an estimate of the number of matching persons, or -1 if the
+     *          condition cannot be answered from this index
+     */
+    public synchronized int estimate(Query.Condition condition)
+    {
+        NavigableMap<String, Set<Person>> range = rangeFor(condition);
+        if (range == null)
+            return super.estimate(condition);
+
+        int count = 0, values = 0;
+        for (Set<Person> persons : range.values())
+        {
+            if (++ values > ESTIMATE_LIMIT)
+                return Integer.MAX_VALUE / 2;
+            count += persons.size();
+        }
+        return count;
+    }
+
+    /** Find the persons satisfying a condition
+     *
+     *  @param condition the condition
+     *  @return the persons satisfying the condition, in order of field value
+     *          - for a prefix or range, read from the index as they are
+     *          wanted
+     */
+    public Iterator<Person> lookup(Query.Condition condition)
+    {
+        if (rangeFor(condition) == null)
+            return super.lookup(condition);
+        return new RangeIterator(condition);
+    }
+
+    /** Auxiliary to estimate and lookup - the part of the index covered by a
+     *  prefix or range condition
+     *
+     *  @return the values in range, or null if the condition is not a
+     *          prefix or range condition
+     */
+    private NavigableMap<String, Set<Person>> rangeFor(Query.Condition condition)
+    {
+        String value = condition.getValue();
+        switch(condition.getOperator())
+        {
+            case STARTS_WITH:
+                return range(value, true, value + Character.MAX_VALUE, false);
+            case LESS:
+                return range(null, false, value, false);
+            case LESS_OR_EQUAL:
+                return range(null, false, value, true);
+            case GREATER:
+                return range(value, false, null, false);
+            case GREATER_OR_EQUAL:
+                return range(value, true, null, false);
+            default:
+                return null;
+        }
+    }
+
+    /** Auxiliary to various methods - a view of the values in a range
+     */
+    private NavigableMap<String, Set<Person>> range(String low,
+                                                    boolean lowInclusive,
+                                                    String high,
+                                                    boolean highInclusive)
+    {
+        NavigableMap<String, Set<Person>> result =
+            (NavigableMap<String, Set<Person>>) entries;
+        if (low != null)
+            result = result.tailMap(low, lowInclusive);
+        if (high != null)
+            result = result.headMap(high, highInclusive);
+        return result;
+    }
+
+    /** The persons in a prefix or range, copied from the index a batch at a
+     *  time.  Each batch holds the persons of whole values, and the next
+     *  batch starts after the last value copied
+     */
+    private class RangeIterator implements Iterator<Person>
+    {
+        RangeIterator(Query.Condition condition)
+        {
+            this.condition = condition;
+        }
+
+        public boolean hasNext()
+        {
+            while (! batch.hasNext() && ! finished)
+                nextBatch();
+            return batch.hasNext();
+        }
+
+        public Person next()
+        {
+            if (! hasNext())
+                throw new NoSuchElementException();
+            return batch.next();
+        }
+
+        /** Auxiliary to hasNext - copy the persons of the next values, at
+         *  least BATCH_SIZE of them unless the range ends first
+         */
+        private void nextBatch()
+        {
+            List<Person> persons = new ArrayList<Person>();
+            synchronized(SortedFieldIndex.this)
+            {
+                NavigableMap<String, Set<Person>> range = rangeFor(condition);
+                if (reached != null)
+                    range = range.tailMap(reached, false);
+                finished = true;
+                for (Map.Entry<String, Set<Person>> entry : range.entrySet())
+                {
+                    persons.addAll(entry.getValue());
+                    reached = entry.getKey();
+                    if (persons.size() >= BATCH_SIZE)
+                    {
+                        finished = false;
+                        break;
+                    }
+                }
+            }
+            batch = persons.iterator();
+        }
+
+        private final Query.Condition condition;
+        private Iterator<Person> batch =
+            Collections.<Person>emptyList().iterator();
+        private String reached;         // the last value copied, if any
+        private boolean finished;       // the last value has been copied
+    }
+
+    // How many persons a lookup copies from the index at a time
+
+    private static final int BATCH_SIZE = 256;
+
+    // How many distinct values estimate() examines before giving up
+
+    private static final int ESTIMATE_LIMIT = 256;
+}
@@ -0,0 +1,92 @@
+/**
+ *  StringPool.java
+ *
+ */
+
+package addressbook;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/** This class keeps one canonical copy of each field value seen, so that
+ *  the many persons sharing a city, state or ZIP also share the String
+ *  holding it, instead of each keeping its own equal copy.  Only fields
+ *  with few distinct values should be pooled: for a value nearly every
+ *  person has a copy of its own, such as an address or phone number, the
+ *  pool's entry would cost more than sharing saves.
+ *
+ *  Values are held weakly, so once no person uses a value - because the
+ *  books holding it have been closed or forgotten - it is dropped from the
+ *  pool.  The pool is split into stripes, each with its own lock, so that
+ *  threads reading books in parallel seldom wait for each other.
+ */
+public class StringPool
+{
+    /** Get the canonical copy of a value
+     *
+     *  @param value the value - may be null
+     *  @return a String equal to value - the same object for every equal
+     *          value in use - or null if value is null
+     */
+    public static String canonical(String value)
+    {
+        if (value == null)
+            return null;
+        Map<String, WeakReference<String>> stripe = stripeFor(value);
+        synchronized(stripe)
+        {
+            WeakReference<String> reference = stripe.get(value);
+            String result = reference == null ? null : reference.get();
+            if (result != null)
+                return result;
+            stripe.put(value, new WeakReference<String>(value));
+            return value;
+        }
+    }
+
+    /** Get the number of values in the pool
+     *
+     *  @return the number of distinct values held - including any no
+     *          longer in use that have not yet been dropped
+     */
+    public static int size()
+    {
+        int result = 0;
+        for (Map<String, WeakReference<String>> stripe : stripes)
+            synchronized(stripe)
+            {
+                result += stripe.size();
+            }
+        return result;
+    }
+
+    /** Get the number of stripes the pool is split into
+     *
+     *  @return the number of stripes
+     */
+    static int getStripeCount()
+    {
+        return stripes.length;
+    }
+
+    /** Auxiliary to canonical - the stripe holding a value
+     */
+    private static Map<String, WeakReference<String>> stripeFor(String value)
+    {
+        int hash = value.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    // The stripes - a power of two of them
+
+    private static final int STRIPES = 16;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Map<String, WeakReference<String>> [] stripes =
+        new Map[STRIPES];
+    static
+    {
+        for (int i = 0; i < STRIPES; i ++)
+            stripes[i] = new WeakHashMap<String, WeakReference<String>>();
+    }
+}
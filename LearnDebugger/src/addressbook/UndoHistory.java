@@ -0,0 +1,170 @@
+/**
+ *  UndoHistory.java
+ *
+ */
+
+package addressbook;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/** An object of this class records the changes made to an address book so
+ *  that they can be undone and redone.  For each change it keeps the list of
+ *  persons from before and after the change; since these are persistent
+ *  lists, they share almost all of their structure, and a step costs
+ *  O(log n) memory rather than a copy of the book.  It also keeps the persons
+ *  that the change took out of the book and those it put in, so that the
+ *  book's indexes can be brought up to date without rebuilding.
+ *
+ *  At most a fixed number of changes are remembered; the oldest is forgotten
+ *  when another is recorded.
+ */
+public class UndoHistory
+{
+    /** A single change to an address book
+     */
+    public static class Step
+    {
+        Step(PersistentList<Person> before,
+             PersistentList<Person> after,
+             List<Person> removed,
+             int [] removedAt,
+             List<Person> added,
+             int [] addedAt,
+             String order)
+        {
+            this.before = before;
+            this.after = after;
+            this.removed = removed;
+            this.removedAt = removedAt;
+            this.added = added;
+            this.addedAt = addedAt;
+            this.order = order;
+        }
+
+        final PersistentList<Person> before, after;
+        final List<Person> removed;     // taken out of the book
+        final int [] removedAt;         // where each was, in before
+        final List<Person> added;       // put into the book
+        final int [] addedAt;           // where each is, in after
+        final String order;             // for a sort, the field sorted on
+    }
+
+    /** Constructor
+     *
+     *  @param depth the greatest number of changes to remember
+     */
+    public UndoHistory(int depth)
+    {
+        undoSteps = new ArrayDeque<Step>();
+        redoSteps = new ArrayDeque<Step>();
+        setDepth(depth);
+    }
+
+    /** Change the number of changes remembered, forgetting the oldest if
+     *  there are now too many
+     *
+     *  @param depth the greatest number of changes to remember
+     */
+    public void setDepth(int depth)
+    {
+        if (depth < 0)
+            throw new IllegalArgumentException("Negative undo depth");
+        this.depth = depth;
+        while (undoSteps.size() > depth)
+            undoSteps.removeLast();
+        while (redoSteps.size() > depth)
+            redoSteps.removeLast();
+    }
+
+    /** Record a change that has just been made.  This makes any changes
+     *  that had been undone impossible to redo
+     *
+     *  @param step the change
+     */
+    public void record(Step step)
+    {
+        redoSteps.clear();
+        if (depth == 0)
+            return;
+        if (undoSteps.size() == depth)
+            undoSteps.removeLast();
+        undoSteps.push(step);
+    }
+
+    /** Find out whether there is a change to undo
+     *
+     *  @return true if undo() will return a change
+     */
+    public boolean canUndo()
+    {
+        return ! undoSteps.isEmpty();
+    }
+
+    /** Find out whether there is a change to redo
+     *
+     *  @return true if redo() will return a change
+     */
+    public boolean canRedo()
+    {
+        return ! redoSteps.isEmpty();
+    }
+
+    /** Take the most recent change for undoing
+     *
+     *  @return the change, which can then be redone
+     *
+     *  @exception IllegalStateException if there is nothing to undo
+     */
+    public Step undo()
+    {
+        if (undoSteps.isEmpty())
+            throw new IllegalStateException("Nothing to undo");
+        Step step = undoSteps.pop();
+        redoSteps.push(step);
+        return step;
+    }
+
+    /** Take the most recently undone change for redoing
+     *
+     *  @return the change, which can then be undone again
+     *
+     *  @exception IllegalStateException if there is nothing to redo
+     */
+    public Step redo()
+    {
+        if (redoSteps.isEmpty())
+            throw new IllegalStateException("Nothing to redo");
+        Step step = redoSteps.pop();
+        undoSteps.push(step);
+        return step;
+    }
+
+    /** Get every change remembered - for measuring them
+     *
+     *  @return the changes that can be undone, then those that can be
+     *          redone, most recent first
+     */
+    List<Step> getSteps()
+    {
+        List<Step> result = new ArrayList<Step>(undoSteps);
+        result.addAll(redoSteps);
+        return result;
+    }
+
+    /** Forget every change
+     */
+    public void clear()
+    {
+        undoSteps.clear();
+        redoSteps.clear();
+    }
+
+    // The changes that can be undone and redone - most recent first
+
+    private Deque<Step> undoSteps;
+    private Deque<Step> redoSteps;
+    private int depth;
+}
@@ -0,0 +1,325 @@
+/**
+ *  Workspace.java
+ *
+ */
+
+package addressbook;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/** An object of this class keeps the address books that have recently been
+ *  opened, so that switching back to one of them does not mean reading its
+ *  file again.  Books are kept in order of use, and the least recently used
+ *  are forgotten when the memory they are estimated to take exceeds a
+ *  budget.
+ *
+ *  A kept book is reused only if its file has not changed on disk since it
+ *  was read or saved - judged by the file's modification time and length -
+ *  and the book itself has no unsaved changes.  Otherwise the file is read
+ *  again.  So a book with unsaved changes is kept only to be listed, and
+ *  is forgotten to make room like any other, unless it is the one just
+ *  used; one whose changes the user throws away is forgotten at once (see
+ *  discard()).
+ *
+ *  The memory a book takes is estimated from the number of persons in it,
+ *  at a size per person that depends on how the book was read: a book
+ *  read lazily keeps only the names of its persons in memory.  The sizes
+ *  are those BookFootprint reports for typical books.
+ */
+public class Workspace
+{
+    /** Constructor
+     *
+     *  @param fileSystem the object to use for reading and saving files
+     *  @param memoryBudget the greatest number of bytes the kept books
+     *         should take
+     */
+    public Workspace(FileSystem fileSystem, long memoryBudget)
+    {
+        this.fileSystem = fileSystem;
+        this.books = new LinkedHashMap<File, Entry>(16, 0.75f, true);
+        setMemoryBudget(memoryBudget);
+    }
+
+    /** Open the address book in a file, reusing the one already read if the
+     *  file has not changed since
+     *
+     *  @param file the file to open
+     *  @return the address book in the file
+     *
+     *  @exception IOException if there is a problem reading the file
+     *  @exception ClassNotFoundException if the file does not contain an
+     *             AddressBook - see FileSystem.readFile()
+     */
+    public AddressBook open(File file) throws IOException, 
+                                              ClassNotFoundException
+    {
+        return open(file, null);
+    }
+
+    /** Open the address book in a file, reusing the one already read if the
+     *  file has not changed since.  If the file must be read, the persons
+     *  in it are reported as they are read.  The file is read without
+     *  holding the lock on this workspace, so that the books kept can be
+     *  listed, opened and saved while a large book is being read
+     *
+     *  @param file the file to open
+     *  @param listener the object to report persons to, or null.  It is not
+     *         told anything if the book already read is reused
+     *  @return the address book in the file
+     *
+     *  @exception IOException if there is a problem reading the file
+     *  @exception ClassNotFoundException if the file does not contain an
+     *             AddressBook - see FileSystem.readFile()
+     */
+    public AddressBook open(File file, FileSystem.ReadListener listener) 
+        throws IOException, ClassNotFoundException
+    {
+        File key = keyFor(file);
+        synchronized(this)
+        {
+            Entry entry = books.get(key);
+            if (entry != null && entry.isCurrent())
+                return entry.book;
+        }
+
+        AddressBook book = fileSystem.readFile(file, listener);
+        synchronized(this)
+        {
+            // Another thread may have read the file meanwhile
+            Entry entry = books.get(key);
+            if (entry != null && entry.isCurrent())
+                return entry.book;
+            remember(key, book);
+        }
+        return book;
+    }
+
+    /** Save an address book, and keep it as the current contents of the file
+     *  it is saved to.  Like reading, writing the file is done without
+     *  holding the lock on this workspace
+     *
+     *  @param addressBook the book to save
+     *  @param file the file to save it to
+     *
+     *  @exception IOException if there is a problem writing the file
+     */
+    public void save(AddressBook addressBook, File file)
+        throws IOException
+    {
+        File oldFile = addressBook.getFile();
+        fileSystem.saveFile(addressBook, file);
+        synchronized(this)
+        {
+            if (oldFile != null && ! keyFor(oldFile).equals(keyFor(file)))
+                forget(books.remove(keyFor(oldFile)), addressBook);
+            remember(keyFor(file), addressBook);
+        }
+    }
+
+    /** Forget the book kept for a file, if any
+     *
+     *  @param file the file
+     */
+    public synchronized void close(File file)
+    {
+        forget(books.remove(keyFor(file)), null);
+    }
+
+    /** Forget a book whose unsaved changes are being thrown away, so that
+     *  it takes no memory and its file is read again if it is reopened
+     *
+     *  @param addressBook the book
+     */
+    public synchronized void discard(AddressBook addressBook)
+    {
+        Iterator<Entry> entries = books.values().iterator();
+        while (entries.hasNext())
+        {
+            Entry entry = entries.next();
+            if (entry.book == addressBook)
+            {
+                entries.remove();
+                forget(entry, null);
+            }
+        }
+    }
+
+    /** Get the files whose books are kept
+     *
+     *  @return the files, most recently used first
+     */
+    public synchronized List<File> getOpenFiles()
+    {
+        List<File> result = new ArrayList<File>(books.keySet());
+        Collections.reverse(result);
+        return result;
+    }
+
+    /** Change the memory budget, forgetting books if they now take too much
+     *
+     *  @param memoryBudget the greatest number of bytes the kept books
+     *         should take
+     */
+    public synchronized void setMemoryBudget(long memoryBudget)
+    {
+        if (memoryBudget < 0)
+            throw new IllegalArgumentException("Negative memory budget");
+        this.memoryBudget = memoryBudget;
+        evict(null);
+    }
+
+    /** Get the memory budget
+     *
+     *  @return the greatest number of bytes the kept books should take
+     */
+    public synchronized long getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    /** Get the memory the kept books are estimated to take
+     *
+     *  @return the estimate, in bytes
+     */
+    public synchronized long getMemoryUsed()
+    {
+        long result = 0;
+        for (Entry entry : books.values())
+            result += entry.estimate();
+        return result;
+    }
+
+    /** Auxiliary to open and save - keep a book as the contents of a file,
+     *  and make room for it.  Must be called while holding the lock on this
+     *  workspace
+     */
+    private void remember(File key, AddressBook book)
+    {
+        forget(books.put(key, new Entry(key, book)), book);
+        evict(key);
+    }
+
+    /** Auxiliary to various methods - release a book that is no longer
+     *  kept, closing any file it holds open
+     *
+     *  @param entry the entry for the book, or null if there was none
+     *  @param keep a book that is still in use and must not be released,
+     *         or null
+     */
+    private static void forget(Entry entry, AddressBook keep)
+    {
+        if (entry == null || entry.book == keep)
+            return;
+        try
+        {
+            entry.book.close();
+        }
+        catch(IOException e)
+        {
+            // Nothing more can be done; the file will be closed when the
+            // book is collected
+        }
+    }
+
+    /** Auxiliary to remember and setMemoryBudget - forget the least recently
+     *  used books until the rest fit in the budget.  The book just used is
+     *  kept whatever its size
+     *
+     *  @param keep the key of the book just used, or null
+     */
+    private void evict(File keep)
+    {
+        long used = getMemoryUsed();
+        Iterator<Entry> entries = books.values().iterator();
+        while (used > memoryBudget && entries.hasNext())
+        {
+            Entry entry = entries.next();
+            if (! entry.file.equals(keep))
+            {
+                used -= entry.estimate();
+                entries.remove();
+                forget(entry, null);
+            }
+        }
+    }
+
+    /** Auxiliary to the public methods - the key a file is kept under, so
+     *  that different names for one file find the same book
+     */
+    private static File keyFor(File file)
+    {
+        try
+        {
+            return file.getCanonicalFile();
+        }
+        catch(IOException e)
+        {
+            return file.getAbsoluteFile();
+        }
+    }
+
+    /** A kept book, with what its file looked like when it was read or saved
+     */
+    private static class Entry
+    {
+        Entry(File file, AddressBook book)
+        {
+            this.file = file;
+            this.book = book;
+            lastModified = file.lastModified();
+            length = file.length();
+            lazy = book.size() > 0 &&
+                   book.getPerson(0) instanceof LazyBookFormat.LazyPerson;
+        }
+
+        /** Whether the book can be reused for the file
+         */
+        boolean isCurrent()
+        {
+            return ! book.getChangedSinceSaved() &&
+                   file.lastModified() == lastModified &&
+                   file.length() == length;
+        }
+
+        /** The memory the book is estimated to take
+         */
+        long estimate()
+        {
+            if (lazy)
+                return LAZY_CACHE_BYTES + 
+                       (long) book.size() * LAZY_BYTES_PER_PERSON;
+            else
+                return (long) book.size() * BYTES_PER_PERSON;
+        }
+
+        final File file;
+        final AddressBook book;
+        final long lastModified, length;
+        final boolean lazy;             // Whether the book was read lazily
+    }
+
+    // The object used to read and save files
+
+    private FileSystem fileSystem;
+
+    // The kept books, by file, in order of use - least recent first
+
+    private LinkedHashMap<File, Entry> books;
+    private long memoryBudget;
+
+    // The estimated memory taken by one person, together with its share of
+    // the book's list and indexes - in a book read in full, and in one read
+    // lazily, which has only names in memory and no field indexes until
+    // they are used.  A lazily read book also keeps a cache of details
+
+    private static final int BYTES_PER_PERSON = 500;
+    private static final int LAZY_BYTES_PER_PERSON = 300;
+    private static final long LAZY_CACHE_BYTES = 1L << 20;
+}
@@ -0,0 +1,313 @@
+/**
+ *  ZipCentroids.java
+ *
+ */
+
+package addressbook;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/** An object of this class holds the location of the centre of each ZIP
+ *  code, read from a local file, arranged as a KD-tree for proximity
+ *  searches.  It is shared by every book that uses it; a ProximityIndex
+ *  keeps track of which ZIPs a particular book has persons in.
+ *
+ *  Each location is held as a point on the unit sphere, so that the straight
+ *  line ("chord") distance between two points grows with the distance
+ *  between them along the earth's surface.  The points are kept in an array
+ *  in KD-tree order: the point in the middle of any range of the array
+ *  splits the rest of the range on one coordinate - x, y and z in turn as
+ *  the tree gets deeper - with smaller values to its left.
+ *
+ *  The file has a line for each ZIP of the form zip,latitude,longitude, with
+ *  the latitude and longitude in degrees.  Lines that do not have this form,
+ *  such as a line of column titles, are skipped.
+ */
+public class ZipCentroids
+{
+    /** Read the locations of ZIP codes from a file
+     *
+     *  @param file the file to read
+     *  @return the locations
+     *
+     *  @exception IOException if there is a problem reading the file, or it
+     *             holds no locations
+     */
+    public static ZipCentroids load(File file) throws IOException
+    {
+        List<String> zips = new ArrayList<String>();
+        List<double []> points = new ArrayList<double []>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(file), "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String [] fields = line.split(",");
+                if (fields.length < 3)
+                    continue;
+                try
+                {
+                    double latitude = Double.parseDouble(unquote(fields[1]));
+                    double longitude = Double.parseDouble(unquote(fields[2]));
+                    if (Math.abs(latitude) > 90 || Math.abs(longitude) > 180)
+                        continue;
+                    zips.add(zip5(unquote(fields[0])));
+                    points.add(toPoint(latitude, longitude));
+                }
+                catch(NumberFormatException e)
+                {
+                    // Not a location - skip it
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        if (zips.isEmpty())
+            throw new IOException("No ZIP locations in " + file);
+        return new ZipCentroids(zips, points);
+    }
+
+    /** Constructor - arrange locations as a KD-tree
+     *
+     *  @param zips the ZIP codes
+     *  @param points the location of each, as a point on the unit sphere
+     */
+    ZipCentroids(List<String> zips, List<double []> points)
+    {
+        int size = zips.size();
+        this.zips = new String[size];
+        coordinates = new double[3][size];
+        for (int i = 0; i < size; i ++)
+        {
+            this.zips[i] = zips.get(i);
+            for (int axis = 0; axis < 3; axis ++)
+                coordinates[axis][i] = points.get(i)[axis];
+        }
+        build(0, size, 0);
+
+        positions = new HashMap<String, Integer>(2 * size);
+        for (int i = 0; i < size; i ++)
+            positions.put(this.zips[i], i);
+    }
+
+    /** Get the number of ZIPs located
+     *
+     *  @return the number of ZIPs
+     */
+    public int size()
+    {
+        return zips.length;
+    }
+
+    /** Find out whether a ZIP is located
+     *
+     *  @param zip the ZIP - only its first five characters are used
+     *  @return true if its location is known
+     */
+    public boolean contains(String zip)
+    {
+        return positionOf(zip) >= 0;
+    }
+
+    /** Get the distance between two ZIPs
+     *
+     *  @param zip1 one ZIP
+     *  @param zip2 the other ZIP
+     *  @return the distance between their centres in miles
+     *
+     *  @exception IllegalArgumentException if either ZIP is not located
+     */
+    public double distance(String zip1, String zip2)
+    {
+        int position1 = requirePosition(zip1);
+        int position2 = requirePosition(zip2);
+        double chordSquared = 0;
+        for (int axis = 0; axis < 3; axis ++)
+        {
+            double difference = coordinates[axis][position1] -
+                                coordinates[axis][position2];
+            chordSquared += difference * difference;
+        }
+        return toMiles(chordSquared);
+    }
+
+    /** Get the position in the tree of a ZIP
+     *
+     *  @param zip the ZIP - only its first five characters are used
+     *  @return its position, or -1 if it is not located
+     */
+    int positionOf(String zip)
+    {
+        if (zip == null)
+            return -1;
+        Integer result = positions.get(zip5(zip));
+        return result == null ? -1 : result;
+    }
+
+    /** Get the position in the tree of a ZIP that must be located
+     *
+     *  @param zip the ZIP
+     *  @return its position
+     *
+     *  @exception IllegalArgumentException if the ZIP is not located
+     */
+    int requirePosition(String zip)
+    {
+        int result = positionOf(zip);
+        if (result < 0)
+            throw new IllegalArgumentException("Location of ZIP " + zip +
+                                               " is not known");
+        return result;
+    }
+
+    /** Get one coordinate of the point at a position
+     *
+     *  @param axis 0, 1 or 2 for x, y or z
+     *  @param position the position in the tree
+     *  @return the coordinate
+     */
+    double coordinate(int axis, int position)
+    {
+        return coordinates[axis][position];
+    }
+
+    /** Get the ZIP at a position
+     *
+     *  @param position the position in the tree
+     *  @return the ZIP
+     */
+    String zipAt(int position)
+    {
+        return zips[position];
+    }
+
+    /** Convert a distance along the earth's surface to the square of the
+     *  chord distance between points on the unit sphere
+     *
+     *  @param miles the distance
+     *  @return the squared chord distance
+     */
+    static double toChordSquared(double miles)
+    {
+        double angle = Math.min(miles / EARTH_RADIUS, Math.PI);
+        double chord = 2 * Math.sin(angle / 2);
+        return chord * chord;
+    }
+
+    /** Convert the square of a chord distance on the unit sphere to a
+     *  distance along the earth's surface
+     *
+     *  @param chordSquared the squared chord distance
+     *  @return the distance in miles
+     */
+    static double toMiles(double chordSquared)
+    {
+        double half = Math.min(Math.sqrt(chordSquared) / 2, 1);
+        return 2 * Math.asin(half) * EARTH_RADIUS;
+    }
+
+    /** Auxiliary to the constructor - arrange the points in a range of
+     *  positions as a subtree, splitting on a given axis
+     */
+    private void build(int low, int high, int axis)
+    {
+        if (high - low <= 1)
+            return;
+        int middle = (low + high) >>> 1;
+        select(low, high - 1, middle, axis);
+        build(low, middle, (axis + 1) % 3);
+        build(middle + 1, high, (axis + 1) % 3);
+    }
+
+    /** Auxiliary to build - rearrange a range of positions (inclusive) so
+     *  that the point with the k-th smallest coordinate on an axis is at
+     *  position k, with those no larger before it and those no smaller
+     *  after it
+     */
+    private void select(int low, int high, int k, int axis)
+    {
+        double [] values = coordinates[axis];
+        while (low < high)
+        {
+            double pivot = values[(low + high) >>> 1];
+            int i = low, j = high;
+            while (i <= j)
+            {
+                while (values[i] < pivot)
+                    i ++;
+                while (values[j] > pivot)
+                    j --;
+                if (i <= j)
+                    swap(i ++, j --);
+            }
+            if (k <= j)
+                high = j;
+            else if (k >= i)
+                low = i;
+            else
+                return;
+        }
+    }
+
+    private void swap(int i, int j)
+    {
+        String zip = zips[i];
+        zips[i] = zips[j];
+        zips[j] = zip;
+        for (int axis = 0; axis < 3; axis ++)
+        {
+            double value = coordinates[axis][i];
+            coordinates[axis][i] = coordinates[axis][j];
+            coordinates[axis][j] = value;
+        }
+    }
+
+    /** The point on the unit sphere for a latitude and longitude
+     */
+    private static double [] toPoint(double latitude, double longitude)
+    {
+        double phi = Math.toRadians(latitude);
+        double lambda = Math.toRadians(longitude);
+        return new double [] { Math.cos(phi) * Math.cos(lambda),
+                               Math.cos(phi) * Math.sin(lambda),
+                               Math.sin(phi) };
+    }
+
+    /** The five digit ZIP at the start of a ZIP or ZIP+4
+     */
+    private static String zip5(String zip)
+    {
+        zip = zip.trim();
+        return zip.length() > 5 ? zip.substring(0, 5) : zip;
+    }
+
+    private static String unquote(String field)
+    {
+        field = field.trim();
+        if (field.length() >= 2 && field.startsWith("\"") && field.endsWith("\""))
+            field = field.substring(1, field.length() - 1);
+        return field;
+    }
+
+    // The ZIPs and their points, in KD-tree order
+
+    private String [] zips;
+    private double [][] coordinates;        // [axis][position]
+
+    // Where each ZIP is in the tree
+
+    private HashMap<String, Integer> positions;
+
+    private static final double EARTH_RADIUS = 3958.8;    // Miles
+}